@@ -36,3 +36,5 @@ LOCAL_STATIC_ANDROID_LIBRARIES += androidx.gridlayout_gridlayout
 LOCAL_STATIC_ANDROID_LIBRARIES += androidx.recyclerview_recyclerview
 
 include $(BUILD_PACKAGE)
+
+include $(call all-makefiles-under, $(LOCAL_PATH))
@@ -19,8 +19,8 @@ package com.android.calculator2;
 import com.hp.creals.CR;
 
 import java.math.BigInteger;
+import java.util.Arrays;
 import java.util.Objects;
-import java.util.Random;
 
 /**
  * Rational numbers that may turn to null if they get too big.
@@ -29,6 +29,16 @@ import java.util.Random;
  * We currently never return null for a pure integer or for a BoundedRational that has just been
  * constructed.
  *
+ * Most numbers a calculator sees have small numerators and denominators.  If both fit in a
+ * long, we represent them as longs, and use overflow-checked long arithmetic, falling back to
+ * BigInteger arithmetic only on overflow.  BigInteger versions are computed only when needed.
+ *
+ * A number may also carry a decimal scale, so that its value is num/den * 10^scale.  Constants
+ * such as 1E99999 are thus represented compactly.  Multiplication, division and powers combine
+ * scales by adding them.  We expand a power of ten into the numerator or denominator only when
+ * an operation, such as addition of numbers with different scales, or conversion to another
+ * representation, requires it.  Comparisons usually avoid doing so.
+ *
  * We also implement a number of irrational functions.  These return a non-null result only when
  * the result is known to be rational.
  */
@@ -38,28 +48,182 @@ public class BoundedRational {
     // TODO: Maybe eventually make this extend Number?
 
     private static final int MAX_SIZE = 10000; // total, in bits
+    // Scales are bounded by this in absolute value, so that scale arithmetic, and estimates
+    // of the number of bits in a scaled value, cannot overflow an int.
+    private static final int MAX_SCALE = 1 << 26;
 
-    private final BigInteger mNum;
-    private final BigInteger mDen;
+    // If numerator and denominator both fit in a long, and neither is Long.MIN_VALUE, so that
+    // negation cannot overflow, mIsSmall is set, and they are stored in mSmallNum and mSmallDen.
+    // The representation depends only on numerator and denominator, not on how we got them.
+    private final boolean mIsSmall;
+    private final long mSmallNum;
+    private final long mSmallDen;
+    // Always set if !mIsSmall.  Otherwise computed on demand by num() and den().  The race
+    // in doing so is benign, since BigIntegers are immutable.
+    private BigInteger mNum;
+    private BigInteger mDen;
+    // The size() of the last reduced fraction this one was computed from, or zero if unknown.
+    // Set by maybeReduce() before the result is returned.
+    private int mBaseSize;
+    // The value is num/den * 10^mScale.  Always zero if the numerator is zero.
+    // |mScale| <= MAX_SCALE.
+    private final int mScale;
 
     public BoundedRational(BigInteger n, BigInteger d) {
+        this(n, d, 0);
+    }
+
+    /**
+     * Construct n/d * 10^scale, without computing 10^scale.
+     * @param scale decimal scale, with absolute value at most 2^26
+     */
+    public BoundedRational(BigInteger n, BigInteger d, int scale) {
+        if (Math.abs(scale) > MAX_SCALE) {
+            throw new ArithmeticException("Decimal scale too large");
+        }
         mNum = n;
         mDen = d;
+        mIsSmall = fitsSmall(n) && fitsSmall(d);
+        mSmallNum = mIsSmall ? n.longValue() : 0;
+        mSmallDen = mIsSmall ? d.longValue() : 0;
+        mScale = n.signum() == 0 ? 0 : scale;
     }
 
     public BoundedRational(BigInteger n) {
-        mNum = n;
-        mDen = BigInteger.ONE;
+        this(n, BigInteger.ONE);
     }
 
     public BoundedRational(long n, long d) {
-        mNum = BigInteger.valueOf(n);
-        mDen = BigInteger.valueOf(d);
+        this(n, d, 0);
+    }
+
+    /**
+     * Construct n/d * 10^scale.  The caller ensures that |scale| <= MAX_SCALE.
+     */
+    private BoundedRational(long n, long d, int scale) {
+        mIsSmall = n != Long.MIN_VALUE && d != Long.MIN_VALUE;
+        mSmallNum = n;
+        mSmallDen = d;
+        if (!mIsSmall) {
+            mNum = BigInteger.valueOf(n);
+            mDen = BigInteger.valueOf(d);
+        }
+        mScale = n == 0 ? 0 : scale;
     }
 
     public BoundedRational(long n) {
-        mNum = BigInteger.valueOf(n);
-        mDen = BigInteger.valueOf(1);
+        this(n, 1);
+    }
+
+    private static boolean fitsSmall(BigInteger n) {
+        return n.bitLength() < 64 && n.longValue() != Long.MIN_VALUE;
+    }
+
+    /**
+     * Return the numerator as a BigInteger.
+     */
+    private BigInteger num() {
+        BigInteger result = mNum;
+        if (result == null) {
+            result = BigInteger.valueOf(mSmallNum);
+            mNum = result;
+        }
+        return result;
+    }
+
+    /**
+     * Return the denominator as a BigInteger.
+     */
+    private BigInteger den() {
+        BigInteger result = mDen;
+        if (result == null) {
+            result = BigInteger.valueOf(mSmallDen);
+            mDen = result;
+        }
+        return result;
+    }
+
+    /**
+     * Return n/d, sharing a preallocated instance if it's a small integer.
+     */
+    private static BoundedRational valueOf(long n, long d) {
+        if (d == 1) {
+            return valueOf(n);
+        }
+        return new BoundedRational(n, d);
+    }
+
+    /**
+     * Return n/d * 10^scale.  The caller ensures that |scale| <= MAX_SCALE.
+     */
+    private static BoundedRational valueOf(long n, long d, int scale) {
+        if (scale == 0) {
+            return valueOf(n, d);
+        }
+        return new BoundedRational(n, d, scale);
+    }
+
+    /**
+     * Is scale small enough to be represented?
+     */
+    private static boolean scaleOk(long scale) {
+        return Math.abs(scale) <= MAX_SCALE;
+    }
+
+    /**
+     * Return an equivalent fraction with the given scale, which may not exceed ours.
+     * Multiplies the numerator by the corresponding power of ten.
+     */
+    private BoundedRational withScale(int scale) {
+        if (scale == mScale) {
+            return this;
+        }
+        return new BoundedRational(num().multiply(PowersOfTen.pow(mScale - scale)), den(), scale);
+    }
+
+    /**
+     * Return an equivalent fraction with zero scale.  This computes the power of ten we
+     * otherwise avoid, so we only do it when there is no good alternative.
+     */
+    private BoundedRational unscaled() {
+        if (mScale >= 0) {
+            return withScale(0);
+        }
+        return new BoundedRational(num(), den().multiply(PowersOfTen.pow(-mScale)));
+    }
+
+    /**
+     * Return an equivalent reduced fraction, with trailing decimal zeroes of the numerator moved
+     * into a negative scale.  The number of digits to the right of the decimal point needed by
+     * the result is then that needed by num/den, less the scale.
+     */
+    private BoundedRational stripTens() {
+        final BoundedRational r = reduce().positiveDen();
+        if (r.mScale >= 0) {
+            return r;
+        }
+        // Count trailing zeroes as the smaller of the powers of 2 and 5, rather than dividing by
+        // ten one at a time.
+        final BigInteger num = r.num();
+        int zeroes = Math.min(num.getLowestSetBit(), -r.mScale);
+        if (zeroes > 0) {
+            zeroes = Math.min(zeroes, logFive(num.abs().gcd(BIG_FIVE.pow(zeroes))));
+        }
+        if (zeroes == 0) {
+            return r;
+        }
+        return new BoundedRational(num.divide(PowersOfTen.pow(zeroes)), r.den(),
+                r.mScale + zeroes);
+    }
+
+    /**
+     * Return the fraction num/den, ignoring our scale.
+     */
+    private BoundedRational withoutScale() {
+        if (mScale == 0) {
+            return this;
+        }
+        return mIsSmall ? valueOf(mSmallNum, mSmallDen) : new BoundedRational(mNum, mDen);
     }
 
     /**
@@ -95,23 +259,19 @@ public class BoundedRational {
 
     /**
      * Produce BoundedRational equal to the given long.
+     * Integers between MIN_CACHED and MAX_CACHED share preallocated instances.
      */
     public static BoundedRational valueOf(long x) {
-        if (x >= -2 && x <= 10) {
-            switch((int) x) {
-              case -2:
-                return MINUS_TWO;
-              case -1:
-                return MINUS_ONE;
-              case 0:
-                return ZERO;
-              case 1:
-                return ONE;
-              case 2:
-                return TWO;
-              case 10:
-                return TEN;
+        if (x >= MIN_CACHED && x <= MAX_CACHED) {
+            final int i = (int) x - MIN_CACHED;
+            BoundedRational result = sCache[i];
+            if (result == null) {
+                // Racing threads may both allocate.  Harmless, since the instances we compare
+                // by identity are preloaded.
+                result = new BoundedRational(x);
+                sCache[i] = result;
             }
+            return result;
         }
         return new BoundedRational(x);
     }
@@ -121,7 +281,11 @@ public class BoundedRational {
      * Debug or log messages only, not pretty.
      */
     public String toString() {
-        return mNum.toString() + "/" + mDen.toString();
+        final String scale = mScale == 0 ? "" : "*10^" + mScale;
+        if (mIsSmall) {
+            return mSmallNum + "/" + mSmallDen + scale;
+        }
+        return mNum.toString() + "/" + mDen.toString() + scale;
     }
 
     /**
@@ -130,10 +294,10 @@ public class BoundedRational {
      * toString().  Not internationalized.
      */
     public String toNiceString() {
-        final BoundedRational nicer = reduce().positiveDen();
-        String result = nicer.mNum.toString();
-        if (!nicer.mDen.equals(BigInteger.ONE)) {
-            result += "/" + nicer.mDen;
+        final BoundedRational nicer = unscaled().reduce().positiveDen();
+        String result = nicer.num().toString();
+        if (!nicer.den().equals(BigInteger.ONE)) {
+            result += "/" + nicer.den();
         }
         return result;
     }
@@ -151,38 +315,69 @@ public class BoundedRational {
      * @param n result precision, >= 0
      */
     public String toStringTruncated(int n) {
-        String digits = mNum.abs().multiply(BigInteger.TEN.pow(n)).divide(mDen.abs()).toString();
-        int len = digits.length();
-        if (len < n + 1) {
-            digits = StringUtils.repeat('0', n + 1 - len) + digits;
-            len = n + 1;
-        }
-        return (signum() < 0 ? "-" : "") + digits.substring(0, len - n) + "."
-                + digits.substring(len - n);
+        // Fold our own scale into the power of ten we need anyway.
+        final int e = n + mScale;
+        final BigInteger scaled = e >= 0
+                ? num().abs().multiply(PowersOfTen.pow(e)).divide(den().abs())
+                : num().abs().divide(den().abs().multiply(PowersOfTen.pow(-e)));
+        return DecimalConversion.toStringTruncated(scaled, signum() < 0, n);
     }
 
+    /**
+     * Return a source of decimal digits of this number, for producing many digits, or digits
+     * far to the right of the decimal point.
+     */
+    public RationalDigits digits() {
+        // As in decimalPeriod(), but RationalDigits applies the scale to the period itself.
+        final BoundedRational r = stripTens();
+        return new RationalDigits(r.num(), r.den(), r.mScale, decimalPeriod(r.withoutScale()));
+    }
+
+    // Longs with absolute value below this convert to double exactly.
+    private static final long MAX_EXACT_DOUBLE = 1L << 53;
+
     /**
      * Return a double approximation.
      * The result is correctly rounded to nearest, with ties rounded away from zero.
      * TODO: Should round ties to even.
      */
     public double doubleValue() {
+        if (mScale != 0) {
+            // Avoid expanding huge powers of ten for results that are clearly out of range.
+            final int bits = wholeNumberBits();
+            if (bits > 1100) {
+                return signum() < 0 ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+            }
+            if (bits < -1100) {
+                return signum() < 0 ? -0.0 : 0.0;
+            }
+            return unscaled().doubleValue();
+        }
+        if (mIsSmall && Math.abs(mSmallNum) < MAX_EXACT_DOUBLE
+                && Math.abs(mSmallDen) < MAX_EXACT_DOUBLE) {
+            // Both operands are exact, and the division is correctly rounded.  There are no
+            // ties, since a quotient halfway between two doubles would need more than 53
+            // significant bits, and thus a denominator that is a power of two.
+            return mSmallNum == 0 ? 0.0 : (double) mSmallNum / (double) mSmallDen;
+        }
         final int sign = signum();
         if (sign < 0) {
             return -BoundedRational.negate(this).doubleValue();
         }
+        final BigInteger num = num();
+        final BigInteger den = den();
         // We get the mantissa by dividing the numerator by denominator, after
         // suitably prescaling them so that the integral part of the result contains
         // enough bits. We do the prescaling to avoid any precision loss, so the division result
         // is correctly truncated towards zero.
-        final int apprExp = mNum.bitLength() - mDen.bitLength();
+        final int apprExp = num.bitLength() - den.bitLength();
         if (apprExp < -1100 || sign == 0) {
             // Bail fast for clearly zero result.
             return 0.0;
         }
         final int neededPrec = apprExp - 80;
-        final BigInteger dividend = neededPrec < 0 ? mNum.shiftLeft(-neededPrec) : mNum;
-        final BigInteger divisor = neededPrec > 0 ? mDen.shiftLeft(neededPrec) : mDen;
+        final BigInteger dividend = neededPrec < 0 ? num.shiftLeft(-neededPrec) : num;
+        final BigInteger divisor = neededPrec > 0 ? den.shiftLeft(neededPrec) : den;
         final BigInteger quotient = dividend.divide(divisor);
         final int qLength = quotient.bitLength();
         int extraBits = qLength - 53;
@@ -210,46 +405,97 @@ public class BoundedRational {
     }
 
     public CR crValue() {
+        if (mScale != 0) {
+            final CR power = CR.valueOf(PowersOfTen.pow(Math.abs(mScale)));
+            final CR unscaled = withoutScale().crValue();
+            return mScale > 0 ? unscaled.multiply(power) : unscaled.divide(power);
+        }
+        if (mIsSmall) {
+            return CR.valueOf(mSmallNum).divide(CR.valueOf(mSmallDen));
+        }
         return CR.valueOf(mNum).divide(CR.valueOf(mDen));
     }
 
     public int intValue() {
-        BoundedRational reduced = reduce();
+        BoundedRational reduced = unscaled().reduce();
+        if (reduced.mIsSmall) {
+            if (reduced.mSmallDen != 1) {
+                throw new ArithmeticException("intValue of non-int");
+            }
+            return (int) reduced.mSmallNum;
+        }
         if (!reduced.mDen.equals(BigInteger.ONE)) {
             throw new ArithmeticException("intValue of non-int");
         }
         return reduced.mNum.intValue();
     }
 
+    /**
+     * Return x.bitLength() for BigInteger x with the same value.
+     */
+    private static int bitLength(long x) {
+        return 64 - Long.numberOfLeadingZeros(x < 0 ? ~x : x);
+    }
+
+    private static final double LOG2_10 = Math.log(10) / Math.log(2);
+
     // Approximate number of bits to left of binary point.
     // Negative indicates leading zeroes to the right of binary point.
     public int wholeNumberBits() {
-        if (mNum.signum() == 0) {
+        final int result;
+        if (mIsSmall) {
+            if (mSmallNum == 0) {
+                return Integer.MIN_VALUE;
+            }
+            result = bitLength(mSmallNum) - bitLength(mSmallDen);
+        } else if (mNum.signum() == 0) {
             return Integer.MIN_VALUE;
         } else {
-            return mNum.bitLength() - mDen.bitLength();
+            result = mNum.bitLength() - mDen.bitLength();
         }
+        // Within one of the exact value for zero scale, within two otherwise.
+        return result + (int) Math.round(mScale * LOG2_10);
     }
 
     /**
      * Is this number too big for us to continue with rational arithmetic?
-     * We return fals for integers on the assumption that we have no better fallback.
+     * A scale counts as the bits of the power of ten it stands for, in the numerator if it is
+     * positive and in the denominator if it is negative, since arithmetic on operands with
+     * different scales expands that power of ten.
+     * We return false for integers on the assumption that we have no better fallback.
      */
     private boolean tooBig() {
-        if (mDen.equals(BigInteger.ONE)) {
+        if (mScale == 0 && mIsSmall) {
+            return false;
+        }
+        if (mScale >= 0 && (mIsSmall ? mSmallDen == 1 : mDen.equals(BigInteger.ONE))) {
             return false;
         }
-        return (mNum.bitLength() + mDen.bitLength() > MAX_SIZE);
+        final long scaleBits = (long) Math.ceil(Math.abs(mScale) * LOG2_10);
+        return size() + scaleBits > MAX_SIZE;
     }
 
     /**
      * Return an equivalent fraction with a positive denominator.
      */
     private BoundedRational positiveDen() {
+        if (mIsSmall) {
+            return mSmallDen > 0 ? this : valueOf(-mSmallNum, -mSmallDen, mScale);
+        }
         if (mDen.signum() > 0) {
             return this;
         }
-        return new BoundedRational(mNum.negate(), mDen.negate());
+        return new BoundedRational(mNum.negate(), mDen.negate(), mScale);
+    }
+
+    /**
+     * Return the total size of numerator and denominator, in bits.
+     */
+    private int size() {
+        if (mIsSmall) {
+            return bitLength(mSmallNum) + bitLength(mSmallDen);
+        }
+        return mNum.bitLength() + mDen.bitLength();
     }
 
     /**
@@ -257,48 +503,153 @@ public class BoundedRational {
      * Denominator sign may remain negative.
      */
     private BoundedRational reduce() {
+        if (mIsSmall) {
+            if (mSmallDen == 1) {
+                return this;
+            }
+            if (mSmallNum == 0) {
+                return ZERO;
+            }
+            final long divisor = gcd(Math.abs(mSmallNum), Math.abs(mSmallDen));
+            if (divisor == 1) {
+                return this;
+            }
+            return valueOf(mSmallNum / divisor, mSmallDen / divisor, mScale);
+        }
         if (mDen.equals(BigInteger.ONE)) {
             return this;  // Optimization only
         }
-        final BigInteger divisor = mNum.gcd(mDen);
-        return new BoundedRational(mNum.divide(divisor), mDen.divide(divisor));
+        if (mNum.signum() == 0) {
+            return ZERO;
+        }
+        final BoundedRational r = removeCommonTwos();
+        final BigInteger divisor = r.mNum.gcd(r.mDen);
+        if (divisor.equals(BigInteger.ONE)) {
+            return r;
+        }
+        return new BoundedRational(r.mNum.divide(divisor), r.mDen.divide(divisor), mScale);
     }
 
-    static Random sReduceRng = new Random();
+    /**
+     * Return an equivalent fraction, without common factors of two in numerator and
+     * denominator.  Only shifts, so much cheaper than reduce().  Requires !mIsSmall.
+     */
+    private BoundedRational removeCommonTwos() {
+        // getLowestSetBit() is -1 for a zero numerator; leave that alone.
+        final int twos = Math.min(mNum.getLowestSetBit(), mDen.getLowestSetBit());
+        if (twos <= 0) {
+            return this;
+        }
+        return new BoundedRational(mNum.shiftRight(twos), mDen.shiftRight(twos), mScale);
+    }
+
+    /**
+     * Return the size() of the last reduced fraction r was computed from, or r's own size()
+     * if we don't know.
+     */
+    private static int baseSize(BoundedRational r) {
+        return r.mBaseSize != 0 ? r.mBaseSize : r.size();
+    }
 
     /**
      * Return a possibly reduced version of r that's not tooBig().
      * Return null if none exists.
+     * Small results are always reduced, since that's cheap, and keeps later operations on the
+     * long fast path.  Otherwise we always remove common factors of two, which takes only
+     * shifts.  We compute a full gcd only if r is tooBig(), or if its size has more than
+     * doubled since the last reduction in its history.  Thus a sequence of operations that
+     * keeps growing the result reduces it a logarithmic number of times, and the total gcd cost
+     * is dominated by the last one.  Unlike reducing at random, whether we reduce, and hence
+     * the intermediate sizes, depend only on the inputs.
+     * @param r A newly allocated result, not yet visible to other threads, or null.
+     * @param baseSize Maximum baseSize() of the operands r was computed from.
      */
-    private static BoundedRational maybeReduce(BoundedRational r) {
+    private static BoundedRational maybeReduce(BoundedRational r, int baseSize) {
         if (r == null) return null;
-        // Reduce randomly, with 1/16 probability, or if the result is too big.
-        if (!r.tooBig() && (sReduceRng.nextInt() & 0xf) != 0) {
-            return r;
+        if (r.mIsSmall) {
+            return r.positiveDen().reduce();
+        }
+        BoundedRational result = r.positiveDen().removeCommonTwos();
+        if (result.mIsSmall) {
+            return result.reduce();
+        }
+        if (!result.tooBig() && result.size() <= 2 * baseSize) {
+            result.mBaseSize = baseSize;
+            return result;
         }
-        BoundedRational result = r.positiveDen();
         result = result.reduce();
         if (!result.tooBig()) {
+            if (!result.mIsSmall) {
+                result.mBaseSize = result.size();
+            }
             return result;
         }
         return null;
     }
 
     public int compareTo(BoundedRational r) {
+        if (mScale != r.mScale) {
+            return compareScaled(r);
+        }
         // Compare by multiplying both sides by denominators, invert result if denominator product
         // was negative.
-        return mNum.multiply(r.mDen).compareTo(r.mNum.multiply(mDen)) * mDen.signum()
-                * r.mDen.signum();
+        if (mIsSmall && r.mIsSmall) {
+            try {
+                return Long.compare(Math.multiplyExact(mSmallNum, r.mSmallDen),
+                        Math.multiplyExact(r.mSmallNum, mSmallDen))
+                        * Long.signum(mSmallDen) * Long.signum(r.mSmallDen);
+            } catch (ArithmeticException e) {
+                // Overflow.  Use BigIntegers.
+            }
+        }
+        return num().multiply(r.den()).compareTo(r.num().multiply(den())) * den().signum()
+                * r.den().signum();
+    }
+
+    /**
+     * compareTo() for different scales.  Signs and magnitude estimates usually suffice.
+     * Otherwise we compare after multiplying the side with the larger scale by the power of
+     * ten corresponding to the difference.
+     */
+    private int compareScaled(BoundedRational r) {
+        final int sign = signum();
+        final int rSign = r.signum();
+        if (sign != rSign) {
+            return Integer.compare(sign, rSign);
+        }
+        // Neither is zero, since zero has zero scale.  Magnitudes are within 2^2 of 2^bits.
+        final int bits = wholeNumberBits();
+        final int rBits = r.wholeNumberBits();
+        if (Math.abs(bits - rBits) > 4) {
+            return bits > rBits ? sign : -sign;
+        }
+        BigInteger left = num().multiply(r.den());
+        BigInteger right = r.num().multiply(den());
+        if (mScale > r.mScale) {
+            left = left.multiply(PowersOfTen.pow(mScale - r.mScale));
+        } else {
+            right = right.multiply(PowersOfTen.pow(r.mScale - mScale));
+        }
+        return left.compareTo(right) * den().signum() * r.den().signum();
     }
 
     public int signum() {
+        if (mIsSmall) {
+            return Long.signum(mSmallNum) * Long.signum(mSmallDen);
+        }
         return mNum.signum() * mDen.signum();
     }
 
     @Override
     public int hashCode() {
         // Note that this may be too expensive to be useful.
-        BoundedRational reduced = reduce().positiveDen();
+        // Scales are not canonical, so we hash the unscaled value.
+        BoundedRational reduced = unscaled().reduce().positiveDen();
+        if (reduced.mIsSmall) {
+            // Reduced fractions with the same value have the same representation, so this is
+            // consistent with equals().
+            return 31 * Long.hashCode(reduced.mSmallNum) + Long.hashCode(reduced.mSmallDen);
+        }
         return Objects.hash(reduced.mNum, reduced.mDen);
     }
 
@@ -318,6 +669,13 @@ public class BoundedRational {
         if (r == null) {
             return null;
         }
+        r = r.unscaled();
+        if (r.mIsSmall) {
+            if (r.mSmallNum % r.mSmallDen == 0) {
+                return BigInteger.valueOf(r.mSmallNum / r.mSmallDen);
+            }
+            return null;
+        }
         final BigInteger[] quotAndRem = r.mNum.divideAndRemainder(r.mDen);
         if (quotAndRem[1].signum() == 0) {
             return quotAndRem[0];
@@ -329,9 +687,38 @@ public class BoundedRational {
         if (r1 == null || r2 == null) {
             return null;
         }
-        final BigInteger den = r1.mDen.multiply(r2.mDen);
-        final BigInteger num = r1.mNum.multiply(r2.mDen).add(r2.mNum.multiply(r1.mDen));
-        return maybeReduce(new BoundedRational(num,den));
+        if (r1.mScale != r2.mScale) {
+            // Adding zero should not expand the other scale.
+            if (r1.signum() == 0) {
+                return r2;
+            }
+            if (r2.signum() == 0) {
+                return r1;
+            }
+            // Align both to the smaller scale.  This is where we usually pay for large scales.
+            final int scale = Math.min(r1.mScale, r2.mScale);
+            r1 = r1.withScale(scale);
+            r2 = r2.withScale(scale);
+        }
+        final int scale = r1.mScale;
+        if (r1.mIsSmall && r2.mIsSmall) {
+            try {
+                if (r1.mSmallDen == r2.mSmallDen) {
+                    return maybeReduce(valueOf(Math.addExact(r1.mSmallNum, r2.mSmallNum),
+                            r1.mSmallDen, scale), 0);
+                }
+                final long den = Math.multiplyExact(r1.mSmallDen, r2.mSmallDen);
+                final long num = Math.addExact(Math.multiplyExact(r1.mSmallNum, r2.mSmallDen),
+                        Math.multiplyExact(r2.mSmallNum, r1.mSmallDen));
+                return maybeReduce(valueOf(num, den, scale), 0);
+            } catch (ArithmeticException e) {
+                // Overflow.  Use BigIntegers.
+            }
+        }
+        final BigInteger den = r1.den().multiply(r2.den());
+        final BigInteger num = r1.num().multiply(r2.den()).add(r2.num().multiply(r1.den()));
+        return maybeReduce(new BoundedRational(num, den, scale),
+                Math.max(baseSize(r1), baseSize(r2)));
     }
 
     /**
@@ -342,7 +729,10 @@ public class BoundedRational {
         if (r == null) {
             return null;
         }
-        return new BoundedRational(r.mNum.negate(), r.mDen);
+        if (r.mIsSmall) {
+            return valueOf(-r.mSmallNum, r.mSmallDen, r.mScale);
+        }
+        return new BoundedRational(r.mNum.negate(), r.mDen, r.mScale);
     }
 
     public static BoundedRational subtract(BoundedRational r1, BoundedRational r2) {
@@ -365,13 +755,31 @@ public class BoundedRational {
         if (r2 == ONE) {
             return r1;
         }
-        final BigInteger num = r1.mNum.multiply(r2.mNum);
-        final BigInteger den = r1.mDen.multiply(r2.mDen);
-        return new BoundedRational(num,den);
+        final long longScale = (long) r1.mScale + r2.mScale;
+        if (!scaleOk(longScale)) {
+            return null;
+        }
+        final int scale = (int) longScale;
+        if (r1.mIsSmall && r2.mIsSmall) {
+            try {
+                return valueOf(Math.multiplyExact(r1.mSmallNum, r2.mSmallNum),
+                        Math.multiplyExact(r1.mSmallDen, r2.mSmallDen), scale);
+            } catch (ArithmeticException e) {
+                // Overflow.  Use BigIntegers.
+            }
+        }
+        final BigInteger num = r1.num().multiply(r2.num());
+        final BigInteger den = r1.den().multiply(r2.den());
+        return new BoundedRational(num, den, scale);
     }
 
     public static BoundedRational multiply(BoundedRational r1, BoundedRational r2) {
-        return maybeReduce(rawMultiply(r1, r2));
+        final BoundedRational product = rawMultiply(r1, r2);
+        if (product == null || product == r1 || product == r2) {
+            // Multiplication by ONE.  Nothing new to reduce.
+            return product;
+        }
+        return maybeReduce(product, Math.max(baseSize(r1), baseSize(r2)));
     }
 
     public static class ZeroDivisionException extends ArithmeticException {
@@ -387,34 +795,154 @@ public class BoundedRational {
         if (r == null) {
             return null;
         }
-        if (r.mNum.signum() == 0) {
+        if (r.signum() == 0) {
             throw new ZeroDivisionException();
         }
-        return new BoundedRational(r.mDen, r.mNum);
+        if (r.mIsSmall) {
+            return valueOf(r.mSmallDen, r.mSmallNum, -r.mScale);
+        }
+        return new BoundedRational(r.mDen, r.mNum, -r.mScale);
     }
 
     public static BoundedRational divide(BoundedRational r1, BoundedRational r2) {
         return multiply(r1, inverse(r2));
     }
 
+    /**
+     * Return the square root of r if numerator and denominator are perfect squares, null
+     * otherwise.
+     */
     public static BoundedRational sqrt(BoundedRational r) {
-        // Return non-null if numerator and denominator are small perfect squares.
         if (r == null) {
             return null;
         }
         r = r.positiveDen().reduce();
-        if (r.mNum.signum() < 0) {
+        if (r.signum() < 0) {
             throw new ArithmeticException("sqrt(negative)");
         }
-        final BigInteger num_sqrt = BigInteger.valueOf(Math.round(Math.sqrt(r.mNum.doubleValue())));
-        if (!num_sqrt.multiply(num_sqrt).equals(r.mNum)) {
+        // Make the scale even, so that we can halve it.  The numerator then changed, so
+        // reduce again.
+        if ((r.mScale & 1) != 0) {
+            r = r.withScale(r.mScale - 1).reduce();
+        }
+        final int scale = r.mScale / 2;
+        if (r.mIsSmall) {
+            final long numSqrt = exactSqrt(r.mSmallNum);
+            if (numSqrt < 0) {
+                return null;
+            }
+            final long denSqrt = exactSqrt(r.mSmallDen);
+            if (denSqrt < 0) {
+                return null;
+            }
+            return valueOf(numSqrt, denSqrt, scale);
+        }
+        final BigInteger numSqrt = exactSqrt(r.mNum);
+        if (numSqrt == null) {
             return null;
         }
-        final BigInteger den_sqrt = BigInteger.valueOf(Math.round(Math.sqrt(r.mDen.doubleValue())));
-        if (!den_sqrt.multiply(den_sqrt).equals(r.mDen)) {
+        final BigInteger denSqrt = exactSqrt(r.mDen);
+        if (denSqrt == null) {
+            return null;
+        }
+        return new BoundedRational(numSqrt, denSqrt, scale);
+    }
+
+    /**
+     * Return a table indicating which residues mod m are squares mod m.
+     */
+    private static boolean[] squaresMod(int m) {
+        final boolean[] result = new boolean[m];
+        for (int i = 0; i < m; ++i) {
+            result[(int) ((long) i * i % m)] = true;
+        }
+        return result;
+    }
+
+    // Perfect squares must be squares modulo each of these.  Together they reject all but
+    // about 0.7% of non-squares, at the cost of a single BigInteger remainder operation.
+    private static final boolean[] SQUARE_MOD_64 = squaresMod(64);
+    private static final boolean[] SQUARE_MOD_63 = squaresMod(63);
+    private static final boolean[] SQUARE_MOD_65 = squaresMod(65);
+    private static final boolean[] SQUARE_MOD_11 = squaresMod(11);
+    private static final BigInteger BIG_63_65_11 = BigInteger.valueOf(63 * 65 * 11);
+
+    /**
+     * Could n >= 0 with the given remainders be a perfect square?
+     * @param low Low order 6 bits of n
+     * @param rem n mod 63 * 65 * 11
+     */
+    private static boolean maybeSquare(int low, int rem) {
+        return SQUARE_MOD_64[low] && SQUARE_MOD_63[rem % 63] && SQUARE_MOD_65[rem % 65]
+                && SQUARE_MOD_11[rem % 11];
+    }
+
+    /**
+     * Return the square root of n >= 0 if n is a perfect square, -1 otherwise.
+     */
+    private static long exactSqrt(long n) {
+        if (!maybeSquare((int) n & 63, (int) (n % (63 * 65 * 11)))) {
+            return -1;
+        }
+        final long s = isqrt(n);
+        return s * s == n ? s : -1;
+    }
+
+    /**
+     * Return the square root of n >= 0 if n is a perfect square, null otherwise.
+     */
+    private static BigInteger exactSqrt(BigInteger n) {
+        if (!maybeSquare(n.intValue() & 63, n.remainder(BIG_63_65_11).intValue())) {
             return null;
         }
-        return new BoundedRational(num_sqrt, den_sqrt);
+        final BigInteger s = isqrt(n);
+        return s.multiply(s).equals(n) ? s : null;
+    }
+
+    /**
+     * Return floor(sqrt(n)) for n >= 0.
+     * We start from an overestimate derived from the double square root of the leading bits,
+     * and use Newton iteration, which then decreases monotonically to the result, roughly
+     * doubling the number of correct bits at each step.
+     */
+    private static BigInteger isqrt(BigInteger n) {
+        final int len = n.bitLength();
+        if (len < 63) {
+            return BigInteger.valueOf(isqrt(n.longValue()));
+        }
+        // Keep the leading 52 or 53 bits, which convert to double exactly.  The shift is even,
+        // so that sqrt(n) < (floor(sqrt(m)) + 1) * 2^(shift / 2), where m = n >> shift.
+        final int shift = (len - 52) & ~1;
+        final long m = n.shiftRight(shift).longValue();
+        BigInteger x = BigInteger.valueOf(isqrt(m) + 1).shiftLeft(shift / 2);
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new CR.AbortedException();
+            }
+            final BigInteger y = x.add(n.divide(x)).shiftRight(1);
+            if (y.compareTo(x) >= 0) {
+                return x;
+            }
+            x = y;
+        }
+    }
+
+    // floor(sqrt(Long.MAX_VALUE)).  Larger values have squares that overflow.
+    private static final long MAX_LONG_SQRT = 3037000499L;
+
+    /**
+     * Return floor(sqrt(n)) for 0 <= n < 2^63.
+     */
+    private static long isqrt(long n) {
+        // The double square root is within one of the exact one.
+        long s = (long) Math.sqrt((double) n);
+        while (s * s > n) {
+            --s;
+        }
+        while (s < MAX_LONG_SQRT && (s + 1) * (s + 1) <= n) {
+            ++s;
+        }
+        return s;
     }
 
     public final static BoundedRational ZERO = new BoundedRational(0);
@@ -436,6 +964,21 @@ public class BoundedRational {
     public final static BoundedRational NINETY = new BoundedRational(90);
     public final static BoundedRational MINUS_NINETY = new BoundedRational(-90);
 
+    // valueOf(long) shares instances for integers in [MIN_CACHED, MAX_CACHED].
+    private static final int MIN_CACHED = -128;
+    private static final int MAX_CACHED = 1024;
+    private static final BoundedRational[] sCache =
+            new BoundedRational[MAX_CACHED - MIN_CACHED + 1];
+    static {
+        // Preload the named constants, so that valueOf() returns them, and identity comparisons
+        // against them, e.g. with ONE, succeed.
+        for (BoundedRational r : new BoundedRational[] { ZERO, ONE, MINUS_ONE, TWO, MINUS_TWO,
+                TEN, TWELVE, THIRTY, MINUS_THIRTY, FORTY_FIVE, MINUS_FORTY_FIVE, NINETY,
+                MINUS_NINETY }) {
+            sCache[(int) r.mSmallNum - MIN_CACHED] = r;
+        }
+    }
+
     private static final BigInteger BIG_TWO = BigInteger.valueOf(2);
     private static final BigInteger BIG_MINUS_ONE = BigInteger.valueOf(-1);
 
@@ -479,14 +1022,14 @@ public class BoundedRational {
         // Reducing once at the beginning means there's no point in reducing later.
         BoundedRational reduced = reduce().positiveDen();
         // First handle cases in which huge exponents could give compact results.
-        if (reduced.mDen.equals(BigInteger.ONE)) {
-            if (reduced.mNum.equals(BigInteger.ZERO)) {
+        if (reduced.mScale == 0 && reduced.den().equals(BigInteger.ONE)) {
+            if (reduced.num().equals(BigInteger.ZERO)) {
                 return ZERO;
             }
-            if (reduced.mNum.equals(BigInteger.ONE)) {
+            if (reduced.num().equals(BigInteger.ONE)) {
                 return ONE;
             }
-            if (reduced.mNum.equals(BIG_MINUS_ONE)) {
+            if (reduced.num().equals(BIG_MINUS_ONE)) {
                 if (exp.testBit(0)) {
                     return MINUS_ONE;
                 } else {
@@ -512,16 +1055,37 @@ public class BoundedRational {
         if (base == null) {
             return null;
         }
-        exp = exp.reduce().positiveDen();
-        if (!exp.mDen.equals(BigInteger.ONE)) {
+        exp = exp.unscaled().reduce().positiveDen();
+        if (!exp.den().equals(BigInteger.ONE)) {
             return null;
         }
-        return base.pow(exp.mNum);
+        return base.pow(exp.num());
     }
 
 
     private static final BigInteger BIG_FIVE = BigInteger.valueOf(5);
 
+    private static final double LOG2_5 = Math.log(5) / Math.log(2);
+
+    /**
+     * Return the largest power of 5 that divides n > 0.
+     * Dividing out one factor of 5 at a time would take time quadratic in the length of n, so
+     * we instead take the gcd with a power of 5 at least as large as any that can divide n.
+     */
+    private static BigInteger powerOfFiveDividing(BigInteger n) {
+        // 5^k <= n < 2^bitLength, so k < bitLength / log2(5).
+        final int maxExp = (int) Math.ceil(n.bitLength() / LOG2_5);
+        return n.gcd(BIG_FIVE.pow(maxExp));
+    }
+
+    /**
+     * Return k, given 5^k.
+     */
+    private static int logFive(BigInteger fivePower) {
+        // 2^(len-1) <= 5^k < 2^len, so (len - 1) / log2(5) is within 1/log2(5) < 0.5 below k.
+        return (int) Math.round((fivePower.bitLength() - 1) / LOG2_5);
+    }
+
     /**
      * Return the number of decimal digits to the right of the decimal point required to represent
      * the argument exactly.
@@ -532,25 +1096,31 @@ public class BoundedRational {
         if (r == null) {
             return Integer.MAX_VALUE;
         }
+        if (r.mScale != 0) {
+            // Digits required by num/den, less those supplied by the scale.
+            r = r.stripTens();
+            final int unscaledDigits = digitsRequired(r.withoutScale());
+            if (unscaledDigits == Integer.MAX_VALUE) {
+                return Integer.MAX_VALUE;
+            }
+            return Math.max(0, unscaledDigits - r.mScale);
+        }
         int powersOfTwo = 0;  // Max power of 2 that divides denominator
         int powersOfFive = 0;  // Max power of 5 that divides denominator
         // Try the easy case first to speed things up.
-        if (r.mDen.equals(BigInteger.ONE)) {
+        if (r.den().equals(BigInteger.ONE)) {
             return 0;
         }
         r = r.reduce();
-        BigInteger den = r.mDen;
+        BigInteger den = r.den();
         if (den.bitLength() > MAX_SIZE) {
             return Integer.MAX_VALUE;
         }
-        while (!den.testBit(0)) {
-            ++powersOfTwo;
-            den = den.shiftRight(1);
-        }
-        while (den.mod(BIG_FIVE).signum() == 0) {
-            ++powersOfFive;
-            den = den.divide(BIG_FIVE);
-        }
+        powersOfTwo = den.getLowestSetBit();
+        den = den.shiftRight(powersOfTwo);
+        final BigInteger fives = powerOfFiveDividing(den);
+        powersOfFive = logFive(fives);
+        den = den.divide(fives);
         // If the denominator has a factor of other than 2 or 5 (the divisors of 10), the decimal
         // expansion does not terminate.  Multiplying the fraction by any number of powers of 10
         // will not cancel the demoniator.  (Recall the fraction was in lowest terms to start
@@ -561,4 +1131,154 @@ public class BoundedRational {
         }
         return Math.max(powersOfTwo, powersOfFive);
     }
+
+    /**
+     * The shape of a decimal expansion: after the first preperiod digits to the right of the
+     * decimal point, a block of period digits repeats forever.  Period is zero if the expansion
+     * terminates after preperiod digits.
+     */
+    public static class DecimalPeriod {
+        public final int preperiod;
+        public final int period;
+        DecimalPeriod(int pre, int per) {
+            preperiod = pre;
+            period = per;
+        }
+    }
+
+    // We only compute periods for denominators whose part coprime to 10 is below this bound.
+    // This keeps factoring by trial division cheap, and intermediate products within a long.
+    private static final long MAX_PERIOD_MODULUS = Integer.MAX_VALUE;
+
+    /**
+     * Return the shape of the decimal expansion of r.
+     * Return null if r is null, or if computing the period would be expensive.
+     */
+    public static DecimalPeriod decimalPeriod(BoundedRational r) {
+        if (r == null) {
+            return null;
+        }
+        if (r.mScale != 0) {
+            // Scaling shifts the preperiod, but leaves the period unchanged.
+            r = r.stripTens();
+            final DecimalPeriod unscaled = decimalPeriod(r.withoutScale());
+            if (unscaled == null) {
+                return null;
+            }
+            return new DecimalPeriod(Math.max(0, unscaled.preperiod - r.mScale),
+                    unscaled.period);
+        }
+        if (r.den().equals(BigInteger.ONE)) {
+            return new DecimalPeriod(0, 0);
+        }
+        r = r.reduce();
+        BigInteger den = r.den().abs();
+        final int twos = den.getLowestSetBit();
+        den = den.shiftRight(twos);
+        final BigInteger fivePower = powerOfFiveDividing(den);
+        final int fives = logFive(fivePower);
+        den = den.divide(fivePower);
+        // The digits after the preperiod are those of a fraction with denominator den, which
+        // is coprime to 10.  Such an expansion is purely periodic, and its period is the
+        // multiplicative order of 10 modulo den.
+        final int preperiod = Math.max(twos, fives);
+        if (den.equals(BigInteger.ONE)) {
+            return new DecimalPeriod(preperiod, 0);
+        }
+        if (den.bitLength() > 63 || den.longValue() > MAX_PERIOD_MODULUS) {
+            return null;
+        }
+        final long order = multiplicativeOrderOfTen(den.longValue());
+        if (order > Integer.MAX_VALUE) {
+            return null;
+        }
+        return new DecimalPeriod(preperiod, (int) order);
+    }
+
+    /**
+     * Return the distinct prime factors of n > 0, in increasing order.
+     */
+    private static long[] primeFactors(long n) {
+        final long[] factors = new long[64];
+        int count = 0;
+        for (long p = 2; p * p <= n; p += (p == 2 ? 1 : 2)) {
+            if (n % p == 0) {
+                factors[count++] = p;
+                do {
+                    n /= p;
+                } while (n % p == 0);
+            }
+        }
+        if (n > 1) {
+            factors[count++] = n;
+        }
+        return Arrays.copyOf(factors, count);
+    }
+
+    /**
+     * Return 10^e mod m.  m <= MAX_PERIOD_MODULUS, so products fit in a long.
+     */
+    private static long powTenMod(long e, long m) {
+        long result = 1 % m;
+        long base = 10 % m;
+        while (e > 0) {
+            if ((e & 1) != 0) {
+                result = result * base % m;
+            }
+            base = base * base % m;
+            e >>= 1;
+        }
+        return result;
+    }
+
+    /**
+     * Return the smallest d > 0 with 10^d = 1 mod m.  m > 1 must be coprime to 10 and at most
+     * MAX_PERIOD_MODULUS.
+     */
+    private static long multiplicativeOrderOfTen(long m) {
+        // Start with the Carmichael function lambda(m), which is a multiple of the order, and
+        // remove prime factors as long as the result remains a multiple of the order.
+        long lambda = 1;
+        long rest = m;
+        for (long p : primeFactors(m)) {
+            long pk = 1;
+            do {
+                rest /= p;
+                pk *= p;
+            } while (rest % p == 0);
+            // m is odd, so lambda(p^k) = p^(k-1) * (p-1).
+            final long l = pk / p * (p - 1);
+            lambda = lambda / gcd(lambda, l) * l;
+        }
+        long order = lambda;
+        for (long q : primeFactors(lambda)) {
+            while (order % q == 0 && powTenMod(order / q, m) == 1) {
+                order /= q;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Return the greatest common divisor of a, b >= 0, not both zero.
+     * Uses the binary gcd algorithm, which replaces divisions by shifts and subtractions.
+     */
+    private static long gcd(long a, long b) {
+        if (a == 0 || b == 0) {
+            return a | b;
+        }
+        final int commonTwos = Long.numberOfTrailingZeros(a | b);
+        a >>= Long.numberOfTrailingZeros(a);
+        do {
+            b >>= Long.numberOfTrailingZeros(b);
+            // Both odd.
+            if (a > b) {
+                final long t = a;
+                a = b;
+                b = t;
+            }
+            b -= a;
+        } while (b != 0);
+        return a << commonTwos;
+    }
 }
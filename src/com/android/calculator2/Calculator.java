@@ -76,11 +76,13 @@ import com.android.calculator2.CalculatorFormula.OnTextSizeChangeListener;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
 import java.text.DecimalFormatSymbols;
 
 import static com.android.calculator2.CalculatorFormula.OnFormulaContextMenuClickListener;
@@ -202,7 +204,11 @@ public class Calculator extends Activity
             }
 
             // Check if the item is a previously copied result, otherwise paste as raw text.
-            final Uri uri = item.getUri();
+            // Long results are copied as a content Uri that carries the result's tag Uri.
+            Uri uri = item.getUri();
+            if (uri != null && ResultProvider.getTag(uri) != null) {
+                uri = ResultProvider.getTag(uri);
+            }
             if (uri != null && mEvaluator.isLastSaved(uri)) {
                 clearIfNotInputState();
                 mEvaluator.appendExpr(mEvaluator.getSavedIndex());
@@ -453,6 +459,23 @@ public class Calculator extends Activity
                         : View.IMPORTANT_FOR_ACCESSIBILITY_AUTO);
     }
 
+    /**
+     * Include evaluator metrics in "adb shell dumpsys activity" output.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (mEvaluator != null) {
+            writer.print(prefix);
+            writer.println("Evaluator metrics:");
+            for (String line : mEvaluator.getMetricsReport().split("\n")) {
+                writer.print(prefix);
+                writer.print("  ");
+                writer.println(line);
+            }
+        }
+    }
+
     @Override
     protected void onSaveInstanceState(@NonNull Bundle outState) {
         mEvaluator.cancelAll(true);
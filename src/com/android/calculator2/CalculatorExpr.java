@@ -17,20 +17,31 @@
 package com.android.calculator2;
 
 import android.content.Context;
+import android.os.Process;
 import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.style.TtsSpan;
 
+import com.hp.creals.CR;
+
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * A mathematical expression represented as a sequence of "tokens".
@@ -39,7 +50,8 @@ import java.util.HashSet;
  * The add() method adds a token to the end of the expression.  The delete method() removes one.
  * Clear() deletes the entire expression contents. Eval() evaluates the expression,
  * producing a UnifiedReal result.
- * Expressions are parsed only during evaluation; no explicit parse tree is maintained.
+ * Expressions are compiled to an immutable program on first evaluation.  The program is cached
+ * until the expression is next modified.
  *
  * The write() method is used to save the current expression.  Note that neither UnifiedReal
  * nor the underlying CR provide a serialization facility.  Thus we save all previously
@@ -78,6 +90,27 @@ class CalculatorExpr {
                                      // as a list of tokens.  Constant
                                      // tokens are always nonempty.
 
+    /**
+     * A point at which top-level evaluation can be resumed: The value of the expression prefix
+     * ending just before the additive operator at mPos.  Depends only on tokens [0, mPos].
+     */
+    private static class Checkpoint {
+        public final int mPos;
+        public final UnifiedReal mVal;
+        Checkpoint(int pos, UnifiedReal val) {
+            mPos = pos;
+            mVal = val;
+        }
+    }
+
+    // Checkpoints recorded by the last top-level evaluation, in increasing mPos order.
+    // Since the expression is only edited at the end, appending tokens leaves them valid,
+    // and instant evaluation only needs to reevaluate the trailing term(s).
+    // Protected by this. The remaining fields describe the context in which they were computed.
+    private ArrayList<Checkpoint> mCheckpoints = new ArrayList<Checkpoint>();
+    private boolean mCheckpointDegreeMode;
+    private ExprResolver mCheckpointResolver;
+
     private static enum TokenKind { CONSTANT, OPERATOR, PRE_EVAL };
     private static TokenKind[] tokenKindValues = TokenKind.values();
     private final static BigInteger BIG_MILLION = BigInteger.valueOf(1000000);
@@ -278,15 +311,10 @@ class CalculatorExpr {
                     whole = "0";
                 }
             }
-            BigInteger num = new BigInteger(whole + mFraction);
-            BigInteger den = BigInteger.TEN.pow(mFraction.length());
-            if (mExponent > 0) {
-                num = num.multiply(BigInteger.TEN.pow(mExponent));
-            }
-            if (mExponent < 0) {
-                den = den.multiply(BigInteger.TEN.pow(-mExponent));
-            }
-            return new BoundedRational(num, den);
+            // Keep the power of ten as a scale, rather than computing it.  Large exponents then
+            // cost nothing unless the value is added to something, or converted.
+            final BigInteger num = new BigInteger(whole + mFraction);
+            return new BoundedRational(num, BigInteger.ONE, mExponent - mFraction.length());
         }
 
         @Override
@@ -409,6 +437,43 @@ class CalculatorExpr {
         }
     }
 
+    /**
+     * Discard evaluation checkpoints that depend on the token at pos or later.
+     */
+    private synchronized void invalidateCheckpoints(int pos) {
+        int i = mCheckpoints.size();
+        while (i > 0 && mCheckpoints.get(i - 1).mPos >= pos) {
+            --i;
+        }
+        mCheckpoints.subList(i, mCheckpoints.size()).clear();
+    }
+
+    private synchronized void addCheckpoint(int pos, UnifiedReal val, EvalContext ec) {
+        if (ec.mDegreeMode != mCheckpointDegreeMode || ec.mExprResolver != mCheckpointResolver) {
+            mCheckpoints.clear();
+            mCheckpointDegreeMode = ec.mDegreeMode;
+            mCheckpointResolver = ec.mExprResolver;
+        }
+        invalidateCheckpoints(pos);
+        mCheckpoints.add(new Checkpoint(pos, val));
+    }
+
+    /**
+     * Return the last checkpoint usable for evaluation in the given context, or null.
+     */
+    private synchronized Checkpoint getCheckpoint(EvalContext ec) {
+        if (ec.mDegreeMode != mCheckpointDegreeMode || ec.mExprResolver != mCheckpointResolver) {
+            return null;
+        }
+        for (int i = mCheckpoints.size() - 1; i >= 0; --i) {
+            final Checkpoint cp = mCheckpoints.get(i);
+            if (cp.mPos < ec.mPrefixLength) {
+                return cp;
+            }
+        }
+        return null;
+    }
+
     /**
      * Write this expression to out.
      */
@@ -468,6 +533,7 @@ class CalculatorExpr {
      * operator.
      */
     boolean add(int id) {
+        mCompiled = null;
         int s = mExpr.size();
         final int d = KeyMaps.digVal(id);
         final boolean binary = KeyMaps.isBinary(id);
@@ -515,6 +581,8 @@ class CalculatorExpr {
      * Assumes there is a constant at the end of the expression.
      */
     void addExponent(int exp) {
+        mCompiled = null;
+        invalidateCheckpoints(mExpr.size() - 1);
         Token lastTok = mExpr.get(mExpr.size() - 1);
         ((Constant) lastTok).addExponent(exp);
     }
@@ -546,6 +614,7 @@ class CalculatorExpr {
      * reused directly.
      */
     public void append(CalculatorExpr expr2) {
+        mCompiled = null;
         int s = mExpr.size();
         int s2 = expr2.mExpr.size();
         // Check that we're not concatenating Constant or PreEval tokens, since the result would
@@ -573,6 +642,8 @@ class CalculatorExpr {
         if (s == 0) {
             return;
         }
+        mCompiled = null;
+        invalidateCheckpoints(s - 1);
         Token last = mExpr.get(s-1);
         if (last instanceof Constant) {
             Constant c = (Constant)last;
@@ -588,7 +659,9 @@ class CalculatorExpr {
      * Remove all tokens from the expression.
      */
     public void clear() {
+        mCompiled = null;
         mExpr.clear();
+        invalidateCheckpoints(0);
     }
 
     public boolean isEmpty() {
@@ -608,6 +681,14 @@ class CalculatorExpr {
                 result.mExpr.add(t);
             }
         }
+        synchronized(this) {
+            // Checkpoint values are immutable, and remain valid for the copy.
+            result.mCheckpoints.addAll(mCheckpoints);
+            result.mCheckpointDegreeMode = mCheckpointDegreeMode;
+            result.mCheckpointResolver = mCheckpointResolver;
+        }
+        // As is the compiled tree, until the copy is modified.
+        result.mCompiled = mCompiled;
         return result;
     }
 
@@ -633,20 +714,6 @@ class CalculatorExpr {
         return result;
     }
 
-    /**
-     * Internal evaluation functions return an EvalRet pair.
-     * We compute rational (BoundedRational) results when possible, both as a performance
-     * optimization, and to detect errors exactly when we can.
-     */
-    private static class EvalRet {
-        public int pos; // Next position (expression index) to be parsed.
-        public final UnifiedReal val; // Constructive Real result of evaluating subexpression.
-        EvalRet(int p, UnifiedReal v) {
-            pos = p;
-            val = v;
-        }
-    }
-
     /**
      * Internal evaluation functions take an EvalContext argument.
      */
@@ -670,7 +737,7 @@ class CalculatorExpr {
         }
     }
 
-    private UnifiedReal toRadians(UnifiedReal x, EvalContext ec) {
+    private static UnifiedReal toRadians(UnifiedReal x, EvalContext ec) {
         if (ec.mDegreeMode) {
             return x.multiply(UnifiedReal.RADIANS_PER_DEGREE);
         } else {
@@ -678,7 +745,7 @@ class CalculatorExpr {
         }
     }
 
-    private UnifiedReal fromRadians(UnifiedReal x, EvalContext ec) {
+    private static UnifiedReal fromRadians(UnifiedReal x, EvalContext ec) {
         if (ec.mDegreeMode) {
             return x.divide(UnifiedReal.RADIANS_PER_DEGREE);
         } else {
@@ -686,8 +753,27 @@ class CalculatorExpr {
         }
     }
 
+    private static final DoubleInterval RADIANS_PER_DEGREE_INTERVAL =
+            DoubleInterval.valueOf(UnifiedReal.RADIANS_PER_DEGREE);
+
+    private static DoubleInterval toRadians(DoubleInterval x, EvalContext ec) {
+        if (ec.mDegreeMode) {
+            return x.multiply(RADIANS_PER_DEGREE_INTERVAL);
+        } else {
+            return x;
+        }
+    }
+
+    private static DoubleInterval fromRadians(DoubleInterval x, EvalContext ec) {
+        if (ec.mDegreeMode && x != null) {
+            return x.divide(RADIANS_PER_DEGREE_INTERVAL);
+        } else {
+            return x;
+        }
+    }
+
     // The following methods can all throw IndexOutOfBoundsException in the event of a syntax
-    // error.  We expect that to be caught in eval below.
+    // error.  We expect that to be caught by the Compiler below.
 
     private boolean isOperatorUnchecked(int i, int op) {
         Token t = mExpr.get(i);
@@ -697,13 +783,6 @@ class CalculatorExpr {
         return ((Operator)(t)).id == op;
     }
 
-    private boolean isOperator(int i, int op, EvalContext ec) {
-        if (i >= ec.mPrefixLength) {
-            return false;
-        }
-        return isOperatorUnchecked(i, op);
-    }
-
     public static class SyntaxException extends Exception {
         public SyntaxException() {
             super();
@@ -713,155 +792,21 @@ class CalculatorExpr {
         }
     }
 
-    // The following functions all evaluate some kind of expression starting at position i in
-    // mExpr in a specified evaluation context.  They return both the expression value (as
-    // constructive real and, if applicable, as BoundedRational) and the position of the next token
-    // that was not used as part of the evaluation.
-    // This is essentially a simple recursive descent parser combined with expression evaluation.
-
-    private EvalRet evalUnary(int i, EvalContext ec) throws SyntaxException {
-        final Token t = mExpr.get(i);
-        if (t instanceof Constant) {
-            Constant c = (Constant)t;
-            return new EvalRet(i+1,new UnifiedReal(c.toRational()));
-        }
-        if (t instanceof PreEval) {
-            final long index = ((PreEval)t).mIndex;
-            UnifiedReal res = ec.mExprResolver.getResult(index);
-            if (res == null) {
-                // We try to minimize this recursive evaluation case, but currently don't
-                // completely avoid it.
-                res = nestedEval(index, ec.mExprResolver);
-            }
-            return new EvalRet(i+1, res);
-        }
-        EvalRet argVal;
-        switch(((Operator)(t)).id) {
-        case R.id.const_pi:
-            return new EvalRet(i+1, UnifiedReal.PI);
-        case R.id.const_e:
-            return new EvalRet(i+1, UnifiedReal.E);
-        case R.id.op_sqrt:
-            // Seems to have highest precedence.
-            // Does not add implicit paren.
-            // Does seem to accept a leading minus.
-            if (isOperator(i+1, R.id.op_sub, ec)) {
-                argVal = evalUnary(i+2, ec);
-                return new EvalRet(argVal.pos, argVal.val.negate().sqrt());
-            } else {
-                argVal = evalUnary(i+1, ec);
-                return new EvalRet(argVal.pos, argVal.val.sqrt());
-            }
-        case R.id.lparen:
-            argVal = evalExpr(i+1, ec);
-            if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                argVal.pos++;
-            }
-            return new EvalRet(argVal.pos, argVal.val);
-        case R.id.fun_sin:
-            argVal = evalExpr(i+1, ec);
-            if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                argVal.pos++;
-            }
-            return new EvalRet(argVal.pos, toRadians(argVal.val, ec).sin());
-        case R.id.fun_cos:
-            argVal = evalExpr(i+1, ec);
-            if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                argVal.pos++;
-            }
-            return new EvalRet(argVal.pos, toRadians(argVal.val,ec).cos());
-        case R.id.fun_tan:
-            argVal = evalExpr(i+1, ec);
-            if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                argVal.pos++;
-            }
-            UnifiedReal arg = toRadians(argVal.val, ec);
-            return new EvalRet(argVal.pos, arg.sin().divide(arg.cos()));
-        case R.id.fun_ln:
-            argVal = evalExpr(i+1, ec);
-            if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                argVal.pos++;
-            }
-            return new EvalRet(argVal.pos, argVal.val.ln());
-        case R.id.fun_exp:
-            argVal = evalExpr(i+1, ec);
-            if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                argVal.pos++;
-            }
-            return new EvalRet(argVal.pos, argVal.val.exp());
-        case R.id.fun_log:
-            argVal = evalExpr(i+1, ec);
-            if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                argVal.pos++;
-            }
-            return new EvalRet(argVal.pos, argVal.val.ln().divide(UnifiedReal.TEN.ln()));
-        case R.id.fun_arcsin:
-            argVal = evalExpr(i+1, ec);
-            if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                argVal.pos++;
-            }
-            return new EvalRet(argVal.pos, fromRadians(argVal.val.asin(), ec));
-        case R.id.fun_arccos:
-            argVal = evalExpr(i+1, ec);
-            if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                argVal.pos++;
-            }
-            return new EvalRet(argVal.pos, fromRadians(argVal.val.acos(), ec));
-        case R.id.fun_arctan:
-            argVal = evalExpr(i+1, ec);
-            if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                argVal.pos++;
-            }
-            return new EvalRet(argVal.pos, fromRadians(argVal.val.atan(),ec));
-        default:
-            throw new SyntaxException("Unrecognized token in expression");
-        }
-    }
+    // Expressions are evaluated by compiling them into a Program, a sequence of Nodes in postfix
+    // order that is run with an explicit stack of values.  Immutable expressions, e.g. those in
+    // the history, are typically evaluated many times, both directly and as referenced
+    // subexpressions.  They are parsed only once, and constants are converted to UnifiedReals
+    // during compilation.
+    // Nodes appear in the program in exactly the order in which a recursive descent evaluator
+    // would perform the corresponding operations.
+    // If parsing fails, the program ends with a Fail node at the point at which the error was
+    // detected.  Thus errors are reported as if parsing and evaluation were interleaved, e.g. a
+    // division by zero preceding a syntax error still yields a division by zero error.
 
     private static final UnifiedReal ONE_HUNDREDTH = new UnifiedReal(100).inverse();
-
-    private EvalRet evalSuffix(int i, EvalContext ec) throws SyntaxException {
-        final EvalRet tmp = evalUnary(i, ec);
-        int cpos = tmp.pos;
-        UnifiedReal val = tmp.val;
-
-        boolean isFact;
-        boolean isSquared = false;
-        while ((isFact = isOperator(cpos, R.id.op_fact, ec)) ||
-                (isSquared = isOperator(cpos, R.id.op_sqr, ec)) ||
-                isOperator(cpos, R.id.op_pct, ec)) {
-            if (isFact) {
-                val = val.fact();
-            } else if (isSquared) {
-                val = val.multiply(val);
-            } else /* percent */ {
-                val = val.multiply(ONE_HUNDREDTH);
-            }
-            ++cpos;
-        }
-        return new EvalRet(cpos, val);
-    }
-
-    private EvalRet evalFactor(int i, EvalContext ec) throws SyntaxException {
-        final EvalRet result1 = evalSuffix(i, ec);
-        int cpos = result1.pos;  // current position
-        UnifiedReal val = result1.val;   // value so far
-        if (isOperator(cpos, R.id.op_pow, ec)) {
-            final EvalRet exp = evalSignedFactor(cpos + 1, ec);
-            cpos = exp.pos;
-            val = val.pow(exp.val);
-        }
-        return new EvalRet(cpos, val);
-    }
-
-    private EvalRet evalSignedFactor(int i, EvalContext ec) throws SyntaxException {
-        final boolean negative = isOperator(i, R.id.op_sub, ec);
-        int cpos = negative ? i + 1 : i;
-        EvalRet tmp = evalFactor(cpos, ec);
-        cpos = tmp.pos;
-        final UnifiedReal result = negative ? tmp.val.negate() : tmp.val;
-        return new EvalRet(cpos, result);
-    }
+    private static final DoubleInterval ONE_HUNDREDTH_INTERVAL =
+            DoubleInterval.valueOf(ONE_HUNDREDTH);
+    private static final DoubleInterval ONE_INTERVAL = DoubleInterval.valueOf(UnifiedReal.ONE);
 
     private boolean canStartFactor(int i) {
         if (i >= mExpr.size()) return false;
@@ -878,28 +823,6 @@ class CalculatorExpr {
         }
     }
 
-    private EvalRet evalTerm(int i, EvalContext ec) throws SyntaxException {
-        EvalRet tmp = evalSignedFactor(i, ec);
-        boolean is_mul = false;
-        boolean is_div = false;
-        int cpos = tmp.pos;   // Current position in expression.
-        UnifiedReal val = tmp.val;    // Current value.
-        while ((is_mul = isOperator(cpos, R.id.op_mul, ec))
-               || (is_div = isOperator(cpos, R.id.op_div, ec))
-               || canStartFactor(cpos)) {
-            if (is_mul || is_div) ++cpos;
-            tmp = evalSignedFactor(cpos, ec);
-            if (is_div) {
-                val = val.divide(tmp.val);
-            } else {
-                val = val.multiply(tmp.val);
-            }
-            cpos = tmp.pos;
-            is_mul = is_div = false;
-        }
-        return new EvalRet(cpos, val);
-    }
-
     /**
      * Is the subexpression starting at pos a simple percent constant?
      * This is used to recognize exppressions like 200+10%, which we handle specially.
@@ -930,41 +853,666 @@ class CalculatorExpr {
     }
 
     /**
-     * Compute the multiplicative factor corresponding to an N% addition or subtraction.
-     * @param pos position of Constant or PreEval expression token corresponding to N.
-     * @param isSubtraction this is a subtraction, as opposed to addition.
-     * @param ec usable evaluation contex; only length matters.
-     * @return UnifiedReal value and position, which is pos + 2, i.e. after percent sign
+     * Apply the function or unary operator with the given button id to x.  op_sub denotes
+     * negation.
+     */
+    private static UnifiedReal applyFunction(int op, UnifiedReal x, EvalContext ec) {
+        switch (op) {
+        case R.id.op_sub:
+            return x.negate();
+        case R.id.op_sqrt:
+            return x.sqrt();
+        case R.id.op_fact:
+            return x.fact();
+        case R.id.op_sqr:
+            return x.multiply(x);
+        case R.id.op_pct:
+            return x.multiply(ONE_HUNDREDTH);
+        case R.id.fun_sin:
+            return toRadians(x, ec).sin();
+        case R.id.fun_cos:
+            return toRadians(x, ec).cos();
+        case R.id.fun_tan:
+            final UnifiedReal arg = toRadians(x, ec);
+            return arg.sin().divide(arg.cos());
+        case R.id.fun_ln:
+            return x.ln();
+        case R.id.fun_exp:
+            return x.exp();
+        case R.id.fun_log:
+            return x.ln().divide(UnifiedReal.TEN.ln());
+        case R.id.fun_arcsin:
+            return fromRadians(x.asin(), ec);
+        case R.id.fun_arccos:
+            return fromRadians(x.acos(), ec);
+        case R.id.fun_arctan:
+            return fromRadians(x.atan(), ec);
+        default:
+            throw new AssertionError("Unexpected function");
+        }
+    }
+
+    /**
+     * Interval analog of the above.  Returns null if the interval computation failed.
+     */
+    private static DoubleInterval applyFunction(int op, DoubleInterval x, EvalContext ec) {
+        switch (op) {
+        case R.id.op_sub:
+            return x.negate();
+        case R.id.op_sqrt:
+            return x.sqrt();
+        case R.id.op_fact:
+            return x.fact();
+        case R.id.op_sqr:
+            return x.multiply(x);
+        case R.id.op_pct:
+            return x.multiply(ONE_HUNDREDTH_INTERVAL);
+        case R.id.fun_sin:
+        case R.id.fun_cos:
+        case R.id.fun_tan:
+            final DoubleInterval arg = toRadians(x, ec);
+            if (arg == null) {
+                return null;
+            }
+            return op == R.id.fun_sin ? arg.sin() : op == R.id.fun_cos ? arg.cos() : arg.tan();
+        case R.id.fun_ln:
+            return x.ln();
+        case R.id.fun_exp:
+            return x.exp();
+        case R.id.fun_log:
+            return x.log();
+        case R.id.fun_arcsin:
+            return fromRadians(x.asin(), ec);
+        case R.id.fun_arccos:
+            return fromRadians(x.acos(), ec);
+        case R.id.fun_arctan:
+            return fromRadians(x.atan(), ec);
+        default:
+            throw new AssertionError("Unexpected function");
+        }
+    }
+
+    /**
+     * A single step of a compiled Program.  Immutable, and thus shareable between threads and
+     * between an expression and its clones.
+     */
+    private static abstract class Node {
+        /**
+         * Apply this step to the values stack[0, sp), and return the new number of values.
+         */
+        abstract int eval(UnifiedReal[] stack, int sp, EvalContext ec) throws SyntaxException;
+        /**
+         * Interval analog of eval().  Return -1 if the interval computation failed.
+         * See evalInterval() below.
+         */
+        abstract int evalInterval(DoubleInterval[] stack, int sp, EvalContext ec);
+    }
+
+    /**
+     * Push a constant, including pi and e.
+     */
+    private static final class Value extends Node {
+        private final UnifiedReal mVal;
+        private final DoubleInterval mInterval;
+        Value(UnifiedReal val) {
+            mVal = val;
+            mInterval = DoubleInterval.valueOf(val);
+        }
+        @Override
+        int eval(UnifiedReal[] stack, int sp, EvalContext ec) {
+            stack[sp] = mVal;
+            return sp + 1;
+        }
+        @Override
+        int evalInterval(DoubleInterval[] stack, int sp, EvalContext ec) {
+            if (mInterval == null) {
+                return -1;
+            }
+            stack[sp] = mInterval;
+            return sp + 1;
+        }
+    }
+
+    /**
+     * Push the value of a PreEval token, i.e. of another expression.
+     */
+    private static final class Reference extends Node {
+        private final long mIndex;
+        Reference(long index) {
+            mIndex = index;
+        }
+        @Override
+        int eval(UnifiedReal[] stack, int sp, EvalContext ec) throws SyntaxException {
+            UnifiedReal res = ec.mExprResolver.getResult(mIndex);
+            if (res == null) {
+                // We try to minimize this recursive evaluation case, but currently don't
+                // completely avoid it.
+                res = nestedEval(mIndex, ec.mExprResolver);
+            }
+            stack[sp] = res;
+            return sp + 1;
+        }
+        @Override
+        int evalInterval(DoubleInterval[] stack, int sp, EvalContext ec) {
+            // Don't wait for referenced expressions that haven't been evaluated.
+            final UnifiedReal res = ec.mExprResolver.getResult(mIndex);
+            if (res == null) {
+                return -1;
+            }
+            stack[sp] = DoubleInterval.valueOf(res);
+            return stack[sp] == null ? -1 : sp + 1;
+        }
+    }
+
+    /**
+     * Apply a function or unary operator, identified by its button id, to the top value.
+     * op_sub denotes negation.
+     */
+    private static final class Function extends Node {
+        private final int mOp;
+        Function(int op) {
+            mOp = op;
+        }
+        @Override
+        int eval(UnifiedReal[] stack, int sp, EvalContext ec) {
+            stack[sp - 1] = applyFunction(mOp, stack[sp - 1], ec);
+            return sp;
+        }
+        @Override
+        int evalInterval(DoubleInterval[] stack, int sp, EvalContext ec) {
+            stack[sp - 1] = applyFunction(mOp, stack[sp - 1], ec);
+            return stack[sp - 1] == null ? -1 : sp;
+        }
+    }
+
+    /**
+     * Combine the top two values with the binary operator with the given button id.
+     */
+    private static final class Binary extends Node {
+        private final int mOp;
+        Binary(int op) {
+            mOp = op;
+        }
+        @Override
+        int eval(UnifiedReal[] stack, int sp, EvalContext ec) {
+            final UnifiedReal x = stack[sp - 2];
+            final UnifiedReal y = stack[sp - 1];
+            switch (mOp) {
+            case R.id.op_add:
+                stack[sp - 2] = x.add(y);
+                break;
+            case R.id.op_sub:
+                stack[sp - 2] = x.subtract(y);
+                break;
+            case R.id.op_mul:
+                stack[sp - 2] = x.multiply(y);
+                break;
+            case R.id.op_div:
+                stack[sp - 2] = x.divide(y);
+                break;
+            case R.id.op_pow:
+                stack[sp - 2] = x.pow(y);
+                break;
+            default:
+                throw new AssertionError("Unexpected binary operator");
+            }
+            return sp - 1;
+        }
+        @Override
+        int evalInterval(DoubleInterval[] stack, int sp, EvalContext ec) {
+            final DoubleInterval x = stack[sp - 2];
+            final DoubleInterval y = stack[sp - 1];
+            final DoubleInterval result;
+            switch (mOp) {
+            case R.id.op_add:
+                result = x.add(y);
+                break;
+            case R.id.op_sub:
+                result = x.subtract(y);
+                break;
+            case R.id.op_mul:
+                result = x.multiply(y);
+                break;
+            case R.id.op_div:
+                result = x.divide(y);
+                break;
+            case R.id.op_pow:
+                result = x.pow(y);
+                break;
+            default:
+                throw new AssertionError("Unexpected binary operator");
+            }
+            stack[sp - 2] = result;
+            return result == null ? -1 : sp - 1;
+        }
+    }
+
+    /**
+     * Increase or decrease the second value by the percentage given by the top value,
+     * as in 200+10%.  See isPercent().
+     */
+    private static final class PercentChange extends Node {
+        private final boolean mIsSubtraction;
+        PercentChange(boolean isSubtraction) {
+            mIsSubtraction = isSubtraction;
+        }
+        @Override
+        int eval(UnifiedReal[] stack, int sp, EvalContext ec) {
+            final UnifiedReal percent = mIsSubtraction ? stack[sp - 1].negate() : stack[sp - 1];
+            stack[sp - 2] = stack[sp - 2].multiply(
+                    UnifiedReal.ONE.add(percent.multiply(ONE_HUNDREDTH)));
+            return sp - 1;
+        }
+        @Override
+        int evalInterval(DoubleInterval[] stack, int sp, EvalContext ec) {
+            final DoubleInterval percent =
+                    mIsSubtraction ? stack[sp - 1].negate() : stack[sp - 1];
+            final DoubleInterval scaled = percent.multiply(ONE_HUNDREDTH_INTERVAL);
+            final DoubleInterval factor = scaled == null ? null : ONE_INTERVAL.add(scaled);
+            stack[sp - 2] = factor == null ? null : stack[sp - 2].multiply(factor);
+            return stack[sp - 2] == null ? -1 : sp - 1;
+        }
+    }
+
+    /**
+     * Marks a top-level additive operator, before which the only value on the stack is that of
+     * the preceding terms.  Evaluation records a checkpoint here, and can resume here.
+     */
+    private static final class Mark extends Node {
+        public final int mPos;  // Token position of the operator.
+        Mark(int pos) {
+            mPos = pos;
+        }
+        @Override
+        int eval(UnifiedReal[] stack, int sp, EvalContext ec) {
+            return sp;
+        }
+        @Override
+        int evalInterval(DoubleInterval[] stack, int sp, EvalContext ec) {
+            return sp;
+        }
+    }
+
+    /**
+     * Report the error at which compilation stopped.
      */
-    private EvalRet getPercentFactor(int pos, boolean isSubtraction, EvalContext ec)
-            throws SyntaxException {
-        EvalRet tmp = evalUnary(pos, ec);
-        UnifiedReal val = isSubtraction ? tmp.val.negate() : tmp.val;
-        val = UnifiedReal.ONE.add(val.multiply(ONE_HUNDREDTH));
-        return new EvalRet(pos + 2 /* after percent sign */, val);
-    }
-
-    private EvalRet evalExpr(int i, EvalContext ec) throws SyntaxException {
-        EvalRet tmp = evalTerm(i, ec);
-        boolean is_plus;
-        int cpos = tmp.pos;
-        UnifiedReal val = tmp.val;
-        while ((is_plus = isOperator(cpos, R.id.op_add, ec))
-               || isOperator(cpos, R.id.op_sub, ec)) {
-            if (isPercent(cpos + 1)) {
-                tmp = getPercentFactor(cpos + 1, !is_plus, ec);
-                val = val.multiply(tmp.val);
+    private static final class Fail extends Node {
+        private final String mMessage;
+        Fail(String message) {
+            mMessage = message;
+        }
+        @Override
+        int eval(UnifiedReal[] stack, int sp, EvalContext ec) throws SyntaxException {
+            throw new SyntaxException(mMessage);
+        }
+        @Override
+        int evalInterval(DoubleInterval[] stack, int sp, EvalContext ec) {
+            return -1;
+        }
+    }
+
+    /**
+     * The result of compiling an expression prefix, or the part of it following a checkpoint.
+     */
+    private static final class Program {
+        public final int mPrefixLength;
+        public final int mStart;  // Position of the checkpoint we start from, or 0.
+        private final Node[] mCode;
+        private final int mMaxDepth;  // Maximum number of values on the stack.
+
+        Program(int prefixLength, int start, Node[] code, int maxDepth) {
+            mPrefixLength = prefixLength;
+            mStart = start;
+            mCode = code;
+            mMaxDepth = maxDepth;
+        }
+
+        /**
+         * Return the index of the Mark for the operator at pos, or -1.
+         */
+        private int resumePoint(int pos) {
+            for (int i = 0; i < mCode.length; ++i) {
+                if (mCode[i] instanceof Mark && ((Mark) mCode[i]).mPos == pos) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Can we evaluate the expression prefix of the given length, starting from cp if
+         * that is not null?
+         */
+        boolean isUsable(int prefixLength, Checkpoint cp) {
+            return mPrefixLength == prefixLength
+                    && (mStart == 0 || cp != null && resumePoint(cp.mPos) >= 0);
+        }
+
+        /**
+         * Evaluate, resuming from cp if possible.  If expr is not null, record checkpoints in
+         * it as we go.
+         */
+        UnifiedReal eval(EvalContext ec, Checkpoint cp, CalculatorExpr expr)
+                throws SyntaxException {
+            final UnifiedReal[] stack = new UnifiedReal[mMaxDepth];
+            int sp = 0;
+            int i = cp == null ? -1 : resumePoint(cp.mPos);
+            if (i >= 0) {
+                stack[sp++] = cp.mVal;
+            } else if (mStart == 0) {
+                i = 0;
+            } else {
+                throw new AssertionError("Missing checkpoint");
+            }
+            for (; i < mCode.length; ++i) {
+                final Node node = mCode[i];
+                if (expr != null && node instanceof Mark) {
+                    expr.addCheckpoint(((Mark) node).mPos, stack[0], ec);
+                }
+                sp = node.eval(stack, sp, ec);
+            }
+            return stack[0];
+        }
+
+        /**
+         * Interval analog of eval().  Returns null on failure.
+         */
+        DoubleInterval evalInterval(EvalContext ec, Checkpoint cp) {
+            final DoubleInterval[] stack = new DoubleInterval[mMaxDepth];
+            int sp = 0;
+            int i = cp == null ? -1 : resumePoint(cp.mPos);
+            if (i >= 0) {
+                stack[sp++] = DoubleInterval.valueOf(cp.mVal);
+                if (stack[0] == null) {
+                    return null;
+                }
+            } else if (mStart == 0) {
+                i = 0;
+            } else {
+                throw new AssertionError("Missing checkpoint");
+            }
+            for (; i < mCode.length && sp >= 0; ++i) {
+                sp = mCode[i].evalInterval(stack, sp, ec);
+            }
+            return sp < 0 ? null : stack[0];
+        }
+    }
+
+    /**
+     * An operator still waiting for (the rest of) its operand to be compiled.
+     */
+    private static final class PendingOp {
+        public final int mKind;
+        public final int mOp;  // Button id of the operator, or of the function.
+        PendingOp(int kind, int op) {
+            mKind = kind;
+            mOp = op;
+        }
+    }
+
+    // Kinds of pending operators, with the construct each waits for.
+    private static final int GROUP = 0;  // Parenthesis or function: expr.
+    private static final int PREFIX = 1;  // Square root, or negation of its argument: unary.
+    private static final int NEGATION = 2;  // Leading minus sign: factor.
+    private static final int POWER = 3;  // signedFactor.
+    private static final int MULTIPLICATIVE = 4;  // signedFactor.
+    private static final int ADDITIVE = 5;  // term.
+
+    // Compiler states.
+    private static final int SIGNED_FACTOR = 0;  // At the start of a signedFactor.
+    private static final int UNARY = 1;  // At the start of a unary.
+    private static final int AFTER_UNARY = 2;  // Just after a complete unary.
+    private static final int AFTER_TERM = 3;  // Just after a complete term.
+
+    /**
+     * Translates the token list into a Program.  This parses the grammar
+     *   expr := term {('+' | '-') (percent | term)}
+     *   term := signedFactor {['*' | '/'] signedFactor}
+     *   signedFactor := ['-'] factor
+     *   factor := unary {'!' | squared | '%'} ['^' signedFactor]
+     *   unary := constant | sqrt ['-'] unary | ('(' | function) expr [')']
+     * where juxtaposition also denotes multiplication, and percent is described by isPercent().
+     * Pasted expressions may be nested thousands of levels deep.  Thus rather than recursing,
+     * we keep operators on an explicit stack until their operand is complete, and emit them
+     * exactly when a recursive descent parser would return from the corresponding call.
+     */
+    private final class Compiler {
+        private final int mPrefixLength;
+        private int mPos = 0;
+        private final ArrayList<Node> mCode = new ArrayList<Node>();
+        private int mDepth = 0;  // Number of values on the stack after running mCode.
+        private int mMaxDepth = 0;
+        private final ArrayDeque<PendingOp> mPending = new ArrayDeque<PendingOp>();
+
+        Compiler(int prefixLength) {
+            mPrefixLength = prefixLength;
+        }
+
+        private boolean isOperator(int i, int op) {
+            return i < mPrefixLength && isOperatorUnchecked(i, op);
+        }
+
+        /**
+         * Append node, which changes the number of values on the stack by delta.
+         */
+        private void emit(Node node, int delta) {
+            mCode.add(node);
+            mDepth += delta;
+            mMaxDepth = Math.max(mMaxDepth, mDepth);
+        }
+
+        private boolean pendingIs(int kind) {
+            return !mPending.isEmpty() && mPending.peek().mKind == kind;
+        }
+
+        /**
+         * Emit the innermost pending operator, whose operand is now complete.
+         */
+        private void emitPending() {
+            final PendingOp p = mPending.pop();
+            if (p.mKind == PREFIX || p.mKind == NEGATION) {
+                emit(new Function(p.mOp), 0);
+            } else {
+                emit(new Binary(p.mOp), -1);
+            }
+        }
+
+        /**
+         * Compile the Constant or PreEval token at mPos.
+         */
+        private void compileOperand() throws SyntaxException {
+            final Token t = mExpr.get(mPos);
+            if (t instanceof Constant) {
+                emit(new Value(new UnifiedReal(((Constant) t).toRational())), 1);
             } else {
-                tmp = evalTerm(cpos + 1, ec);
-                if (is_plus) {
-                    val = val.add(tmp.val);
+                emit(new Reference(((PreEval) t).mIndex), 1);
+            }
+            ++mPos;
+        }
+
+        /**
+         * Compile the unary starting at mPos as far as possible, and return the next state.
+         */
+        private int compileUnary() throws SyntaxException {
+            final Token t = mExpr.get(mPos);
+            if (!(t instanceof Operator)) {
+                compileOperand();
+                return AFTER_UNARY;
+            }
+            final int id = ((Operator) t).id;
+            switch (id) {
+            case R.id.const_pi:
+                emit(new Value(UnifiedReal.PI), 1);
+                ++mPos;
+                return AFTER_UNARY;
+            case R.id.const_e:
+                emit(new Value(UnifiedReal.E), 1);
+                ++mPos;
+                return AFTER_UNARY;
+            case R.id.op_sqrt:
+                // Seems to have highest precedence.
+                // Does not add implicit paren.
+                // Does seem to accept a leading minus.
+                mPending.push(new PendingOp(PREFIX, R.id.op_sqrt));
+                if (isOperator(mPos + 1, R.id.op_sub)) {
+                    mPending.push(new PendingOp(PREFIX, R.id.op_sub));
+                    mPos += 2;
                 } else {
-                    val = val.subtract(tmp.val);
+                    ++mPos;
+                }
+                return UNARY;
+            case R.id.lparen:
+            case R.id.fun_sin:
+            case R.id.fun_cos:
+            case R.id.fun_tan:
+            case R.id.fun_ln:
+            case R.id.fun_exp:
+            case R.id.fun_log:
+            case R.id.fun_arcsin:
+            case R.id.fun_arccos:
+            case R.id.fun_arctan:
+                mPending.push(new PendingOp(GROUP, id));
+                ++mPos;
+                return SIGNED_FACTOR;
+            default:
+                throw new SyntaxException("Unrecognized token in expression");
+            }
+        }
+
+        /**
+         * Continue after a complete unary, and return the next state.
+         */
+        private int compileAfterUnary() {
+            // The unary completes the operand of any pending square roots.
+            while (pendingIs(PREFIX)) {
+                emitPending();
+            }
+            while (isOperator(mPos, R.id.op_fact) || isOperator(mPos, R.id.op_sqr)
+                    || isOperator(mPos, R.id.op_pct)) {
+                emit(new Function(((Operator) mExpr.get(mPos)).id), 0);
+                ++mPos;
+            }
+            if (isOperator(mPos, R.id.op_pow)) {
+                mPending.push(new PendingOp(POWER, R.id.op_pow));
+                ++mPos;
+                return SIGNED_FACTOR;
+            }
+            // The factor is complete.  So is any exponent it ends, and the factor raised to it.
+            while (pendingIs(NEGATION) || pendingIs(POWER)) {
+                emitPending();
+            }
+            if (pendingIs(MULTIPLICATIVE)) {
+                emitPending();
+            }
+            final boolean is_mul = isOperator(mPos, R.id.op_mul);
+            final boolean is_div = !is_mul && isOperator(mPos, R.id.op_div);
+            if (is_mul || is_div || canStartFactor(mPos)) {
+                mPending.push(new PendingOp(MULTIPLICATIVE, is_div ? R.id.op_div : R.id.op_mul));
+                if (is_mul || is_div) ++mPos;
+                return SIGNED_FACTOR;
+            }
+            return AFTER_TERM;
+        }
+
+        /**
+         * Continue after a complete term.  Return the next state, or -1 if the top-level
+         * expression is complete.
+         */
+        private int compileAfterTerm() throws SyntaxException {
+            if (pendingIs(ADDITIVE)) {
+                emitPending();
+            }
+            final boolean is_plus = isOperator(mPos, R.id.op_add);
+            if (is_plus || isOperator(mPos, R.id.op_sub)) {
+                if (mPending.isEmpty()) {
+                    emit(new Mark(mPos), 0);
+                }
+                if (isPercent(mPos + 1)) {
+                    ++mPos;
+                    compileOperand();
+                    ++mPos;  // Skip the percent sign.
+                    emit(new PercentChange(!is_plus), -1);
+                    return AFTER_TERM;
+                }
+                mPending.push(new PendingOp(ADDITIVE, is_plus ? R.id.op_add : R.id.op_sub));
+                ++mPos;
+                return SIGNED_FACTOR;
+            }
+            // The expression is complete.
+            if (mPending.isEmpty()) {
+                return -1;
+            }
+            final PendingOp group = mPending.pop();
+            if (isOperator(mPos, R.id.rparen)) {
+                ++mPos;
+            }
+            if (group.mOp != R.id.lparen) {
+                emit(new Function(group.mOp), 0);
+            }
+            return AFTER_UNARY;
+        }
+
+        /**
+         * Compile the expression prefix, or only the part following the additive operator at
+         * start, whose preceding value will be supplied by a checkpoint.
+         */
+        Program compile(int start) {
+            mPos = start;
+            int state = SIGNED_FACTOR;
+            if (start != 0) {
+                mDepth = mMaxDepth = 1;
+                state = AFTER_TERM;
+            }
+            try {
+                while (state != -1) {
+                    switch (state) {
+                    case SIGNED_FACTOR:
+                        if (isOperator(mPos, R.id.op_sub)) {
+                            mPending.push(new PendingOp(NEGATION, R.id.op_sub));
+                            ++mPos;
+                        }
+                        state = UNARY;
+                        break;
+                    case UNARY:
+                        state = compileUnary();
+                        break;
+                    case AFTER_UNARY:
+                        state = compileAfterUnary();
+                        break;
+                    default:
+                        state = compileAfterTerm();
+                    }
                 }
+                if (mPos != mPrefixLength) {
+                    throw new SyntaxException("Failed to parse full expression");
+                }
+            } catch (SyntaxException e) {
+                mCode.add(new Fail(e.getMessage()));
+            } catch (IndexOutOfBoundsException e) {
+                mCode.add(new Fail("Unexpected expression end"));
             }
-            cpos = tmp.pos;
+            return new Program(mPrefixLength, start, mCode.toArray(new Node[mCode.size()]),
+                    mMaxDepth);
+        }
+    }
+
+    // Most recently compiled form of this expression, or null.  Reset whenever the expression
+    // is modified.
+    private volatile Program mCompiled;
+
+    /**
+     * Return a program for the expression prefix of the given length, which can be run from the
+     * checkpoint cp, if that is not null, compiling it if necessary.  If there is a checkpoint
+     * and nothing usable was compiled, we compile only the part following it.  Instant
+     * evaluation thus only recompiles the trailing terms on every keystroke.
+     */
+    private Program getProgram(int prefixLength, Checkpoint cp) {
+        Program program = mCompiled;
+        if (program == null || !program.isUsable(prefixLength, cp)) {
+            program = new Compiler(prefixLength).compile(cp == null ? 0 : cp.mPos);
+            mCompiled = program;
         }
-        return new EvalRet(cpos, val);
+        return program;
     }
 
     /**
@@ -1036,37 +1584,263 @@ class CalculatorExpr {
     }
 
     /**
-     * Return a list of unevaluated expressions transitively referenced by the current one.
-     * All expressions in the resulting list will have had er.getExpr() called on them.
-     * The resulting list is ordered such that evaluating expressions in list order
-     * should trigger few recursive evaluations.
+     * Add the indices of all PreEval expressions directly embedded in the current expression,
+     * evaluated or not, to the end of the argument.  The result may contain duplicates.
      */
-    public ArrayList<Long> getTransitivelyReferencedExprs(ExprResolver er) {
-        // We could avoid triggering any recursive evaluations by actually building the
-        // dependency graph and topologically sorting it. Note that sorting by index works
-        // for positive and negative indices separately, but not their union. Currently we
-        // just settle for reverse breadth-first-search order, which handles the common case
-        // of simple dependency chains well.
+    public void addAllReferencedExprs(List<Long> list) {
+        for (Token t : mExpr) {
+            if (t instanceof PreEval) {
+                list.add(((PreEval) t).mIndex);
+            }
+        }
+    }
+
+    /**
+     * Return the dependency graph of unevaluated expressions transitively referenced by the
+     * current one.  Maps each such expression index to the list of unevaluated expressions it
+     * references directly.  Keys are in breadth-first-search order.
+     * All expressions in the graph will have had er.getExpr() called on them.
+     */
+    private LinkedHashMap<Long, ArrayList<Long>> getReferenceGraph(ExprResolver er) {
+        LinkedHashMap<Long, ArrayList<Long>> graph = new LinkedHashMap<Long, ArrayList<Long>>();
         ArrayList<Long> list = new ArrayList<Long>();
-        int scanned = 0;  // We've added expressions referenced by [0, scanned) to the list
+        int scanned = 0;  // We've added expressions referenced by [0, scanned) to the graph.
         addReferencedExprs(list, er);
+        HashSet<Long> seen = new HashSet<Long>(list);  // Elements of list.
         while (scanned != list.size()) {
-            er.getExpr(list.get(scanned++)).addReferencedExprs(list, er);
+            final Long index = list.get(scanned++);
+            ArrayList<Long> refs = new ArrayList<Long>();
+            er.getExpr(index).addReferencedExprs(refs, er);
+            graph.put(index, refs);
+            for (Long ref : refs) {
+                if (seen.add(ref)) {
+                    list.add(ref);
+                }
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Return the keys of the given reference graph in topological order, i.e. such that every
+     * expression follows all the expressions it references.
+     */
+    private static ArrayList<Long> topologicalOrder(LinkedHashMap<Long, ArrayList<Long>> graph) {
+        // Kahn's algorithm. Unresolved reference counts and reverse edges.
+        HashMap<Long, Integer> pending = new HashMap<Long, Integer>();
+        HashMap<Long, ArrayList<Long>> referencedBy = new HashMap<Long, ArrayList<Long>>();
+        ArrayDeque<Long> ready = new ArrayDeque<Long>();
+        for (Map.Entry<Long, ArrayList<Long>> e : graph.entrySet()) {
+            pending.put(e.getKey(), e.getValue().size());
+            if (e.getValue().isEmpty()) {
+                ready.add(e.getKey());
+            }
+            for (Long ref : e.getValue()) {
+                ArrayList<Long> users = referencedBy.get(ref);
+                if (users == null) {
+                    users = new ArrayList<Long>();
+                    referencedBy.put(ref, users);
+                }
+                users.add(e.getKey());
+            }
+        }
+        ArrayList<Long> result = new ArrayList<Long>(graph.size());
+        while (!ready.isEmpty()) {
+            final Long index = ready.remove();
+            result.add(index);
+            ArrayList<Long> users = referencedBy.get(index);
+            if (users != null) {
+                for (Long user : users) {
+                    final int remaining = pending.get(user) - 1;
+                    pending.put(user, remaining);
+                    if (remaining == 0) {
+                        ready.add(user);
+                    }
+                }
+            }
+        }
+        if (result.size() != graph.size()) {
+            // Expressions only refer to previously created ones.
+            throw new AssertionError("Cyclic expression reference");
         }
-        Collections.reverse(list);
-        return list;
+        return result;
+    }
+
+    /**
+     * Return a list of unevaluated expressions transitively referenced by the current one.
+     * All expressions in the resulting list will have had er.getExpr() called on them.
+     * The resulting list is topologically sorted, so that evaluating expressions in list order
+     * never triggers recursive evaluations.
+     */
+    public ArrayList<Long> getTransitivelyReferencedExprs(ExprResolver er) {
+        return topologicalOrder(getReferenceGraph(er));
     }
 
     /**
      * Evaluate the expression at the given index to a UnifiedReal.
      * Both saves and returns the result.
      */
-    UnifiedReal nestedEval(long index, ExprResolver er) throws SyntaxException {
+    static UnifiedReal nestedEval(long index, ExprResolver er) throws SyntaxException {
         CalculatorExpr nestedExpr = er.getExpr(index);
         EvalContext newEc = new EvalContext(er.getDegreeMode(index),
                 nestedExpr.trailingBinaryOpsStart(), er);
-        EvalRet new_res = nestedExpr.evalExpr(0, newEc);
-        return er.putResultIfAbsent(index, new_res.val);
+        final UnifiedReal val =
+                nestedExpr.getProgram(newEc.mPrefixLength, null).eval(newEc, null, null);
+        return er.putResultIfAbsent(index, val);
+    }
+
+    // Pools used to evaluate independent referenced expressions concurrently, indexed by the
+    // thread priority of the evaluation that needs them.  Each pool's workers run at that
+    // priority, so that e.g. reevaluation of history entries doesn't compete with the
+    // evaluation the user asked for.  Created lazily, since most expressions reference at most
+    // one other.  Idle workers exit on their own.
+    private static final HashMap<Integer, ForkJoinPool> sNestedEvalPools =
+            new HashMap<Integer, ForkJoinPool>();
+
+    /**
+     * A pool worker running at a fixed thread priority.
+     */
+    private static final class NestedEvalThread extends ForkJoinWorkerThread {
+        private final int mPriority;
+
+        NestedEvalThread(ForkJoinPool pool, int priority) {
+            super(pool);
+            mPriority = priority;
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            Process.setThreadPriority(mPriority);
+        }
+    }
+
+    /**
+     * Return the pool for evaluations at the given thread priority.
+     */
+    private static synchronized ForkJoinPool getNestedEvalPool(final int priority) {
+        ForkJoinPool pool = sNestedEvalPools.get(priority);
+        if (pool == null) {
+            pool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors() - 1),
+                    new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                        @Override
+                        public ForkJoinWorkerThread newThread(ForkJoinPool p) {
+                            return new NestedEvalThread(p, priority);
+                        }
+                    }, null, false);
+            sNestedEvalPools.put(priority, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Unchecked wrapper used to pass a SyntaxException out of a NestedEvalTask.
+     */
+    private static class WrappedSyntaxException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        WrappedSyntaxException(SyntaxException e) {
+            super(e);
+        }
+    }
+
+    /**
+     * Evaluation of a single referenced expression, after the expressions it references.
+     * The thread evaluating us is recorded, so that it can be interrupted if the thread waiting
+     * for the result is. Constructive real evaluation only notices interrupts of its own thread.
+     */
+    private class NestedEvalTask extends RecursiveTask<UnifiedReal> {
+        private static final long serialVersionUID = 1L;
+
+        private final long mIndex;
+        private final ExprResolver mExprResolver;
+        private final ArrayList<NestedEvalTask> mReferenced = new ArrayList<NestedEvalTask>();
+        private Thread mRunner;  // Protected by this.
+        private boolean mAborted;  // Protected by this.
+
+        NestedEvalTask(long index, ExprResolver er) {
+            mIndex = index;
+            mExprResolver = er;
+        }
+
+        @Override
+        protected UnifiedReal compute() {
+            for (NestedEvalTask t : mReferenced) {
+                t.join();
+            }
+            synchronized (this) {
+                if (mAborted) {
+                    throw new CR.AbortedException();
+                }
+                mRunner = Thread.currentThread();
+            }
+            try {
+                return nestedEval(mIndex, mExprResolver);
+            } catch (SyntaxException e) {
+                throw new WrappedSyntaxException(e);
+            } finally {
+                synchronized (this) {
+                    mRunner = null;
+                    // Don't leave a pending interrupt behind for an unrelated task.
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        synchronized void abort() {
+            mAborted = true;
+            if (mRunner != null) {
+                mRunner.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Evaluate the unevaluated expressions in the given reference graph, in parallel where
+     * the graph allows it.  Results are saved via er.putResultIfAbsent().
+     * @param order Keys of graph in topological order.
+     */
+    private void evalReferencedConcurrently(LinkedHashMap<Long, ArrayList<Long>> graph,
+            ArrayList<Long> order, ExprResolver er) throws SyntaxException {
+        HashMap<Long, NestedEvalTask> tasks = new HashMap<Long, NestedEvalTask>();
+        ArrayList<NestedEvalTask> taskList = new ArrayList<NestedEvalTask>(order.size());
+        for (Long index : order) {
+            NestedEvalTask task = new NestedEvalTask(index, er);
+            for (Long ref : graph.get(index)) {
+                task.mReferenced.add(tasks.get(ref));
+            }
+            tasks.put(index, task);
+            taskList.add(task);
+        }
+        final ForkJoinPool pool = getNestedEvalPool(Process.getThreadPriority(Process.myTid()));
+        // Submitting in topological order means that tasks usually find their references
+        // already evaluated, or being evaluated by another worker.
+        for (NestedEvalTask task : taskList) {
+            pool.execute(task);
+        }
+        try {
+            for (NestedEvalTask task : taskList) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            for (NestedEvalTask task : taskList) {
+                task.abort();
+            }
+            throw new CR.AbortedException();
+        } catch (ExecutionException e) {
+            for (NestedEvalTask task : taskList) {
+                task.abort();
+            }
+            final Throwable cause = e.getCause();
+            if (cause instanceof WrappedSyntaxException) {
+                throw (SyntaxException) cause.getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AssertionError("Unexpected nested evaluation failure: " + cause);
+        }
     }
 
     /**
@@ -1081,30 +1855,46 @@ class CalculatorExpr {
                         // And unchecked exceptions thrown by UnifiedReal, CR,
                         // and BoundedRational.
     {
-        // First evaluate all indirectly referenced expressions in increasing index order.
+        // First evaluate all indirectly referenced expressions in topological order.
         // This ensures that subsequent evaluation never encounters an embedded PreEval
         // expression that has not been previously evaluated.
         // We could do the embedded evaluations recursively, but that risks running out of
         // stack space.
-        ArrayList<Long> referenced = getTransitivelyReferencedExprs(er);
-        for (long index : referenced) {
-            nestedEval(index, er);
-        }
-        try {
-            // We currently never include trailing binary operators, but include other trailing
-            // operators.  Thus we usually, but not always, display results for prefixes of valid
-            // expressions, and don't generate an error where we previously displayed an instant
-            // result.  This reflects the Android L design.
-            int prefixLen = trailingBinaryOpsStart();
-            EvalContext ec = new EvalContext(degreeMode, prefixLen, er);
-            EvalRet res = evalExpr(0, ec);
-            if (res.pos != prefixLen) {
-                throw new SyntaxException("Failed to parse full expression");
-            }
-            return res.val;
-        } catch (IndexOutOfBoundsException e) {
-            throw new SyntaxException("Unexpected expression end");
+        // Expressions that don't depend on each other, e.g. several pasted history results,
+        // are evaluated concurrently.
+        LinkedHashMap<Long, ArrayList<Long>> graph = getReferenceGraph(er);
+        ArrayList<Long> referenced = topologicalOrder(graph);
+        if (referenced.size() > 1) {
+            evalReferencedConcurrently(graph, referenced, er);
+        } else {
+            for (long index : referenced) {
+                nestedEval(index, er);
+            }
         }
+        // We currently never include trailing binary operators, but include other trailing
+        // operators.  Thus we usually, but not always, display results for prefixes of valid
+        // expressions, and don't generate an error where we previously displayed an instant
+        // result.  This reflects the Android L design.
+        int prefixLen = trailingBinaryOpsStart();
+        EvalContext ec = new EvalContext(degreeMode, prefixLen, er);
+        final Checkpoint cp = getCheckpoint(ec);
+        return getProgram(prefixLen, cp).eval(ec, cp, this);
+    }
+
+    /**
+     * Quickly compute an interval containing the value of the expression excluding trailing
+     * binary operators, using double arithmetic.  Return null if that fails, e.g. because the
+     * result does not fit in a double, a referenced expression has not been evaluated yet, or
+     * the result is hard to bound.  Never reports errors; eval() remains responsible for those.
+     * Should not be called concurrently with modification of the expression.
+     *
+     * @param degreeMode use degrees rather than radians
+     */
+    DoubleInterval evalInterval(boolean degreeMode, ExprResolver er) {
+        final int prefixLen = trailingBinaryOpsStart();
+        final EvalContext ec = new EvalContext(degreeMode, prefixLen, er);
+        final Checkpoint cp = getCheckpoint(ec);
+        return getProgram(prefixLen, cp).evalInterval(ec, cp);
     }
 
     // Produce a string representation of the expression itself
@@ -22,6 +22,7 @@ import android.content.ClipDescription;
 import android.content.ClipboardManager;
 import android.content.Context;
 import android.graphics.Rect;
+import android.net.Uri;
 import android.os.Build;
 import androidx.annotation.IntDef;
 import androidx.core.content.ContextCompat;
@@ -29,6 +30,7 @@ import androidx.core.os.BuildCompat;
 import android.text.Layout;
 import android.text.Spannable;
 import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.TextPaint;
 import android.text.style.BackgroundColorSpan;
@@ -146,9 +148,27 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
                             // The maximum number of digits we're willing to recompute in the UI
                             // thread.  We only do this for known rational results, where we
                             // can bound the computation cost.
+    private static final int MAX_SYNC_COPY_CHARS = 20000;
+                            // Copies of longer results are produced in the background, and
+                            // placed on the clipboard as a content Uri.
     private final ForegroundColorSpan mExponentColorSpan;
     private final BackgroundColorSpan mHighlightSpan;
 
+    // Reused by redisplay(), so that redisplaying a scrolling result does not allocate
+    // per character.  UI thread only.
+    private final StringBuilder mDisplayBuilder = new StringBuilder();
+    // The displayed result text.  Our bufferType is spannable, so setText() would normally copy
+    // its argument into a new Spannable.  Instead our Spannable.Factory hands back this buffer
+    // itself, and later redisplays replace its contents in place.
+    private final SpannableStringBuilder mDisplayText = new SpannableStringBuilder();
+    private final int[] mScratchPrecOffset = new int[1];
+    private final int[] mScratchLastDisplayedOffset = new int[1];
+    private final boolean[] mScratchTruncated = new boolean[1];
+    private final boolean[] mScratchNegative = new boolean[1];
+
+    private ResultCopyTask mCopyTask;  // Background copy in progress, or null. UI thread only.
+    private Toast mCopyToast;  // Copy progress and completion messages.
+
     private ActionMode mActionMode;
     private ActionMode.Callback mCopyActionModeCallback;
     private ContextMenu mContextMenu;
@@ -162,6 +182,12 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
         mHighlightSpan = new BackgroundColorSpan(getHighlightColor());
         mExponentColorSpan = new ForegroundColorSpan(
                 ContextCompat.getColor(context, R.color.display_result_exponent_text_color));
+        setSpannableFactory(new Spannable.Factory() {
+            @Override
+            public Spannable newSpannable(CharSequence source) {
+                return source == mDisplayText ? mDisplayText : super.newSpannable(source);
+            }
+        });
         mGestureDetector = new GestureDetector(context,
             new GestureDetector.SimpleOnGestureListener() {
                 @Override
@@ -373,7 +399,7 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
 
     // From Evaluator.CharMetricsInfo.
     @Override
-    public float separatorChars(String s, int len) {
+    public float separatorChars(CharSequence s, int len) {
         int start = 0;
         while (start < len && !Character.isDigit(s.charAt(start))) {
             ++start;
@@ -614,12 +640,14 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
 
     private final int MAX_COPY_SIZE = 1000000;
 
+    private static final char ELLIPSIS_CHAR = KeyMaps.ELLIPSIS.charAt(0);
+
     /*
      * Return the most significant digit position in the given string or Evaluator.INVALID_MSD.
      * Unlike Evaluator.getMsdIndexOf, we treat a final 1 as significant.
      * Pure function; callable from anywhere.
      */
-    public static int getNaiveMsdIndexOf(String s) {
+    public static int getNaiveMsdIndexOf(CharSequence s) {
         final int len = s.length();
         for (int i = 0; i < len; ++i) {
             char c = s.charAt(i);
@@ -630,6 +658,19 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
         return Evaluator.INVALID_MSD;
     }
 
+    /**
+     * Format a result returned by Evaluator.getString(), as formatResult(StringBuilder, ...)
+     * below, but return a new string.
+     */
+    private String formatResult(String in, int precOffset, int maxDigs, boolean truncated,
+            boolean negative, int lastDisplayedOffset[], boolean forcePrecision,
+            boolean forceSciNotation, boolean insertCommas) {
+        final StringBuilder result = new StringBuilder(in);
+        formatResult(result, precOffset, maxDigs, truncated, negative, lastDisplayedOffset,
+                forcePrecision, forceSciNotation, insertCommas);
+        return result.toString();
+    }
+
     /**
      * Format a result returned by Evaluator.getString() into a single line containing ellipses
      * (if appropriate) and an exponent (if appropriate).
@@ -641,7 +682,13 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
      * We add ellipses and exponents in a way that leaves most digits in the position they
      * would have been in had we not done so. This minimizes jumps as a result of scrolling.
      * Result is NOT internationalized, uses "E" for exponent.
-     * Called only from UI thread; We sometimes omit locking for fields.
+     * The result is formatted in place, so that redisplay does not allocate once result has
+     * grown to its final capacity.
+     * Called only from UI thread; We sometimes omit locking for fields.  The exception is that
+     * with forcePrecision set, and forceSciNotation and insertCommas clear, it reads no fields,
+     * and may be called from a background copy.
+     * @param result Initially the result of Evaluator.getString(), replaced by the formatted
+                result.
      * @param precOffset The value that was passed to getString. Identifies the significance of
                 the rightmost digit. A value of 1 means the rightmost digits corresponds to tenths.
      * @param maxDigs The maximum number of characters in the result
@@ -662,19 +709,18 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
                 We insert commas in a way that does consider the width of the actual localized digit
                 separator. Commas count towards maxDigs as the appropriate fraction of a digit.
      */
-    private String formatResult(String in, int precOffset, int maxDigs, boolean truncated,
-            boolean negative, int lastDisplayedOffset[], boolean forcePrecision,
-            boolean forceSciNotation, boolean insertCommas) {
+    private void formatResult(StringBuilder result, int precOffset, int maxDigs,
+            boolean truncated, boolean negative, int lastDisplayedOffset[],
+            boolean forcePrecision, boolean forceSciNotation, boolean insertCommas) {
         final int minusSpace = negative ? 1 : 0;
-        final int msdIndex = truncated ? -1 : getNaiveMsdIndexOf(in);  // INVALID_MSD is OK.
-        String result = in;
+        final int msdIndex = truncated ? -1 : getNaiveMsdIndexOf(result);  // INVALID_MSD is OK.
         boolean needEllipsis = false;
         if (truncated || (negative && result.charAt(0) != '-')) {
             needEllipsis = true;
-            result = KeyMaps.ELLIPSIS + result.substring(1, result.length());
+            result.setCharAt(0, ELLIPSIS_CHAR);
             // Ellipsis may be removed again in the type(1) scientific notation case.
         }
-        final int decIndex = result.indexOf('.');
+        final int decIndex = result.indexOf(".");
         if (lastDisplayedOffset != null) {
             lastDisplayedOffset[0] = precOffset;
         }
@@ -703,14 +749,16 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
                 if (decIndex > msdIndex) {
                     // In the forceSciNotation, we can have a decimal point in the relevant digit
                     // range. Remove it.
-                    result = result.substring(0, decIndex)
-                            + result.substring(decIndex + 1, result.length());
+                    result.deleteCharAt(decIndex);
                     // msdIndex and precOffset unaffected.
                 }
                 final int resLen = result.length();
-                String fraction = result.substring(msdIndex + 1, resLen);
-                result = (negative ? "-" : "") + result.substring(msdIndex, msdIndex + 1)
-                        + "." + fraction;
+                // Keep the leading digit and the fraction following it.
+                result.insert(msdIndex + 1, '.');
+                result.delete(0, msdIndex);
+                if (negative) {
+                    result.insert(0, '-');
+                }
                 // Original exp was correct for decimal point at right of fraction.
                 // Adjust by length of fraction.
                 exponent = initExponent + resLen - msdIndex - 1;
@@ -746,27 +794,28 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
                 }
                 if (dropDigits >= result.length() - 1) {
                     // Display too small to show meaningful result.
-                    return KeyMaps.ELLIPSIS + "E" + KeyMaps.ELLIPSIS;
+                    result.setLength(0);
+                    result.append(ELLIPSIS_CHAR).append('E').append(ELLIPSIS_CHAR);
+                    return;
                 }
-                result = result.substring(0, result.length() - dropDigits);
+                result.setLength(result.length() - dropDigits);
                 if (lastDisplayedOffset != null) {
                     lastDisplayedOffset[0] -= dropDigits;
                 }
             }
-            result = result + "E" + Integer.toString(exponent);
+            result.append('E').append(exponent);
         } else if (insertCommas) {
             // Add commas to the whole number section, and then truncate on left to fit,
-            // counting commas as a fractional digit.
+            // counting commas as a fractional digit.  An ellipsis, if any, stays in front.
             final int wholeStart = needEllipsis ? 1 : 0;
             int orig_length = result.length();
             final float nCommaChars;
             if (decIndex != -1) {
                 nCommaChars = separatorChars(result, decIndex);
-                result = StringUtils.addCommas(result, wholeStart, decIndex)
-                        + result.substring(decIndex, orig_length);
+                StringUtils.insertCommas(result, wholeStart, decIndex);
             } else {
                 nCommaChars = separatorChars(result, orig_length);
-                result = StringUtils.addCommas(result, wholeStart, orig_length);
+                StringUtils.insertCommas(result, wholeStart, orig_length);
             }
             if (needEllipsis) {
                 orig_length -= 1;  // Exclude ellipsis.
@@ -785,7 +834,7 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
                 float deletedWidth = 0.0f;
                 while (effectiveLen - mNoExponentCredit - deletedWidth
                         > (float) (maxDigs - 1 /* for ellipsis */)) {
-                    if (result.charAt(deletedChars) == ',') {
+                    if (result.charAt(wholeStart + deletedChars) == ',') {
                         deletedWidth += mGroupingSeparatorWidthRatio;
                     } else {
                         deletedWidth += 1.0f;
@@ -794,12 +843,12 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
                 }
             }
             if (deletedChars > 0) {
-                result = KeyMaps.ELLIPSIS + result.substring(deletedChars, result.length());
-            } else if (needEllipsis) {
-                result = KeyMaps.ELLIPSIS + result;
+                result.delete(wholeStart, wholeStart + deletedChars);
+                if (!needEllipsis) {
+                    result.insert(0, ELLIPSIS_CHAR);
+                }
             }
         }
-        return result;
     }
 
     /**
@@ -815,14 +864,29 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
      */
     private String getFormattedResult(int precOffset, int maxSize, int lastDisplayedOffset[],
             boolean forcePrecision, boolean forceSciNotation, boolean insertCommas) {
-        final boolean truncated[] = new boolean[1];
-        final boolean negative[] = new boolean[1];
-        final int requestedPrecOffset[] = {precOffset};
-        final String rawResult = mEvaluator.getString(mIndex, requestedPrecOffset, mMaxCharOffset,
-                maxSize, truncated, negative, this);
-        return formatResult(rawResult, requestedPrecOffset[0], maxSize, truncated[0], negative[0],
-                lastDisplayedOffset, forcePrecision, forceSciNotation, insertCommas);
-   }
+        final StringBuilder result = new StringBuilder();
+        getFormattedResult(precOffset, maxSize, lastDisplayedOffset, forcePrecision,
+                forceSciNotation, insertCommas, result);
+        return result.toString();
+    }
+
+    /**
+     * Replace the contents of result by the formatted, but not internationalized, result from
+     * mEvaluator.  Otherwise identical to the preceding method, but reuses result and scratch
+     * arrays, so that it does not allocate while redisplaying a scrolling result.
+     * UI thread only.
+     */
+    private void getFormattedResult(int precOffset, int maxSize, int lastDisplayedOffset[],
+            boolean forcePrecision, boolean forceSciNotation, boolean insertCommas,
+            StringBuilder result) {
+        mScratchPrecOffset[0] = precOffset;
+        result.setLength(0);
+        mEvaluator.getString(mIndex, mScratchPrecOffset, mMaxCharOffset, maxSize,
+                mScratchTruncated, mScratchNegative, this, result);
+        formatResult(result, mScratchPrecOffset[0], maxSize, mScratchTruncated[0],
+                mScratchNegative[0], lastDisplayedOffset, forcePrecision, forceSciNotation,
+                insertCommas);
+    }
 
     /**
      * Return entire result (within reason) up to current displayed precision.
@@ -844,17 +908,57 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
                 && mMaxCharOffset != MAX_RIGHT_SCROLL);
     }
 
+    /**
+     * Should getFullCopyText() recompute the exact result, rather than returning getFullText()?
+     */
+    private boolean shouldCopyExactResult() {
+        return mValid
+                && mEvaluator.getResult(mIndex) != null  // Not displaying saved digits.
+                && mLsdOffset != Integer.MAX_VALUE
+                && !fullTextIsExact()
+                && mWholeLen <= MAX_RECOMPUTE_DIGITS
+                && mWholeLen + mLsdOffset <= MAX_RECOMPUTE_DIGITS
+                && mLsdOffset - mLastDisplayedOffset <= MAX_COPY_EXTRA;
+    }
+
+    /**
+     * Return a source for the same text as getFullCopyText(), which can be run in the
+     * background, or null if the text is short enough to be produced directly.
+     * UI thread only.
+     */
+    private ResultCopyTask.Source getFullCopySource() {
+        if (!mValid || !mScrollable || shouldCopyExactResult()
+                || (long) mWholeLen + mLastDisplayedOffset <= MAX_SYNC_COPY_CHARS) {
+            return null;
+        }
+        final Evaluator.ResultSnapshot snapshot = mEvaluator.getResultSnapshot(mIndex);
+        if (snapshot == null) {
+            return null;
+        }
+        final int precOffset = mLastDisplayedOffset;
+        final int maxPrecOffset = mMaxCharOffset;
+        return new ResultCopyTask.Source() {
+            @Override
+            public void getText(StringBuilder result) {
+                // As getFullText(false), but using only the snapshot.
+                final int[] currentPrecOffset = new int[] { precOffset };
+                final boolean[] truncated = new boolean[1];
+                final boolean[] negative = new boolean[1];
+                snapshot.getString(currentPrecOffset, maxPrecOffset, MAX_COPY_SIZE, truncated,
+                        negative, result);
+                formatResult(result, currentPrecOffset[0], MAX_COPY_SIZE, truncated[0],
+                        negative[0], null, true /* forcePrecision */,
+                        false /* forceSciNotation */, false /* insertCommas */);
+            }
+        };
+    }
+
     /**
      * Get entire result up to current displayed precision, or up to MAX_COPY_EXTRA additional
      * digits, if it will lead to an exact result.
      */
     public String getFullCopyText() {
-        if (!mValid
-                || mLsdOffset == Integer.MAX_VALUE
-                || fullTextIsExact()
-                || mWholeLen > MAX_RECOMPUTE_DIGITS
-                || mWholeLen + mLsdOffset > MAX_RECOMPUTE_DIGITS
-                || mLsdOffset - mLastDisplayedOffset > MAX_COPY_EXTRA) {
+        if (!shouldCopyExactResult()) {
             return getFullText(false /* withSeparators */);
         }
         // It's reasonable to compute and copy the exact result instead.
@@ -931,22 +1035,40 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
             setAccessibilityLiveRegion(ACCESSIBILITY_LIVE_REGION_POLITE);
         }
         int currentCharOffset = getCharOffset(mCurrentPos);
-        int lastDisplayedOffset[] = new int[1];
-        String result = getFormattedResult(currentCharOffset, maxChars, lastDisplayedOffset,
+        final int lastDisplayedOffset[] = mScratchLastDisplayedOffset;
+        final StringBuilder result = mDisplayBuilder;
+        getFormattedResult(currentCharOffset, maxChars, lastDisplayedOffset,
                 mAppendExponent /* forcePrecision; preserve entire result */,
                 !mWholePartFits
                 &&  currentCharOffset == getCharOffset(mMinPos) /* forceSciNotation */,
-                mWholePartFits /* insertCommas */ );
-        int expIndex = result.indexOf('E');
-        result = KeyMaps.translateResult(result);
-        if (expIndex > 0 && result.indexOf('.') == -1) {
-          // Gray out exponent if used as position indicator
-            SpannableString formattedResult = new SpannableString(result);
-            formattedResult.setSpan(mExponentColorSpan, expIndex, result.length(),
-                                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            setText(formattedResult);
+                mWholePartFits /* insertCommas */, result);
+        int expIndex = result.indexOf("E");
+        KeyMaps.translateResult(result);
+        final int len = result.length();
+        final SpannableStringBuilder text = mDisplayText;
+        final boolean displayed = getText() == text;
+        boolean highlighted = false;
+        if (displayed) {
+            highlighted = text.getSpanStart(mHighlightSpan) >= 0;
+            text.removeSpan(mHighlightSpan);
+            text.removeSpan(mExponentColorSpan);
         } else {
-            setText(result);
+            // Also drops any watchers left by the last time it was displayed.
+            text.clearSpans();
+        }
+        // Copies the characters into the existing buffer, which grows only as needed.  What
+        // remains is a few small arrays used to find the watchers, independent of the length of
+        // the result.  If the buffer is displayed, the TextView is notified by its watchers.
+        text.replace(0, text.length(), result);
+        if (expIndex > 0 && result.indexOf(".") == -1) {
+          // Gray out exponent if used as position indicator
+            text.setSpan(mExponentColorSpan, expIndex, len, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        if (highlighted) {
+            highlightResult();
+        }
+        if (!displayed) {
+            setText(text);
         }
         mLastDisplayedOffset = lastDisplayedOffset[0];
         mValid = true;
@@ -1100,6 +1222,7 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
         final MenuItem memorySubtractItem = menu.findItem(R.id.memory_subtract);
         memoryAddItem.setEnabled(displayMemory);
         memorySubtractItem.setEnabled(displayMemory);
+        menu.findItem(R.id.menu_copy_repeating).setVisible(getRepeatingString() != null);
         highlightResult();
         return true;
     }
@@ -1134,16 +1257,89 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
     }
 
     private void copyContent() {
-        final CharSequence text = getFullCopyText();
-        ClipboardManager clipboard =
-                (ClipboardManager) getContext().getSystemService(Context.CLIPBOARD_SERVICE);
+        cancelCopy();
         // We include a tag URI, to allow us to recognize our own results and handle them
         // specially.
-        ClipData.Item newItem = new ClipData.Item(text, null, mEvaluator.capture(mIndex));
+        final Uri tag = mEvaluator.capture(mIndex);
+        final ResultCopyTask.Source source = getFullCopySource();
+        if (source == null) {
+            setClip(new ClipData.Item(getFullCopyText(), null, tag));
+            showCopyToast(getContext().getString(R.string.text_copied_toast));
+            return;
+        }
+        // Too long to produce and hand to the clipboard from the UI thread.  Write it to a file
+        // in the background, and copy the corresponding content Uri.
+        mCopyTask = new ResultCopyTask(getContext(), source, tag, new ResultCopyTask.Listener() {
+            @Override
+            public void onCopyProgress(int percent) {
+                showCopyToast(getContext().getString(R.string.text_copying_toast, percent));
+            }
+
+            @Override
+            public void onCopied(Uri uri) {
+                mCopyTask = null;
+                setClip(new ClipData.Item(uri));
+                // No other copy is running, and the clipboard no longer refers to older files.
+                ResultProvider.deleteOtherResultFiles(getContext(), uri);
+                showCopyToast(getContext().getString(R.string.text_copied_toast));
+            }
+
+            @Override
+            public void onCopyFailed() {
+                mCopyTask = null;
+                showCopyToast(getContext().getString(R.string.text_copy_failed_toast));
+            }
+        });
+        mCopyTask.executeOnExecutor(mEvaluator.getCopyExecutor());
+        showCopyToast(getContext().getString(R.string.text_copying_toast, 0));
+    }
+
+    /**
+     * Return the result in repeating decimal notation, or null if it is not a repeating decimal
+     * whose notation is short enough to copy directly.
+     */
+    private String getRepeatingString() {
+        if (!mValid) {
+            return null;
+        }
+        return mEvaluator.getRepeatingString(mIndex, MAX_SYNC_COPY_CHARS);
+    }
+
+    private void copyRepeating() {
+        final String s = getRepeatingString();
+        if (s == null) {
+            return;
+        }
+        cancelCopy();
+        setClip(new ClipData.Item(KeyMaps.translateResult(s), null, mEvaluator.capture(mIndex)));
+        showCopyToast(getContext().getString(R.string.text_copied_toast));
+    }
+
+    private void setClip(ClipData.Item item) {
         String[] mimeTypes = new String[] {ClipDescription.MIMETYPE_TEXT_PLAIN};
-        ClipData cd = new ClipData("calculator result", mimeTypes, newItem);
-        clipboard.setPrimaryClip(cd);
-        Toast.makeText(getContext(), R.string.text_copied_toast, Toast.LENGTH_SHORT).show();
+        setPrimaryClip(new ClipData("calculator result", mimeTypes, item));
+    }
+
+    /**
+     * Show msg, replacing any copy message that is still visible.
+     */
+    private void showCopyToast(String msg) {
+        if (mCopyToast == null) {
+            mCopyToast = Toast.makeText(getContext(), msg, Toast.LENGTH_SHORT);
+        } else {
+            mCopyToast.setText(msg);
+        }
+        mCopyToast.show();
+    }
+
+    /**
+     * Cancel a background copy, if any.  The clipboard is left unchanged.
+     */
+    private void cancelCopy() {
+        if (mCopyTask != null) {
+            mCopyTask.cancel(true);
+            mCopyTask = null;
+        }
     }
 
     @Override
@@ -1167,6 +1363,10 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
                     unhighlightResult();
                     return true;
                 }
+            case R.id.menu_copy_repeating:
+                copyRepeating();
+                unhighlightResult();
+                return true;
             default:
                 return false;
         }
@@ -1175,6 +1375,7 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
     @Override
     protected void onDetachedFromWindow() {
         stopActionModeOrContextMenu();
+        cancelCopy();
         super.onDetachedFromWindow();
     }
 }
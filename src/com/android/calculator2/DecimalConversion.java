@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import com.hp.creals.CR;
+
+import java.math.BigInteger;
+
+/**
+ * Decimal conversion of huge BigIntegers.
+ * BigInteger.toString() may take time quadratic in the length of the number, and cannot be
+ * interrupted, so converting a result with hundreds of thousands of bits can hold up a
+ * cancelled evaluation for a long time.  Instead we split the number in two by dividing by
+ * a power of ten with about half as many digits, convert both halves recursively, and use
+ * toString() only for pieces of at most LEAF_DIGITS digits.  The powers of ten, 10^(2^k), come
+ * from the shared PowersOfTen cache.  With subquadratic BigInteger division, the whole
+ * conversion is subquadratic.  We check for interruption before converting each piece, and
+ * throw CR.AbortedException, as CR does, if we were interrupted.
+ * All pieces are written directly into a single character buffer for the result.
+ */
+class DecimalConversion {
+    // Pieces with at most this many digits are converted with BigInteger.toString().
+    private static final int LEAF_DIGITS = 1024;
+
+    private static void checkInterrupt() {
+        if (Thread.interrupted()) {
+            throw new CR.AbortedException();
+        }
+    }
+
+    /**
+     * Return an upper bound on the number of decimal digits in n >= 0.  At least 1.
+     */
+    private static int digitBound(BigInteger n) {
+        // log10(2) < 0.30103
+        return (int) (n.bitLength() * 0.30103) + 1;
+    }
+
+    /**
+     * Write exactly width decimal digits of n into buf, ending just before buf[end], padding
+     * with leading zeroes as necessary.  Requires 0 <= n < 10^width.
+     */
+    private static void writeDigits(BigInteger n, int width, char[] buf, int end) {
+        checkInterrupt();
+        if (width <= LEAF_DIGITS) {
+            final String digits = n.toString();
+            final int len = digits.length();
+            final int start = end - width;
+            for (int i = start; i < end - len; ++i) {
+                buf[i] = '0';
+            }
+            digits.getChars(0, len, buf, end - len);
+            return;
+        }
+        // Split off the low order 2^k digits, where 2^k <= width / 2.
+        final int k = 30 - Integer.numberOfLeadingZeros(width);
+        final int lowDigits = 1 << k;
+        final BigInteger[] qr = n.divideAndRemainder(PowersOfTen.ladder(k));
+        writeDigits(qr[1], lowDigits, buf, end);
+        writeDigits(qr[0], width - lowDigits, buf, end - lowDigits);
+    }
+
+    /**
+     * Return the decimal representation of n.  Equivalent to n.toString().
+     */
+    public static String toString(BigInteger n) {
+        if (n.signum() < 0) {
+            return "-" + toString(n.negate());
+        }
+        final int width = digitBound(n);
+        if (width <= LEAF_DIGITS) {
+            return n.toString();
+        }
+        final char[] buf = new char[width];
+        writeDigits(n, width, buf, width);
+        int start = 0;
+        while (start < width - 1 && buf[start] == '0') {
+            ++start;
+        }
+        return new String(buf, start, width - start);
+    }
+
+    /**
+     * Return scaled / 10^n as a string with exactly n digits to the right of the decimal point,
+     * and at least one to the left, in the format produced by toStringTruncated() methods.
+     * @param scaled The absolute value of the result, times 10^n; scaled >= 0
+     * @param negative Prefix the result with a minus sign
+     * @param n Number of digits to the right of the decimal point, >= 0
+     */
+    public static String toStringTruncated(BigInteger scaled, boolean negative, int n) {
+        final int width = Math.max(digitBound(scaled), n + 1);
+        final int sign = negative ? 1 : 0;
+        final char[] buf = new char[sign + width + 1];
+        writeDigits(scaled, width, buf, buf.length);
+        // Digits are in buf[sign + 1 ...].  Shift the whole number part left to make room for
+        // the decimal point.
+        final int wholeDigits = width - n;
+        System.arraycopy(buf, sign + 1, buf, sign, wholeDigits);
+        buf[sign + wholeDigits] = '.';
+        int start = sign;
+        while (start < sign + wholeDigits - 1 && buf[start] == '0') {
+            ++start;
+        }
+        if (negative) {
+            buf[--start] = '-';
+        }
+        return new String(buf, start, buf.length - start);
+    }
+}
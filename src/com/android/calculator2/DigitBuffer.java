@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+/**
+ * An immutable decimal result string, such as "-123.4560", stored as one byte per character in
+ * fixed size chunks.
+ * Result strings can have millions of digits, and are extended repeatedly as the user scrolls.
+ * A java.lang.String uses two bytes per character and has to be copied in its entirety to
+ * append a few digits.  Here appending creates a new buffer that shares all full chunks with
+ * the original, so it takes time proportional to the number of appended characters, plus
+ * the number of chunks.  Both buffers remain valid.  Readers retrieve only the window they
+ * need, with substring() or charAt().
+ * Contents are restricted to ISO 8859-1 characters, which covers everything we store.
+ */
+class DigitBuffer implements CharSequence {
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // mChunks[i] holds characters starting at i * CHUNK_SIZE.  All but the last chunk are
+    // full, and the last one is no longer than needed.  Full chunks may be shared with other
+    // buffers.  No chunk is modified once the buffer is constructed.
+    private final byte[][] mChunks;
+    private final int mLength;
+    private final int mDotIndex;  // Index of first '.', or -1.
+
+    public static final DigitBuffer EMPTY = new DigitBuffer(new byte[0][], 0, -1);
+
+    private DigitBuffer(byte[][] chunks, int length, int dotIndex) {
+        mChunks = chunks;
+        mLength = length;
+        mDotIndex = dotIndex;
+    }
+
+    /**
+     * Return a buffer with the same contents as s.
+     */
+    public static DigitBuffer valueOf(CharSequence s) {
+        if (s instanceof DigitBuffer) {
+            return (DigitBuffer) s;
+        }
+        return EMPTY.append(s);
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int i) {
+        if (i < 0 || i >= mLength) {
+            throw new StringIndexOutOfBoundsException(i);
+        }
+        return (char) (mChunks[i >>> CHUNK_SHIFT][i & CHUNK_MASK] & 0xff);
+    }
+
+    /**
+     * Return the index of the first occurrence of c, or -1.  Constant time for '.'.
+     */
+    public int indexOf(char c) {
+        if (c == '.') {
+            return mDotIndex;
+        }
+        for (int i = 0; i < mLength; ++i) {
+            if (charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Copy the characters from start to end into dest, starting at dest[destStart].
+     */
+    public void getChars(int start, int end, char[] dest, int destStart) {
+        if (start < 0 || end > mLength || start > end) {
+            throw new StringIndexOutOfBoundsException("Bad range " + start + ", " + end);
+        }
+        int d = destStart;
+        for (int i = start; i < end; ) {
+            final byte[] chunk = mChunks[i >>> CHUNK_SHIFT];
+            final int chunkEnd = Math.min(end, (i | CHUNK_MASK) + 1);
+            for (int j = i & CHUNK_MASK; i < chunkEnd; ++i, ++j) {
+                dest[d++] = (char) (chunk[j] & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Append the characters from start to end to dest.  Does not allocate if dest has
+     * sufficient capacity.
+     */
+    public void appendTo(StringBuilder dest, int start, int end) {
+        if (start < 0 || end > mLength || start > end) {
+            throw new StringIndexOutOfBoundsException("Bad range " + start + ", " + end);
+        }
+        dest.ensureCapacity(dest.length() + end - start);
+        for (int i = start; i < end; ) {
+            final byte[] chunk = mChunks[i >>> CHUNK_SHIFT];
+            final int chunkEnd = Math.min(end, (i | CHUNK_MASK) + 1);
+            for (int j = i & CHUNK_MASK; i < chunkEnd; ++i, ++j) {
+                dest.append((char) (chunk[j] & 0xff));
+            }
+        }
+    }
+
+    /**
+     * Return the characters from start to end as a String.  Takes time proportional to the
+     * length of the result.
+     */
+    public String substring(int start, int end) {
+        final char[] result = new char[end - start];
+        getChars(start, end, result, 0);
+        return new String(result);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return substring(0, mLength);
+    }
+
+    /**
+     * Does s start with the contents of this buffer?
+     */
+    public boolean isPrefixOf(CharSequence s) {
+        if (s.length() < mLength) {
+            return false;
+        }
+        for (int i = 0; i < mLength; ) {
+            final byte[] chunk = mChunks[i >>> CHUNK_SHIFT];
+            final int chunkEnd = Math.min(mLength, (i | CHUNK_MASK) + 1);
+            for (int j = i & CHUNK_MASK; i < chunkEnd; ++i, ++j) {
+                if ((char) (chunk[j] & 0xff) != s.charAt(i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return a buffer containing the characters of this one followed by those of s.
+     */
+    public DigitBuffer append(CharSequence s) {
+        return append(s, 0, s.length());
+    }
+
+    /**
+     * Return a buffer containing the characters of this one followed by s[start, end).
+     */
+    public DigitBuffer append(CharSequence s, int start, int end) {
+        final int n = end - start;
+        if (n == 0) {
+            return this;
+        }
+        final int newLength = mLength + n;
+        if (newLength < 0) {
+            throw new OutOfMemoryError("DigitBuffer too long");
+        }
+        final int nChunks = (newLength + CHUNK_MASK) >>> CHUNK_SHIFT;
+        final byte[][] chunks = new byte[nChunks][];
+        // Share our full chunks.  Copy a partial last chunk, so that neither buffer can see
+        // the other's characters.
+        final int fullChunks = mLength >>> CHUNK_SHIFT;
+        System.arraycopy(mChunks, 0, chunks, 0, fullChunks);
+        int dotIndex = mDotIndex;
+        int i = mLength;  // Index of next character in the result.
+        for (int k = start; k < end; ) {
+            final int c = i >>> CHUNK_SHIFT;
+            if (chunks[c] == null) {
+                chunks[c] = new byte[c == nChunks - 1 ? newLength - (c << CHUNK_SHIFT)
+                        : CHUNK_SIZE];
+                if (c < mChunks.length) {
+                    System.arraycopy(mChunks[c], 0, chunks[c], 0, mLength & CHUNK_MASK);
+                }
+            }
+            final byte[] chunk = chunks[c];
+            final int chunkEnd = Math.min(newLength, (i | CHUNK_MASK) + 1);
+            for (int j = i & CHUNK_MASK; i < chunkEnd; ++i, ++j, ++k) {
+                final char ch = s.charAt(k);
+                if (ch > 0xff) {
+                    throw new AssertionError("Unexpected character in result");
+                }
+                if (ch == '.' && dotIndex < 0) {
+                    dotIndex = i;
+                }
+                chunk[j] = (byte) ch;
+            }
+        }
+        return new DigitBuffer(chunks, newLength, dotIndex);
+    }
+
+    /**
+     * Return a buffer with the contents of s.  If this buffer is a prefix of s, as it usually
+     * is if s is a more precise version of the same result, the new buffer shares our chunks,
+     * and we avoid copying the common prefix.
+     */
+    public DigitBuffer extendTo(CharSequence s) {
+        if (isPrefixOf(s)) {
+            return append(s, mLength, s.length());
+        }
+        return valueOf(s);
+    }
+
+    // Approximate per-chunk overhead, in bytes.
+    private static final int CHUNK_OVERHEAD = 20;
+
+    /**
+     * Approximate memory used by the buffer, in bytes, if it were not sharing chunks.
+     */
+    public long memorySize() {
+        return mLength + (long) CHUNK_OVERHEAD * mChunks.length;
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * A closed interval of doubles, used to quickly compute a provisional result while the exact
+ * evaluation is still running.
+ * Every operation rounds outward, so that the resulting interval contains the exact result of
+ * the operation for all arguments in the argument intervals.  Library functions such as
+ * Math.sin() are only guaranteed to be within 1 ulp of the exact result, so for those we widen
+ * the result by an additional ulp in each direction.
+ * Operations return null if the result is not finite, if the arguments are outside the
+ * domain of the function, or if the result would be hard to bound.  Callers then fall back to
+ * exact evaluation.  Immutable; no Android dependencies.
+ */
+class DoubleInterval {
+    public final double mLo;
+    public final double mHi;
+
+    private DoubleInterval(double lo, double hi) {
+        mLo = lo;
+        mHi = hi;
+    }
+
+    /**
+     * Return the interval [lo, hi], or null if it is empty or not finite.
+     */
+    public static DoubleInterval of(double lo, double hi) {
+        if (!(lo <= hi) || Double.isInfinite(lo) || Double.isInfinite(hi)) {
+            // Also catches NaNs.
+            return null;
+        }
+        return new DoubleInterval(lo, hi);
+    }
+
+    private static double down(double x) {
+        return Math.nextAfter(x, Double.NEGATIVE_INFINITY);
+    }
+
+    private static double up(double x) {
+        return Math.nextUp(x);
+    }
+
+    /**
+     * Return the interval obtained by widening [lo, hi] by the given number of ulps on each side.
+     */
+    private static DoubleInterval widened(double lo, double hi, int ulps) {
+        for (int i = 0; i < ulps; ++i) {
+            lo = down(lo);
+            hi = up(hi);
+        }
+        return of(lo, hi);
+    }
+
+    /**
+     * Return an interval containing x, or null if x is too big.
+     */
+    public static DoubleInterval valueOf(UnifiedReal x) {
+        final BoundedRational r = x.boundedRationalValue();
+        final double d = x.doubleValue();
+        if (Double.isInfinite(d) || Double.isNaN(d)) {
+            return null;
+        }
+        if (r != null) {
+            if (BoundedRational.valueOf(d).compareTo(r) == 0) {
+                return new DoubleInterval(d, d);
+            }
+            // Correctly rounded.
+            return widened(d, d, 1);
+        }
+        // Irrational values are only approximately correctly rounded.
+        return widened(d, d, 2);
+    }
+
+    public boolean isPoint() {
+        return mLo == mHi;
+    }
+
+    public boolean containsZero() {
+        return mLo <= 0.0 && mHi >= 0.0;
+    }
+
+    public DoubleInterval negate() {
+        return new DoubleInterval(-mHi, -mLo);
+    }
+
+    /**
+     * Is a + b exactly representable as a double?
+     * This is the error term computation of Knuth's TwoSum algorithm.
+     */
+    private static boolean exactSum(double a, double b) {
+        final double s = a + b;
+        final double bb = s - a;
+        return (a - (s - bb)) + (b - bb) == 0.0;
+    }
+
+    public DoubleInterval add(DoubleInterval y) {
+        if (isPoint() && y.isPoint() && exactSum(mLo, y.mLo)) {
+            return of(mLo + y.mLo, mLo + y.mLo);
+        }
+        return of(down(mLo + y.mLo), up(mHi + y.mHi));
+    }
+
+    public DoubleInterval subtract(DoubleInterval y) {
+        return add(y.negate());
+    }
+
+    // Integers below this bound can be multiplied exactly if the product is also below it.
+    private static final double EXACT_INT_BOUND = 9007199254740992.0;  // 2^53
+
+    private static boolean isSmallInteger(double x) {
+        return x == Math.rint(x) && Math.abs(x) < EXACT_INT_BOUND;
+    }
+
+    public DoubleInterval multiply(DoubleInterval y) {
+        if (isPoint() && y.isPoint() && isSmallInteger(mLo) && isSmallInteger(y.mLo)
+                && Math.abs(mLo * y.mLo) < EXACT_INT_BOUND) {
+            return of(mLo * y.mLo, mLo * y.mLo);
+        }
+        final double p1 = mLo * y.mLo;
+        final double p2 = mLo * y.mHi;
+        final double p3 = mHi * y.mLo;
+        final double p4 = mHi * y.mHi;
+        return of(down(Math.min(Math.min(p1, p2), Math.min(p3, p4))),
+                up(Math.max(Math.max(p1, p2), Math.max(p3, p4))));
+    }
+
+    public DoubleInterval divide(DoubleInterval y) {
+        if (y.containsZero()) {
+            return null;
+        }
+        final double q1 = mLo / y.mLo;
+        final double q2 = mLo / y.mHi;
+        final double q3 = mHi / y.mLo;
+        final double q4 = mHi / y.mHi;
+        return of(down(Math.min(Math.min(q1, q2), Math.min(q3, q4))),
+                up(Math.max(Math.max(q1, q2), Math.max(q3, q4))));
+    }
+
+    public DoubleInterval sqrt() {
+        if (mLo < 0.0) {
+            return null;
+        }
+        // Math.sqrt() is correctly rounded.
+        return of(down(Math.sqrt(mLo)), up(Math.sqrt(mHi)));
+    }
+
+    public DoubleInterval ln() {
+        if (mLo <= 0.0) {
+            return null;
+        }
+        return widened(Math.log(mLo), Math.log(mHi), 2);
+    }
+
+    public DoubleInterval log() {
+        if (mLo <= 0.0) {
+            return null;
+        }
+        return widened(Math.log10(mLo), Math.log10(mHi), 2);
+    }
+
+    public DoubleInterval exp() {
+        return widened(Math.exp(mLo), Math.exp(mHi), 2);
+    }
+
+    // Beyond this, we don't trust argument reduction to preserve enough of the interval's
+    // precision to be useful.
+    private static final double MAX_TRIG_ARG = 1.0e9;
+
+    /**
+     * Could the interval contain a point of the form offset + k * pi for integer k?
+     * Errs on the side of answering true.
+     */
+    private boolean mayContainMultipleOfPi(double offset) {
+        if (Math.abs(mLo) > MAX_TRIG_ARG || Math.abs(mHi) > MAX_TRIG_ARG
+                || mHi - mLo >= 1.0) {
+            return true;
+        }
+        // The quotients are accurate to a few ulps, so allow for a generous margin.
+        final double qLo = (mLo - offset) / Math.PI;
+        final double qHi = (mHi - offset) / Math.PI;
+        final double margin = 1.0e-9 + 16 * Math.max(Math.ulp(qLo), Math.ulp(qHi));
+        return Math.floor(qLo - margin) != Math.floor(qHi + margin);
+    }
+
+    public DoubleInterval sin() {
+        if (mayContainMultipleOfPi(Math.PI / 2)) {
+            // May include an extremum.
+            return null;
+        }
+        final double s1 = Math.sin(mLo);
+        final double s2 = Math.sin(mHi);
+        return widened(Math.min(s1, s2), Math.max(s1, s2), 2);
+    }
+
+    public DoubleInterval cos() {
+        if (mayContainMultipleOfPi(0.0)) {
+            return null;
+        }
+        final double c1 = Math.cos(mLo);
+        final double c2 = Math.cos(mHi);
+        return widened(Math.min(c1, c2), Math.max(c1, c2), 2);
+    }
+
+    public DoubleInterval tan() {
+        if (mayContainMultipleOfPi(Math.PI / 2)) {
+            // May include a pole.
+            return null;
+        }
+        return widened(Math.tan(mLo), Math.tan(mHi), 2);
+    }
+
+    public DoubleInterval asin() {
+        if (mLo < -1.0 || mHi > 1.0) {
+            return null;
+        }
+        return widened(Math.asin(mLo), Math.asin(mHi), 2);
+    }
+
+    public DoubleInterval acos() {
+        if (mLo < -1.0 || mHi > 1.0) {
+            return null;
+        }
+        return widened(Math.acos(mHi), Math.acos(mLo), 2);
+    }
+
+    public DoubleInterval atan() {
+        return widened(Math.atan(mLo), Math.atan(mHi), 2);
+    }
+
+    // Largest integer exponent we handle by repeated multiplication.
+    private static final double MAX_INT_EXPONENT = 1024.0;
+
+    public DoubleInterval pow(DoubleInterval exp) {
+        if (exp.isPoint() && exp.mLo == Math.rint(exp.mLo)
+                && Math.abs(exp.mLo) <= MAX_INT_EXPONENT) {
+            // Integer exponent.  The base may be negative.
+            int n = (int) Math.abs(exp.mLo);
+            if (n == 0) {
+                // Exact evaluation rejects 0^0.
+                return containsZero() ? null : of(1.0, 1.0);
+            }
+            DoubleInterval result = null;
+            DoubleInterval square = this;
+            while (true) {
+                if ((n & 1) != 0) {
+                    result = result == null ? square : result.multiply(square);
+                    if (result == null) {
+                        return null;
+                    }
+                }
+                n >>= 1;
+                if (n == 0) {
+                    break;
+                }
+                square = square.multiply(square);
+                if (square == null) {
+                    return null;
+                }
+            }
+            if (exp.mLo < 0.0) {
+                return of(1.0, 1.0).divide(result);
+            }
+            return result;
+        }
+        if (mLo <= 0.0) {
+            // Exact evaluation may still succeed, e.g. for cube roots of negative numbers.
+            return null;
+        }
+        // x^y is monotonic in each argument for x > 0, so the extremes are at the corners.
+        final double p1 = Math.pow(mLo, exp.mLo);
+        final double p2 = Math.pow(mLo, exp.mHi);
+        final double p3 = Math.pow(mHi, exp.mLo);
+        final double p4 = Math.pow(mHi, exp.mHi);
+        return widened(Math.min(Math.min(p1, p2), Math.min(p3, p4)),
+                Math.max(Math.max(p1, p2), Math.max(p3, p4)), 2);
+    }
+
+    // Largest argument for which factorial is finite.
+    private static final int MAX_FACT_ARG = 170;
+
+    public DoubleInterval fact() {
+        if (!isPoint() || mLo != Math.rint(mLo) || mLo < 0.0 || mLo > MAX_FACT_ARG) {
+            return null;
+        }
+        DoubleInterval result = of(1.0, 1.0);
+        for (int i = 2; i <= (int) mLo && result != null; ++i) {
+            result = result.multiply(of(i, i));
+        }
+        return result;
+    }
+
+    // Doubles never have more significant decimal digits than this.
+    private static final int MAX_SIGNIFICANT_DIGITS = 17;
+
+    /**
+     * Return the decimal string with the most digits to the right of the decimal point to which
+     * every number in the interval truncates, i.e. rounds toward zero.  The result has the same
+     * format as Evaluator result strings, i.e. it has a sign only if negative, and at least one
+     * digit on each side of the decimal point.
+     * Return null if no such string has at least minSignificant significant digits.
+     * Since toStringTruncated() truncates in the same way, the result agrees with the truncated
+     * exact result, except that trailing digits may differ in the same way they may for a string
+     * that still needs to be corrected by unflipZeroes().
+     */
+    public String toCertifiedString(int minSignificant) {
+        if (containsZero()) {
+            // Digits of either sign are possible.
+            return null;
+        }
+        final BigDecimal lo = new BigDecimal(mLo);
+        final BigDecimal hi = new BigDecimal(mHi);
+        final BigDecimal big = mLo > 0.0 ? hi : lo;  // The endpoint with larger magnitude.
+        // Position of the leading digit, 1 = ones digit.
+        final int wholeDigits = big.precision() - big.scale();
+        for (int offset = Math.max(MAX_SIGNIFICANT_DIGITS - wholeDigits, 1); offset > 0;
+                --offset) {
+            if (Math.max(wholeDigits, 0) + offset < minSignificant) {
+                return null;
+            }
+            final BigDecimal d = lo.setScale(offset, RoundingMode.DOWN);
+            if (d.equals(hi.setScale(offset, RoundingMode.DOWN))) {
+                // Truncation is monotonic, so everything in between truncates to d as well.
+                if (d.unscaledValue().abs().toString().length() < minSignificant) {
+                    return null;
+                }
+                return d.toPlainString();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors on which the Evaluator runs its background tasks.
+ *
+ * AsyncTask.execute() runs everything on a single process-wide serial executor, so a long
+ * required evaluation of the main expression would hold up every history row, instant result
+ * and reevaluation queued behind it.  Instead we keep one small, bounded thread pool per lane,
+ * so that work in one lane can never wait for work in another.  Lanes differ in the thread
+ * priority of their workers.  Speculative (instant) work is also preemptible: the Evaluator
+ * cancels it when a required evaluation is started.
+ * Tasks are still AsyncTasks, started with executeOnExecutor(), so that completion callbacks
+ * continue to run on the UI thread.
+ */
+class EvaluationScheduler {
+    // Lanes, in decreasing priority order.
+    /**
+     * Evaluations explicitly requested by the user, i.e. "=".
+     */
+    public static final int LANE_REQUIRED = 0;
+    /**
+     * Speculative evaluation of the main expression while it is being edited.
+     */
+    public static final int LANE_INSTANT = 1;
+    /**
+     * Evaluations of history and memory expressions.
+     */
+    public static final int LANE_HISTORY = 2;
+    /**
+     * Reevaluation of previously evaluated expressions to higher precision.
+     */
+    public static final int LANE_REEVALUATE = 3;
+    public static final int NUM_LANES = 4;
+
+    private static final String[] LANE_NAMES = { "required", "instant", "history", "reevaluate" };
+
+    private static final int[] LANE_PRIORITIES = {
+            Process.THREAD_PRIORITY_DEFAULT,
+            Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_LESS_FAVORABLE,
+            Process.THREAD_PRIORITY_BACKGROUND,
+            Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE };
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    // Maximum number of worker threads per lane.  A cancelled evaluation may keep running
+    // until the constructive real evaluation notices the interrupt, so the user-facing lanes
+    // get a second thread to avoid waiting on it.
+    private static final int[] LANE_THREADS = {
+            2,
+            2,
+            Math.max(1, Math.min(CPU_COUNT - 1, 3)),
+            Math.max(1, Math.min(CPU_COUNT - 1, 2)) };
+
+    // Idle worker threads exit after this long.
+    private static final long KEEP_ALIVE_SECONDS = 5;
+
+    private final ThreadPoolExecutor[] mExecutors = new ThreadPoolExecutor[NUM_LANES];
+
+    EvaluationScheduler() {
+        for (int lane = 0; lane < NUM_LANES; ++lane) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(LANE_THREADS[lane],
+                    LANE_THREADS[lane], KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new LaneThreadFactory(lane));
+            executor.allowCoreThreadTimeOut(true);
+            mExecutors[lane] = executor;
+        }
+    }
+
+    /**
+     * Return the executor for the given lane.
+     */
+    public Executor getExecutor(int lane) {
+        return mExecutors[lane];
+    }
+
+    /**
+     * Return the number of tasks waiting for a worker thread in the given lane.
+     */
+    public int getQueuedCount(int lane) {
+        return mExecutors[lane].getQueue().size();
+    }
+
+    /**
+     * Return the number of tasks currently running in the given lane.
+     */
+    public int getActiveCount(int lane) {
+        return mExecutors[lane].getActiveCount();
+    }
+
+    public static String getLaneName(int lane) {
+        return LANE_NAMES[lane];
+    }
+
+    /**
+     * Creates named worker threads that run at the lane's priority.
+     */
+    private static class LaneThreadFactory implements ThreadFactory {
+        private final int mLane;
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        LaneThreadFactory(int lane) {
+            mLane = lane;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Runnable prioritized = new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(LANE_PRIORITIES[mLane]);
+                    r.run();
+                }
+            };
+            return new Thread(prioritized,
+                    "Evaluator-" + LANE_NAMES[mLane] + "-" + mCount.getAndIncrement());
+        }
+    }
+}
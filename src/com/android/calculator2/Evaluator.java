@@ -21,6 +21,7 @@ import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import androidx.annotation.NonNull;
 import androidx.annotation.StringRes;
@@ -37,10 +38,17 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -156,7 +164,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
          * represent a whole number. Callable from non-UI thread.
          * Returns zero if metrics information is not yet available.
          */
-        public float separatorChars(String s, int len);
+        public float separatorChars(CharSequence s, int len);
         /**
          * Return extra width credit for presence of a decimal point, as fraction of a digit width.
          * May be called by non-UI thread.
@@ -179,7 +187,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             return SHORT_TARGET_LENGTH + 10;
         }
         @Override
-        public float separatorChars(String s, int len) {
+        public float separatorChars(CharSequence s, int len) {
             return 0;
         }
         @Override
@@ -217,7 +225,6 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
     // we also use "index" to refer to the key in mExprs below, the list of all known
     // expressions.)
 
-    private static final String KEY_PREF_DEGREE_MODE = "degree_mode";
     private static final String KEY_PREF_SAVED_INDEX = "saved_index";
     private static final String KEY_PREF_MEMORY_INDEX = "memory_index";
     private static final String KEY_PREF_SAVED_NAME = "saved_name";
@@ -232,6 +239,10 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
     // We start the recomputation substantially before the need is likely to be visible.
     private static final int EXTRA_DIVISOR = 5;
 
+    // Minimum number of significant digits in a provisional instant result computed with
+    // interval arithmetic.  Intervals too wide to certify this many are not displayed.
+    private static final int MIN_PROVISIONAL_DIGITS = 10;
+
     // In addition to insisting on extra digits (see above), we minimize reevaluation
     // frequency by precomputing an extra PRECOMPUTE_DIGITS
     // + <current_precision_offset>/PRECOMPUTE_DIVISOR digits, whenever we are forced to
@@ -239,18 +250,10 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
     private static final int PRECOMPUTE_DIGITS = 30;
     private static final int PRECOMPUTE_DIVISOR = 5;
 
-    // Initial evaluation precision.  Enough to guarantee that we can compute the short
-    // representation, and that we rarely have to evaluate nonzero results to MAX_MSD_PREC_OFFSET.
-    // It also helps if this is at least EXTRA_DIGITS + display width, so that we don't
-    // immediately need a second evaluation.
-    private static final int INIT_PREC = 50;
-
-    // The largest number of digits to the right of the decimal point to which we will evaluate to
-    // compute proper scientific notation for values close to zero.  Chosen to ensure that we
-    // always to better than IEEE double precision at identifying nonzeros. And then some.
-    // This is used only when we cannot a priori determine the most significant digit position, as
-    // we always can if we have a rational representation.
-    private static final int MAX_MSD_PREC_OFFSET = 1100;
+    // Maximum number of digits to the right of the decimal point, or of the most significant
+    // digit if that is further to the right, saved in the database with each result.  Enough
+    // to fill the display initially; more are recomputed when scrolling.
+    private static final int MAX_SAVED_PREC_OFFSET = 100;
 
     // If we can replace an exponent by this many leading zeroes, we do so.  Also used in
     // estimating exponent size for truncating short representation.
@@ -272,10 +275,10 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
     // The main expression contains trig functions.
     private boolean mHasTrigFuncs;
 
-    public static final int INVALID_MSD = Integer.MAX_VALUE;
+    public static final int INVALID_MSD = EvaluatorCore.INVALID_MSD;
 
     // Used to represent an erroneous result or a required evaluation. Not displayed.
-    private static final String ERRONEOUS_RESULT = "ERR";
+    private static final DigitBuffer ERRONEOUS_RESULT = DigitBuffer.valueOf("ERR");
 
     /**
      * An individual CalculatorExpr, together with its evaluation state.
@@ -311,20 +314,58 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         // We cache the best known decimal result in mResultString.  Whenever that is
         // non-null, it is computed to exactly mResultStringOffset, which is always > 0.
         // Valid only if mResultString is non-null and (for the main expression) !mChangedValue.
-        // ERRONEOUS_RESULT indicates evaluation resulted in an error.
-        public String mResultString;
+        // ERRONEOUS_RESULT indicates evaluation resulted in an error.  Raising the precision
+        // replaces it by a longer buffer that shares storage with this one.
+        public DigitBuffer mResultString;
         public int mResultStringOffset = 0;
         // Number of digits to which (possibly incomplete) evaluation has been requested.
         // Only accessed by UI thread.
         public int mResultStringOffsetReq = 0;
+        // Certified digits computed with interval arithmetic while the initial exact evaluation
+        // is still running, computed to exactly mProvisionalStringOffset digits.  Displayed only
+        // while mResultString is null and mEvaluator is the AsyncEvaluator that produced it.
+        // Only accessed by UI thread.
+        public String mProvisionalString;
+        public int mProvisionalStringOffset = 0;
         // Position of most significant digit in current cached result, if determined.  This is just
         // the index in mResultString holding the msd.
         public int mMsdIndex = INVALID_MSD;
+        // Least significant digit offset, as computed by getLsdOffset().  Only meaningful if
+        // mResultString was read from the database, and mVal is still null.
+        public int mLsdOffset;
         // Long timeout needed for evaluation?
         public boolean mLongTimeout = false;
         public long mTimeStamp;
+        // Total time spent evaluating this expression and converting it to decimal, in
+        // nanoseconds.  Only updated by the currently running evaluator.
+        public volatile long mCostNanos;
+        // mResultCache key for mExpr and mDegreeMode. Set when evaluation starts. Null if the
+        // expression may have changed since.
+        public ResultCache.Key mCacheKey;
+        // Digit source for mVal, if that is known to be rational.  Created lazily by
+        // getRationalDigits().
+        public volatile RationalDigits mRationalDigits;
+    }
+
+    /**
+     * Return a digit source for the result of ei, if the result is known and rational.
+     * Otherwise return null.
+     */
+    private static RationalDigits getRationalDigits(ExprInfo ei) {
+        RationalDigits digits = ei.mRationalDigits;
+        if (digits == null) {
+            final UnifiedReal val = ei.mVal.get();
+            final BoundedRational rat = val == null ? null : val.boundedRationalValue();
+            if (rat == null) {
+                return null;
+            }
+            digits = ei.mRationalDigits = rat.digits();
+        }
+        return digits;
     }
 
+    // Cached expressions.  Bounded by trimExprs(); use ensureExprIsCached() to access entries
+    // that may have been evicted.
     private ConcurrentHashMap<Long, ExprInfo> mExprs = new ConcurrentHashMap<Long, ExprInfo>();
 
     // The database holding persistent expressions.
@@ -332,33 +373,248 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
 
     private ExprInfo mMainExpr;  //  == mExprs.get(MAIN_INDEX)
 
-    private SharedPreferences mSharedPrefs;
+    private final EvaluatorCore.Preferences mPrefs;
 
     private final Handler mTimeoutHandler;  // Used to schedule evaluation timeouts.
 
+    // Runs AsyncEvaluators and AsyncReevaluators, with separate lanes for user-required,
+    // instant, history and reevaluation tasks.
+    private final EvaluationScheduler mScheduler;
+
+    // Approximate memory bound for mResultCache.
+    private static final long RESULT_CACHE_BYTES = 1024 * 1024;
+
+    // The platform independent part of the evaluator, which we adapt to Android.
+    private final EvaluatorCore mCore;
+
+    // Results of recently evaluated expressions, shared by all expressions with identical
+    // serialized form, independent of their index.  Owned by mCore.
+    private final ResultCache mResultCache;
+
+    private final EvaluatorMetrics mMetrics;  // Owned by mCore.
+
+    // Bounds on the number and approximate total size of cached expressions.  Beyond these,
+    // least recently used expressions that are not pinned are evicted.  They are reread from the
+    // database if needed again.  See trimExprs().
+    private static final int MAX_CACHED_EXPRS = 250;
+    private static final long MAX_CACHED_EXPR_BYTES = 4 * 1024 * 1024;
+    // Rough size estimates for an ExprInfo, excluding the result string, and per result digit,
+    // including the digit buffer and the constructive real approximation.
+    private static final int EXPR_INFO_OVERHEAD = 500;
+    private static final int BYTES_PER_RESULT_DIGIT = 2;
+
+    // mExprs keys in access order, least recently used first. Protected by itself.
+    private final LinkedHashMap<Long, Boolean> mExprAccessOrder =
+            new LinkedHashMap<Long, Boolean>(16, 0.75f, true /* access order */);
+
+    // A trimExprs() call has been posted, but has not yet run.
+    private final AtomicBoolean mTrimPending = new AtomicBoolean();
+
+    private final Runnable mTrimRunnable = new Runnable() {
+        @Override
+        public void run() {
+            trimExprs();
+        }
+    };
+
     private void setMainExpr(ExprInfo expr) {
         mMainExpr = expr;
         mExprs.put(MAIN_INDEX, expr);
     }
 
+    /**
+     * Note that the expression at the given index was just used.
+     */
+    private void noteExprAccess(long index) {
+        synchronized (mExprAccessOrder) {
+            mExprAccessOrder.put(index, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Arrange for trimExprs() to run on the UI thread, if it might be needed.
+     * May be called from any thread.
+     */
+    private void scheduleTrim() {
+        if (mExprs.size() > MAX_CACHED_EXPRS / 2 && mTrimPending.compareAndSet(false, true)) {
+            mTimeoutHandler.post(mTrimRunnable);
+        }
+    }
+
+    private static long estimateSize(ExprInfo ei) {
+        final DigitBuffer rs = ei.mResultString;
+        return EXPR_INFO_OVERHEAD + (rs == null ? 0 : (long) BYTES_PER_RESULT_DIGIT * rs.length());
+    }
+
+    /**
+     * Return the indices of expressions that must not be evicted from mExprs: the main, history
+     * main, memory and saved expressions, those currently being evaluated, and any expressions
+     * they transitively reference.
+     */
+    private HashSet<Long> getPinnedIndices() {
+        final ArrayList<Long> toScan = new ArrayList<Long>();
+        toScan.add(MAIN_INDEX);
+        toScan.add(HISTORY_MAIN_INDEX);
+        if (mMemoryIndex != 0) {
+            toScan.add(mMemoryIndex);
+        }
+        if (mSavedIndex != 0) {
+            toScan.add(mSavedIndex);
+        }
+        for (Map.Entry<Long, ExprInfo> e : mExprs.entrySet()) {
+            if (e.getValue().mEvaluator != null) {
+                toScan.add(e.getKey());
+            }
+        }
+        final HashSet<Long> pinned = new HashSet<Long>();
+        int scanned = 0;
+        while (scanned != toScan.size()) {
+            final Long index = toScan.get(scanned++);
+            if (!pinned.add(index)) {
+                continue;
+            }
+            final ExprInfo ei = mExprs.get(index);
+            if (ei != null) {
+                // Referenced expressions that are not cached need no protection.
+                ei.mExpr.addAllReferencedExprs(toScan);
+            }
+        }
+        return pinned;
+    }
+
+    /**
+     * Evict least recently used, unpinned expressions from mExprs until we are within
+     * MAX_CACHED_EXPRS and MAX_CACHED_EXPR_BYTES.
+     * Runs on the UI thread, so that ExprInfo fields written by the UI thread are stable.
+     */
+    private void trimExprs() {
+        mTrimPending.set(false);
+        int count = mExprs.size();
+        long bytes = 0;
+        for (ExprInfo ei : mExprs.values()) {
+            bytes += estimateSize(ei);
+        }
+        if (count <= MAX_CACHED_EXPRS && bytes <= MAX_CACHED_EXPR_BYTES) {
+            return;
+        }
+        final HashSet<Long> pinned = getPinnedIndices();
+        synchronized (mExprAccessOrder) {
+            final Iterator<Long> it = mExprAccessOrder.keySet().iterator();
+            while ((count > MAX_CACHED_EXPRS || bytes > MAX_CACHED_EXPR_BYTES) && it.hasNext()) {
+                final Long index = it.next();
+                final ExprInfo ei = mExprs.get(index);
+                if (ei == null) {
+                    it.remove();
+                } else if (!pinned.contains(index) && mExprs.remove(index, ei)) {
+                    it.remove();
+                    --count;
+                    bytes -= estimateSize(ei);
+                }
+            }
+        }
+    }
+
     Evaluator(Context context) {
         mContext = context;
         setMainExpr(new ExprInfo(new CalculatorExpr(), false));
         mSavedName = "none";
         mTimeoutHandler = new Handler();
+        mScheduler = new EvaluationScheduler();
 
         mExprDB = new ExpressionDB(context);
-        mSharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
-        mMainExpr.mDegreeMode = mSharedPrefs.getBoolean(KEY_PREF_DEGREE_MODE, false);
-        long savedIndex = mSharedPrefs.getLong(KEY_PREF_SAVED_INDEX, 0L);
-        long memoryIndex = mSharedPrefs.getLong(KEY_PREF_MEMORY_INDEX, 0L);
+        mPrefs = new SharedPreferencesAdapter(
+                PreferenceManager.getDefaultSharedPreferences(context));
+        mCore = new EvaluatorCore(new AndroidClock(), new ExpressionDBStore(mExprDB), mPrefs,
+                RESULT_CACHE_BYTES);
+        mResultCache = mCore.getResultCache();
+        mMetrics = mCore.getMetrics();
+        mMainExpr.mDegreeMode = mCore.getDefaultDegreeMode();
+        long savedIndex = mPrefs.getLong(KEY_PREF_SAVED_INDEX, 0L);
+        long memoryIndex = mPrefs.getLong(KEY_PREF_MEMORY_INDEX, 0L);
         if (savedIndex != 0 && savedIndex != -1 /* Recover from old corruption */) {
             setSavedIndexWhenEvaluated(savedIndex);
         }
         if (memoryIndex != 0 && memoryIndex != -1) {
             setMemoryIndexWhenEvaluated(memoryIndex, false /* no need to persist again */);
         }
-        mSavedName = mSharedPrefs.getString(KEY_PREF_SAVED_NAME, "none");
+        mSavedName = mPrefs.getString(KEY_PREF_SAVED_NAME, "none");
+    }
+
+    /**
+     * EvaluatorCore.Clock backed by SystemClock.
+     */
+    private static class AndroidClock implements EvaluatorCore.Clock {
+        @Override
+        public long nanoTime() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * EvaluatorCore.ExprStore backed by the expression database.
+     */
+    private static class ExpressionDBStore implements EvaluatorCore.ExprStore {
+        private final ExpressionDB mDB;
+
+        ExpressionDBStore(ExpressionDB db) {
+            mDB = db;
+        }
+
+        @Override
+        public EvaluatorCore.StoredExpr read(long index) {
+            final ExpressionDB.RowData row = mDB.getRow(index);
+            return new EvaluatorCore.StoredExpr(row.mExpression, row.degreeMode(),
+                    row.longTimeout(), row.mTimeStamp, row.mResultString,
+                    row.mResultStringOffset, row.mMsdIndex, row.mLsdOffset);
+        }
+
+        @Override
+        public long add(boolean negativeIndex, EvaluatorCore.StoredExpr e) {
+            return mDB.addRow(negativeIndex, new ExpressionDB.RowData(e.expr, e.degreeMode,
+                    e.longTimeout, e.timeStamp, e.resultString, e.resultStringOffset,
+                    e.msdIndex, e.lsdOffset));
+        }
+    }
+
+    /**
+     * EvaluatorCore.Preferences backed by SharedPreferences.  Updates are applied
+     * asynchronously.
+     */
+    private static class SharedPreferencesAdapter implements EvaluatorCore.Preferences {
+        private final SharedPreferences mSharedPrefs;
+
+        SharedPreferencesAdapter(SharedPreferences prefs) {
+            mSharedPrefs = prefs;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return mSharedPrefs.getBoolean(key, defValue);
+        }
+        @Override
+        public long getLong(String key, long defValue) {
+            return mSharedPrefs.getLong(key, defValue);
+        }
+        @Override
+        public String getString(String key, String defValue) {
+            return mSharedPrefs.getString(key, defValue);
+        }
+        @Override
+        public void putBoolean(String key, boolean value) {
+            mSharedPrefs.edit().putBoolean(key, value).apply();
+        }
+        @Override
+        public void putLong(String key, long value) {
+            mSharedPrefs.edit().putLong(key, value).apply();
+        }
+        @Override
+        public void putString(String key, String value) {
+            mSharedPrefs.edit().putString(key, value).apply();
+        }
     }
 
     /**
@@ -398,6 +654,23 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         return index == MAIN_INDEX || index == HISTORY_MAIN_INDEX;
     }
 
+    /**
+     * A provisional result computed with interval arithmetic, displayed until the exact
+     * initial result is available.
+     */
+    private static class ProvisionalResult {
+        public final String resultString;
+        public final int resultStringOffset;
+        public final int msdIndex;
+        public final int initDisplayOffset;
+        ProvisionalResult(String s, int p, int msd, int idp) {
+            resultString = s;
+            resultStringOffset = p;
+            msdIndex = msd;
+            initDisplayOffset = idp;
+        }
+    }
+
     /**
      * Result of initial asynchronous result computation.
      * Represents either an error or a result computed to an initial evaluation precision.
@@ -405,10 +678,10 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
     private static class InitialResult {
         public final int errorResourceId;    // Error string or INVALID_RES_ID.
         public final UnifiedReal val;        // Constructive real value.
-        public final String newResultString;       // Null iff it can't be computed.
+        public final DigitBuffer newResultString;       // Null iff it can't be computed.
         public final int newResultStringOffset;
         public final int initDisplayOffset;
-        InitialResult(UnifiedReal v, String s, int p, int idp) {
+        InitialResult(UnifiedReal v, DigitBuffer s, int p, int idp) {
             errorResourceId = Calculator.INVALID_RES_ID;
             val = v;
             newResultString = s;
@@ -418,7 +691,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         InitialResult(int errorId) {
             errorResourceId = errorId;
             val = UnifiedReal.ZERO;
-            newResultString = "BAD";
+            newResultString = DigitBuffer.valueOf("BAD");
             newResultStringOffset = 0;
             initDisplayOffset = 0;
         }
@@ -472,12 +745,6 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      */
     private static final long NON_MAIN_TIMEOUT = 100000;
 
-    /**
-     * Maximum result bit length for unrequested, speculative evaluations.
-     * Also used to bound evaluation precision for small non-zero fractions.
-     */
-    private static final int QUICK_MAX_RESULT_BITS = 150000;
-
     private void displayTimeoutMessage(boolean longTimeout) {
         if (mCallback != null) {
             mCallback.showMessageDialog(R.string.dialog_timeout, R.string.timeout,
@@ -495,15 +762,17 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * completes.  Can result in an error display if something goes wrong.  By default we set a
      * timeout to catch runaway computations.
      */
-    class AsyncEvaluator extends AsyncTask<Void, Void, InitialResult> {
+    class AsyncEvaluator extends AsyncTask<Void, ProvisionalResult, InitialResult> {
         private boolean mDm;  // degrees
         public boolean mRequired; // Result was requested by user.
+        public final int mLane;  // EvaluationScheduler lane we run in.
         private boolean mQuiet;  // Suppress cancellation message.
         private Runnable mTimeoutRunnable = null;
         private EvaluationListener mListener;  // Completion callback.
         private CharMetricsInfo mCharMetricsInfo;  // Where to get result size information.
         private long mIndex;  //  Expression index.
         private ExprInfo mExprInfo;  // Current expression.
+        private final ResultCache.Key mCacheKey;
 
         AsyncEvaluator(long index, EvaluationListener listener, CharMetricsInfo cmi, boolean dm,
                 boolean required) {
@@ -513,16 +782,24 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             mDm = dm;
             mRequired = required;
             mQuiet = !required || mIndex != MAIN_INDEX;
+            if (mIndex != MAIN_INDEX) {
+                mLane = EvaluationScheduler.LANE_HISTORY;
+            } else {
+                mLane = required ? EvaluationScheduler.LANE_REQUIRED
+                        : EvaluationScheduler.LANE_INSTANT;
+            }
             mExprInfo = mExprs.get(mIndex);
             if (mExprInfo.mEvaluator != null) {
                 throw new AssertionError("Evaluation already in progress!");
             }
+            mCacheKey = mExprInfo.mCacheKey;
         }
 
         private void handleTimeout() {
             // Runs in UI thread.
             boolean running = (getStatus() != AsyncTask.Status.FINISHED);
             if (running && cancel(true)) {
+                mMetrics.increment(EvaluatorMetrics.TIMEOUTS);
                 mExprs.get(mIndex).mEvaluator = null;
                 if (mRequired && mIndex == MAIN_INDEX) {
                     // Replace mExpr with clone to avoid races if task still runs for a while.
@@ -562,8 +839,34 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
          */
         private boolean isTooBig(UnifiedReal res) {
             final int maxBits = mRequired ? getMaxResultBits(mExprInfo.mLongTimeout)
-                    : QUICK_MAX_RESULT_BITS;
-            return res.approxWholeNumberBitsGreaterThan(maxBits);
+                    : EvaluatorCore.QUICK_MAX_RESULT_BITS;
+            if (res.approxWholeNumberBitsGreaterThan(maxBits)) {
+                mMetrics.increment(EvaluatorMetrics.TOO_BIG);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Try to compute a provisional result for an instant result with interval arithmetic.
+         * Return null if the interval is too wide, or the result looks like it might be a short
+         * terminating decimal, which we would briefly display with spurious trailing zeroes.
+         */
+        private ProvisionalResult computeProvisionalResult() {
+            final DoubleInterval interval = mExprInfo.mExpr.evalInterval(mDm, Evaluator.this);
+            if (interval == null) {
+                return null;
+            }
+            final String s = interval.toCertifiedString(MIN_PROVISIONAL_DIGITS);
+            if (s == null || s.endsWith("0000") || s.endsWith("9999")) {
+                return null;
+            }
+            final int dotIndex = s.indexOf('.');
+            final int offset = s.length() - dotIndex - 1;
+            final int msd = getMsdIndexOf(s);
+            final int displayOffset = Math.min(getPreferredPrec(DigitBuffer.valueOf(s), msd,
+                    Integer.MAX_VALUE, mCharMetricsInfo), offset);
+            return new ProvisionalResult(s, offset, msd, displayOffset);
         }
 
         @Override
@@ -571,9 +874,25 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             try {
                 // mExpr does not change while we are evaluating; thus it's OK to read here.
                 UnifiedReal res = mExprInfo.mVal.get();
+                if (res == null) {
+                    final ResultCache.Entry cached = mResultCache.get(mCacheKey);
+                    if (cached != null) {
+                        res = putResultIfAbsent(mIndex, cached.val);
+                    }
+                }
+                if (res == null && !mRequired && mIndex == MAIN_INDEX) {
+                    // Show something right away if exact evaluation is slow.
+                    final ProvisionalResult provisional = computeProvisionalResult();
+                    if (provisional != null) {
+                        publishProgress(provisional);
+                    }
+                }
                 if (res == null) {
                     try {
+                        final long evalStart = mMetrics.now();
                         res = mExprInfo.mExpr.eval(mDm, Evaluator.this);
+                        mExprInfo.mCostNanos +=
+                                mMetrics.recordSince(EvaluatorMetrics.EVAL, evalStart);
                         if (isCancelled()) {
                             // TODO: This remains very slightly racey. Fix this.
                             throw new CR.AbortedException();
@@ -589,35 +908,19 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
                     // Avoid starting a long uninterruptible decimal conversion.
                     return new InitialResult(R.string.timeout);
                 }
-                int precOffset = INIT_PREC;
-                String initResult = res.toStringTruncated(precOffset);
-                int msd = getMsdIndexOf(initResult);
-                if (msd == INVALID_MSD) {
-                    int leadingZeroBits = res.leadingBinaryZeroes();
-                    if (leadingZeroBits < QUICK_MAX_RESULT_BITS) {
-                        // Enough initial nonzero digits for most displays.
-                        precOffset = 30 +
-                                (int)Math.ceil(Math.log(2.0d) / Math.log(10.0d) * leadingZeroBits);
-                        initResult = res.toStringTruncated(precOffset);
-                        msd = getMsdIndexOf(initResult);
-                        if (msd == INVALID_MSD) {
-                            throw new AssertionError("Impossible zero result");
-                        }
-                    } else {
-                        // Just try once more at higher fixed precision.
-                        precOffset = MAX_MSD_PREC_OFFSET;
-                        initResult = res.toStringTruncated(precOffset);
-                        msd = getMsdIndexOf(initResult);
-                    }
-                }
-                final int lsdOffset = getLsdOffset(res, initResult, initResult.indexOf('.'));
-                final int initDisplayOffset = getPreferredPrec(initResult, msd, lsdOffset,
-                        mCharMetricsInfo);
+                final long conversionStart = mMetrics.now();
+                final EvaluatorCore.Result approx = mCore.approximate(res);
+                int precOffset = approx.resultStringOffset;
+                DigitBuffer initResult = approx.resultString;
+                final int initDisplayOffset = getPreferredPrec(initResult, approx.msdIndex,
+                        approx.lsdOffset, mCharMetricsInfo);
                 final int newPrecOffset = initDisplayOffset + EXTRA_DIGITS;
                 if (newPrecOffset > precOffset) {
                     precOffset = newPrecOffset;
-                    initResult = res.toStringTruncated(precOffset);
+                    initResult = initResult.extendTo(res.toStringTruncated(precOffset));
                 }
+                mExprInfo.mCostNanos += mMetrics.recordSince(EvaluatorMetrics.INITIAL_CONVERSION,
+                        conversionStart);
                 return new InitialResult(res, initResult, precOffset, initDisplayOffset);
             } catch (CalculatorExpr.SyntaxException e) {
                 return new InitialResult(R.string.error_syntax);
@@ -633,9 +936,25 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             }
         }
 
+        @Override
+        protected void onProgressUpdate(ProvisionalResult... provisional) {
+            if (isCancelled() || mExprInfo.mEvaluator != this
+                    || mExprInfo.mResultString != null) {
+                return;
+            }
+            final ProvisionalResult p = provisional[0];
+            mExprInfo.mProvisionalString = p.resultString;
+            mExprInfo.mProvisionalStringOffset = p.resultStringOffset;
+            mMetrics.increment(EvaluatorMetrics.PROVISIONAL_RESULTS);
+            // The exact result will replace this with another onEvaluate() call, or an error.
+            mListener.onEvaluate(mIndex, p.initDisplayOffset, p.msdIndex, Integer.MAX_VALUE,
+                    p.resultString.substring(0, p.resultString.indexOf('.')));
+        }
+
         @Override
         protected void onPostExecute(InitialResult result) {
             mExprInfo.mEvaluator = null;
+            mExprInfo.mProvisionalString = null;
             mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
             if (result.isError()) {
                 if (result.errorResourceId == R.string.timeout) {
@@ -655,6 +974,14 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             // mExprInfo.mVal was already set asynchronously by child thread.
             mExprInfo.mResultString = result.newResultString;
             mExprInfo.mResultStringOffset = result.newResultStringOffset;
+            final ResultCache.Entry best = mResultCache.put(mCacheKey, result.val,
+                    result.newResultString, result.newResultStringOffset);
+            if (best.resultString != null
+                    && best.resultStringOffset > mExprInfo.mResultStringOffset) {
+                // Reuse digits previously computed for an identical expression.
+                mExprInfo.mResultString = best.resultString;
+                mExprInfo.mResultStringOffset = best.resultStringOffset;
+            }
             final int dotIndex = mExprInfo.mResultString.indexOf('.');
             String truncatedWholePart = mExprInfo.mResultString.substring(0, dotIndex);
             // Recheck display precision; it may change, since display dimensions may have been
@@ -691,73 +1018,128 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
     }
 
     /**
-     * Check whether a new higher precision result flips previously computed trailing 9s
-     * to zeroes.  If so, flip them back.  Return the adjusted result.
-     * Assumes newPrecOffset >= oldPrecOffset > 0.
-     * Since our results are accurate to < 1 ulp, this can only happen if the true result
-     * is less than the new result with trailing zeroes, and thus appending 9s to the
-     * old result must also be correct.  Such flips are impossible if the newly computed
-     * digits consist of anything other than zeroes.
-     * It is unclear that there are real cases in which this is necessary,
-     * but we have failed to prove there aren't such cases.
+     * See EvaluatorCore.unflipZeroes().
      */
     @VisibleForTesting
-    public static String unflipZeroes(String oldDigs, int oldPrecOffset, String newDigs,
-            int newPrecOffset) {
-        final int oldLen = oldDigs.length();
-        if (oldDigs.charAt(oldLen - 1) != '9') {
-            return newDigs;
-        }
-        final int newLen = newDigs.length();
-        final int precDiff = newPrecOffset - oldPrecOffset;
-        final int oldLastInNew = newLen - 1 - precDiff;
-        if (newDigs.charAt(oldLastInNew) != '0') {
-            return newDigs;
-        }
-        // Earlier digits could not have changed without a 0 to 9 or 9 to 0 flip at end.
-        // The former is OK.
-        if (!newDigs.substring(newLen - precDiff).equals(StringUtils.repeat('0', precDiff))) {
-            throw new AssertionError("New approximation invalidates old one!");
-        }
-        return oldDigs + StringUtils.repeat('9', precDiff);
+    public static DigitBuffer unflipZeroes(DigitBuffer oldDigs, int oldPrecOffset,
+            DigitBuffer newDigs, int newPrecOffset) {
+        return EvaluatorCore.unflipZeroes(oldDigs, oldPrecOffset, newDigs, newPrecOffset);
     }
 
     /**
      * Result of asynchronous reevaluation.
      */
     private static class ReevalResult {
-        public final String newResultString;
+        public final DigitBuffer newResultString;
         public final int newResultStringOffset;
-        ReevalResult(String s, int p) {
+        ReevalResult(DigitBuffer s, int p) {
             newResultString = s;
             newResultStringOffset = p;
         }
     }
 
     /**
-     * Compute new mResultString contents to prec digits to the right of the decimal point.
-     * Ensure that onReevaluate() is called after doing so.  If the evaluation fails for reasons
-     * other than a timeout, ensure that onError() is called.
+     * Compute new mResultString contents to successively higher precisions, until we reach
+     * a target precision, which may be raised while we are running.
+     * Ensure that onReevaluate() is called after each increase in precision.  If the evaluation
+     * fails for reasons other than a timeout, ensure that onError() is called.
      * This assumes that initial evaluation of the expression has been successfully
      * completed.
      */
-    private class AsyncReevaluator extends AsyncTask<Integer, Void, ReevalResult> {
+    private class AsyncReevaluator extends AsyncTask<Void, ReevalResult, ReevalResult> {
         private long mIndex;  // Index of expression to evaluate.
-        private EvaluationListener mListener;
+        private EvaluationListener mListener;  // Only accessed by UI thread.
         private ExprInfo mExprInfo;
+        private int mProducedOffset;  // Offset of last result we produced. Background thread.
+        private DigitBuffer mProduced;  // Last result we produced, or null. Background thread.
+        private int mTargetOffset;  // Requested precision offset. Protected by this.
+        private boolean mDone;  // We will not compute any more digits. Protected by this.
 
-        AsyncReevaluator(long index, EvaluationListener listener) {
+        AsyncReevaluator(long index, EvaluationListener listener, DigitBuffer current,
+                int currentOffset, int targetOffset) {
             mIndex = index;
             mListener = listener;
             mExprInfo = mExprs.get(mIndex);
+            mProduced = current;
+            mProducedOffset = currentOffset;
+            mTargetOffset = targetOffset;
+        }
+
+        /**
+         * Ask for at least targetOffset digits, without discarding work already done.
+         * Runs in UI thread.
+         * @return false if we already stopped producing digits, in which case the caller
+         * should start a new AsyncReevaluator.
+         */
+        public synchronized boolean raiseTarget(int targetOffset, EvaluationListener listener) {
+            if (mDone || isCancelled()) {
+                return false;
+            }
+            mTargetOffset = Math.max(mTargetOffset, targetOffset);
+            mListener = listener;
+            return true;
+        }
+
+        /**
+         * Return the digits we produced if we finished without being cancelled, or null.
+         * Our last results may still be waiting to be delivered to the UI thread.  A
+         * replacement should continue from these rather than cancelling us.
+         * Runs in UI thread.
+         */
+        public synchronized ReevalResult getFinishedResult() {
+            if (!mDone || isCancelled() || mProduced == null) {
+                return null;
+            }
+            return new ReevalResult(mProduced, mProducedOffset);
+        }
+
+        /**
+         * Return the next precision offset to compute, or 0 if we have reached the target.
+         * We never jump by more than about half the current offset at a time, so that digits
+         * show up promptly even if the target keeps rising during a fling.
+         */
+        private synchronized int nextOffset() {
+            if (mTargetOffset <= mProducedOffset) {
+                mDone = true;
+                return 0;
+            }
+            final int maxStep = Math.max(PRECOMPUTE_DIGITS, Math.abs(mProducedOffset) / 2);
+            return Math.min(mTargetOffset, mProducedOffset + maxStep);
         }
 
         @Override
-        protected ReevalResult doInBackground(Integer... prec) {
+        protected ReevalResult doInBackground(Void... nothing) {
             try {
-                final int precOffset = prec[0].intValue();
-                return new ReevalResult(mExprInfo.mVal.get().toStringTruncated(precOffset),
-                        precOffset);
+                UnifiedReal val = mExprInfo.mVal.get();
+                if (val == null) {
+                    // mResultString was read from the database. We need the value to do better.
+                    val = putResultIfAbsent(mIndex,
+                            mExprInfo.mExpr.eval(mExprInfo.mDegreeMode, Evaluator.this));
+                }
+                final RationalDigits digits = getRationalDigits(mExprInfo);
+                ReevalResult result = null;
+                for (int precOffset = nextOffset(); precOffset != 0; precOffset = nextOffset()) {
+                    final long start = mMetrics.now();
+                    if (digits != null && mProduced != null && precOffset > mProducedOffset
+                            && mProducedOffset >= 0) {
+                        // Rational digits are exact; just continue the long division.
+                        mProduced = mProduced.append(digits.getDigits(mProducedOffset, precOffset));
+                    } else {
+                        // Usually only appends to the digits we already have.
+                        final String s = val.toStringTruncated(precOffset);
+                        mProduced = mProduced == null ? DigitBuffer.valueOf(s)
+                                : mProduced.extendTo(s);
+                    }
+                    result = new ReevalResult(mProduced, precOffset);
+                    mExprInfo.mCostNanos +=
+                            mMetrics.recordSince(EvaluatorMetrics.REEVALUATION, start);
+                    mProducedOffset = precOffset;
+                    publishProgress(result);
+                }
+                return result;
+            } catch(CalculatorExpr.SyntaxException e) {
+                // Saved expression no longer parses. Should not happen.
+                return null;
             } catch(ArithmeticException e) {
                 return null;
             } catch(CR.PrecisionOverflowException e) {
@@ -766,73 +1148,129 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
                 // Should only happen if the task was cancelled, in which case we don't look at
                 // the result.
                 return null;
+            } finally {
+                synchronized (this) {
+                    mDone = true;
+                }
             }
         }
 
+        /**
+         * Incorporate a newly computed result, if it improves on what we have.
+         */
+        private void update(ReevalResult result) {
+            if (result.newResultStringOffset <= mExprInfo.mResultStringOffset) {
+                // Already incorporated via onProgressUpdate.
+                return;
+            }
+            if (mExprInfo.mResultString == null) {
+                // Expression was evicted and reread without a saved result.
+                mExprInfo.mResultString = result.newResultString;
+            } else {
+                mExprInfo.mResultString = unflipZeroes(mExprInfo.mResultString,
+                        mExprInfo.mResultStringOffset, result.newResultString,
+                        result.newResultStringOffset);
+            }
+            if (mExprInfo.mResultString != result.newResultString) {
+                mMetrics.increment(EvaluatorMetrics.UNFLIP_CORRECTIONS);
+            }
+            mExprInfo.mResultStringOffset = result.newResultStringOffset;
+            if (mExprInfo.mCacheKey != null) {
+                mResultCache.put(mExprInfo.mCacheKey, mExprInfo.mVal.get(),
+                        mExprInfo.mResultString, mExprInfo.mResultStringOffset);
+            }
+            mListener.onReevaluate(mIndex);
+        }
+
+        @Override
+        protected void onProgressUpdate(ReevalResult... results) {
+            if (mExprInfo.mEvaluator != this) {
+                // Cancelled, but progress was already posted.
+                return;
+            }
+            update(results[0]);
+        }
+
         @Override
         protected void onPostExecute(ReevalResult result) {
-            if (result == null) {
+            if (mExprInfo.mEvaluator != this) {
+                return;
+            }
+            mExprInfo.mEvaluator = null;
+            if (result == null && mProducedOffset < mTargetOffset) {
                 // This should only be possible in the extremely rare case of encountering a
                 // domain error while reevaluating or in case of a precision overflow.  We don't
                 // know of a way to get the latter with a plausible amount of user input.
                 mExprInfo.mResultString = ERRONEOUS_RESULT;
                 mListener.onError(mIndex, R.string.error_nan);
-            } else {
-                if (result.newResultStringOffset < mExprInfo.mResultStringOffset) {
-                    throw new AssertionError("Unexpected onPostExecute timing");
-                }
-                mExprInfo.mResultString = unflipZeroes(mExprInfo.mResultString,
-                        mExprInfo.mResultStringOffset, result.newResultString,
-                        result.newResultStringOffset);
-                mExprInfo.mResultStringOffset = result.newResultStringOffset;
-                mListener.onReevaluate(mIndex);
+            } else if (result != null) {
+                update(result);
             }
-            mExprInfo.mEvaluator = null;
         }
         // On cancellation we do nothing; invoker should have left no trace of us.
     }
 
     /**
      * If necessary, start an evaluation of the expression at the given index to precOffset.
-     * If we start an evaluation the listener is notified on completion.
+     * If an evaluation is already running, just raise its target precision.
+     * If we start an evaluation the listener is notified whenever more digits are available.
      * Only called if prior evaluation succeeded.
      */
     private void ensureCachePrec(long index, int precOffset, EvaluationListener listener) {
-        ExprInfo ei = mExprs.get(index);
+        ExprInfo ei = ensureExprIsCached(index);
         if (ei.mResultString != null && ei.mResultStringOffset >= precOffset
                 || ei.mResultStringOffsetReq >= precOffset) return;
-        if (ei.mEvaluator != null) {
+        int newOffsetReq = precOffset + PRECOMPUTE_DIGITS;
+        if (ei.mResultString != null) {
+            newOffsetReq += newOffsetReq / PRECOMPUTE_DIVISOR;
+        }
+        if (ei.mEvaluator instanceof AsyncReevaluator
+                && ((AsyncReevaluator) ei.mEvaluator).raiseTarget(newOffsetReq, listener)) {
+            // Keep the digits it is already producing.
+            ei.mResultStringOffsetReq = newOffsetReq;
+            return;
+        }
+        DigitBuffer current = ei.mResultString;
+        int currentOffset = ei.mResultStringOffset;
+        final ReevalResult finished = ei.mEvaluator instanceof AsyncReevaluator
+                ? ((AsyncReevaluator) ei.mEvaluator).getFinishedResult() : null;
+        if (finished != null) {
+            // It already stopped, but may not have delivered its last digits.  Nothing to
+            // cancel; just continue from where it left off.
+            if (current == null || finished.newResultStringOffset > currentOffset) {
+                current = finished.newResultString;
+                currentOffset = finished.newResultStringOffset;
+            }
+            ei.mEvaluator = null;
+        } else if (ei.mEvaluator != null) {
             // Ensure we only have one evaluation running at a time.
             ei.mEvaluator.cancel(true);
+            mMetrics.increment(ei.mEvaluator instanceof AsyncReevaluator
+                    ? EvaluatorMetrics.REEVAL_CANCELLATIONS : EvaluatorMetrics.CANCELLATIONS);
             ei.mEvaluator = null;
         }
-        AsyncReevaluator reEval = new AsyncReevaluator(index, listener);
+        AsyncReevaluator reEval = new AsyncReevaluator(index, listener, current, currentOffset,
+                newOffsetReq);
         ei.mEvaluator = reEval;
-        ei.mResultStringOffsetReq = precOffset + PRECOMPUTE_DIGITS;
-        if (ei.mResultString != null) {
-            ei.mResultStringOffsetReq += ei.mResultStringOffsetReq / PRECOMPUTE_DIVISOR;
-        }
-        reEval.execute(ei.mResultStringOffsetReq);
+        ei.mResultStringOffsetReq = newOffsetReq;
+        reEval.executeOnExecutor(mScheduler.getExecutor(EvaluationScheduler.LANE_REEVALUATE));
     }
 
     /**
-     * Return the rightmost nonzero digit position, if any.
-     * @param val UnifiedReal value of result.
-     * @param cache Current cached decimal string representation of result.
-     * @param decIndex Index of decimal point in cache.
-     * @result Position of rightmost nonzero digit relative to decimal point.
-     *         Integer.MIN_VALUE if we cannot determine.  Integer.MAX_VALUE if there is no lsd,
-     *         or we cannot determine it.
+     * Return the least significant digit offset for the result of the given ExprInfo, which must
+     * have a non-null mResultString.  Uses the offset saved with the result, if the result was
+     * read from the database and has not been recomputed.
      */
-    static int getLsdOffset(UnifiedReal val, String cache, int decIndex) {
-        if (val.definitelyZero()) return Integer.MIN_VALUE;
-        int result = val.digitsRequired();
-        if (result == 0) {
-            int i;
-            for (i = -1; decIndex + i > 0 && cache.charAt(decIndex + i) == '0'; --i) { }
-            result = i;
+    private static int getLsdOffset(ExprInfo ei, int decIndex) {
+        final UnifiedReal val = ei.mVal.get();
+        if (val == null) {
+            return ei.mLsdOffset;
         }
-        return result;
+        return getLsdOffset(val, ei.mResultString, decIndex);
+    }
+
+    static int getLsdOffset(UnifiedReal val, CharSequence cache, int decIndex) {
+        return EvaluatorCore.getLsdOffset(val, cache, decIndex);
     }
 
     // TODO: We may want to consistently specify the position of the current result
@@ -848,7 +1286,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * @param lastDigitOffset Position of least significant digit (1 = tenths digit)
      *                  or Integer.MAX_VALUE.
      */
-    private static int getPreferredPrec(String cache, int msd, int lastDigitOffset,
+    private static int getPreferredPrec(DigitBuffer cache, int msd, int lastDigitOffset,
             CharMetricsInfo cm) {
         final int lineLength = cm.getMaxChars();
         final int wholeSize = cache.indexOf('.');
@@ -878,7 +1316,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             // Display number without scientific notation.  Treat leading zero as msd.
             msd = wholeSize - 1;
         }
-        if (msd > QUICK_MAX_RESULT_BITS) {
+        if (msd > EvaluatorCore.QUICK_MAX_RESULT_BITS) {
             // Display a probable but uncertain 0 as "0.000000000", without exponent.  That's a
             // judgment call, but less likely to confuse naive users.  A more informative and
             // confusing option would be to use a large negative exponent.
@@ -916,7 +1354,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * @param lsdOffset Position of least significant digit in finite representation,
      *            relative to decimal point, or MAX_VALUE.
      */
-    private static String getShortString(String cache, int msdIndex, int lsdOffset) {
+    private static String getShortString(DigitBuffer cache, int msdIndex, int lsdOffset) {
         // This somewhat mirrors the display formatting code, but
         // - The constants are different, since we don't want to use the whole display.
         // - This is an easier problem, since we don't support scrolling and the length
@@ -931,7 +1369,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             msdIndex = INVALID_MSD;
         }
         if (msdIndex == INVALID_MSD) {
-            if (lsdOffset < INIT_PREC) {
+            if (lsdOffset < EvaluatorCore.INIT_PREC) {
                 return "0";
             } else {
                 return SHORT_UNCERTAIN_ZERO;
@@ -990,24 +1428,10 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
 
     /**
      * Return the most significant digit index in the given numeric string.
-     * Return INVALID_MSD if there are not enough digits to prove the numeric value is
-     * different from zero.  As usual, we assume an error of strictly less than 1 ulp.
-     */
-    public static int getMsdIndexOf(String s) {
-        final int len = s.length();
-        int nonzeroIndex = -1;
-        for (int i = 0; i < len; ++i) {
-            char c = s.charAt(i);
-            if (c != '-' && c != '.' && c != '0') {
-                nonzeroIndex = i;
-                break;
-            }
-        }
-        if (nonzeroIndex >= 0 && (nonzeroIndex < len - 1 || s.charAt(nonzeroIndex) != '1')) {
-            return nonzeroIndex;
-        } else {
-            return INVALID_MSD;
-        }
+     * See EvaluatorCore.getMsdIndexOf().
+     */
+    public static int getMsdIndexOf(CharSequence s) {
+        return EvaluatorCore.getMsdIndexOf(s);
     }
 
     /**
@@ -1017,7 +1441,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * Result is almost consistent through reevaluations: It may increase by one, once.
      */
     private int getMsdIndex(long index) {
-        ExprInfo ei = mExprs.get(index);
+        ExprInfo ei = ensureExprIsCached(index);
         if (ei.mMsdIndex != INVALID_MSD) {
             // 0.100000... can change to 0.0999999...  We may have to correct once by one digit.
             if (ei.mResultString.charAt(ei.mMsdIndex) == '0') {
@@ -1025,7 +1449,8 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             }
             return ei.mMsdIndex;
         }
-        if (ei.mVal.get().definitelyZero()) {
+        final UnifiedReal val = ei.mVal.get();
+        if (val != null && val.definitelyZero()) {
             return INVALID_MSD;  // None exists
         }
         int result = INVALID_MSD;
@@ -1064,25 +1489,66 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      */
     public String getString(long index, int[] precOffset, int maxPrecOffset, int maxDigs,
             boolean[] truncated, boolean[] negative, EvaluationListener listener) {
-        ExprInfo ei = mExprs.get(index);
+        final StringBuilder result = new StringBuilder();
+        getString(index, precOffset, maxPrecOffset, maxDigs, truncated, negative, listener,
+                result);
+        return result.toString();
+    }
+
+    /**
+     * Like getString() above, but append the result to the supplied StringBuilder instead of
+     * returning it.  Used for redisplay while scrolling: If the requested digits are already
+     * available, and the StringBuilder has sufficient capacity, this does not allocate.
+     */
+    public void getString(long index, int[] precOffset, int maxPrecOffset, int maxDigs,
+            boolean[] truncated, boolean[] negative, EvaluationListener listener,
+            StringBuilder result) {
+        ExprInfo ei = ensureExprIsCached(index);
         int currentPrecOffset = precOffset[0];
+        if (ei.mResultString == null && ei.mProvisionalString != null
+                && ei.mEvaluator instanceof AsyncEvaluator) {
+            // The running evaluator will notify the listener again when it's done.
+            getProvisionalString(ei, precOffset, maxPrecOffset, maxDigs, truncated, negative,
+                    result);
+            return;
+        }
+        // Digits of rational results beyond mResultString are computed directly from the
+        // digit source, without reevaluation.
+        final RationalDigits digits = ei.mResultString == null ? null : getRationalDigits(ei);
         // Make sure we eventually get a complete answer
         if (ei.mResultString == null) {
             ensureCachePrec(index, currentPrecOffset + EXTRA_DIGITS, listener);
             // Nothing else to do now; seems to happen on rare occasion with weird user input
             // timing; Will repair itself in a jiffy.
-            return " ";
-        } else {
+            result.append(' ');
+            return;
+        } else if (digits == null) {
             ensureCachePrec(index, currentPrecOffset + EXTRA_DIGITS + ei.mResultString.length()
                     / EXTRA_DIVISOR, listener);
         }
-        // Compute an appropriate substring of mResultString.  Pad if necessary.
-        final int len = ei.mResultString.length();
-        final boolean myNegative = ei.mResultString.charAt(0) == '-';
+        getWindow(ei.mResultString, ei.mResultStringOffset, getMsdIndex(index), digits,
+                precOffset, maxPrecOffset, maxDigs, truncated, negative, result);
+    }
+
+    /**
+     * The part of getString() that depends only on the cached result: Append the requested
+     * window of rs to result.
+     * @param rs The cached result, computed to exactly rsOffset digits
+     * @param msdIndex The most significant digit index in rs, or INVALID_MSD
+     * @param digits Digit source for digits beyond rs, or null
+     * Other parameters are as for getString().
+     */
+    private static void getWindow(DigitBuffer rs, int rsOffset, int msdIndex,
+            RationalDigits digits, int[] precOffset, int maxPrecOffset, int maxDigs,
+            boolean[] truncated, boolean[] negative, StringBuilder result) {
+        int currentPrecOffset = precOffset[0];
+        // Compute an appropriate substring of rs.  Pad if necessary.
+        final int len = rs.length();
+        final boolean myNegative = rs.charAt(0) == '-';
         negative[0] = myNegative;
-        // Don't scroll left past leftmost digits in mResultString unless that still leaves an
+        // Don't scroll left past leftmost digits in rs unless that still leaves an
         // integer.
-            int integralDigits = len - ei.mResultStringOffset;
+            int integralDigits = len - rsOffset;
                             // includes 1 for dec. pt
             if (myNegative) {
                 --integralDigits;
@@ -1091,27 +1557,119 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             currentPrecOffset = Math.min(Math.max(currentPrecOffset, minPrecOffset),
                     maxPrecOffset);
             precOffset[0] = currentPrecOffset;
-        int extraDigs = ei.mResultStringOffset - currentPrecOffset; // trailing digits to drop
+        int extraDigs = rsOffset - currentPrecOffset; // trailing digits to drop
         int deficit = 0;  // The number of digits we're short
         if (extraDigs < 0) {
             extraDigs = 0;
-            deficit = Math.min(currentPrecOffset - ei.mResultStringOffset, maxDigs);
+            deficit = Math.min(currentPrecOffset - rsOffset, maxDigs);
         }
         int endIndex = len - extraDigs;
         if (endIndex < 1) {
-            return " ";
+            result.append(' ');
+            return;
         }
         int startIndex = Math.max(endIndex + deficit - maxDigs, 0);
-        truncated[0] = (startIndex > getMsdIndex(index));
-        String result = ei.mResultString.substring(startIndex, endIndex);
-        if (deficit > 0) {
-            result += StringUtils.repeat(' ', deficit);
+        truncated[0] = (startIndex > msdIndex);
+        // Copy only the requested window out of rs.
+        rs.appendTo(result, startIndex, endIndex);
+        if (deficit > 0 && digits != null) {
+            // Only the requested window; takes time proportional to its size, even if we are
+            // far to the right of rs.
+            digits.appendDigits(currentPrecOffset - deficit, currentPrecOffset, result);
+        } else if (deficit > 0) {
+            for (int i = 0; i < deficit; ++i) {
+                result.append(' ');
+            }
             // Blank character is replaced during translation.
             // Since we always compute past the decimal point, this never fills in the spot
             // where the decimal point should go, and we can otherwise treat placeholders
             // as though they were digits.
         }
-        return result;
+    }
+
+    /**
+     * An immutable copy of the state getString() depends on, for producing long strings, e.g.
+     * for copying a result, in the background.  Unlike getString(), it never starts a
+     * reevaluation; digits that have not been computed are represented by blanks.
+     */
+    public static class ResultSnapshot {
+        private final DigitBuffer mResultString;
+        private final int mResultStringOffset;
+        private final int mMsdIndex;
+        private final RationalDigits mDigits;
+
+        private ResultSnapshot(DigitBuffer rs, int offset, int msdIndex, RationalDigits digits) {
+            mResultString = rs;
+            mResultStringOffset = offset;
+            mMsdIndex = msdIndex;
+            mDigits = digits;
+        }
+
+        /**
+         * Equivalent to Evaluator.getString(), but callable from any thread.
+         */
+        public void getString(int[] precOffset, int maxPrecOffset, int maxDigs,
+                boolean[] truncated, boolean[] negative, StringBuilder result) {
+            getWindow(mResultString, mResultStringOffset, mMsdIndex, mDigits, precOffset,
+                    maxPrecOffset, maxDigs, truncated, negative, result);
+        }
+    }
+
+    /**
+     * Return a snapshot of the result for the given index, or null if there is no valid result.
+     * UI thread only.
+     */
+    public ResultSnapshot getResultSnapshot(long index) {
+        final ExprInfo ei = ensureExprIsCached(index);
+        if (ei.mResultString == null || ei.mResultString == ERRONEOUS_RESULT
+                || (index == MAIN_INDEX && mChangedValue)) {
+            return null;
+        }
+        return new ResultSnapshot(ei.mResultString, ei.mResultStringOffset, getMsdIndex(index),
+                getRationalDigits(ei));
+    }
+
+    /**
+     * Return the result for the given index in repeating decimal notation, with the repeating
+     * block in parentheses, e.g. "0.(142857)", for copying as an alternative to scrolling.
+     * Return null unless the result is known to be rational with a nonterminating decimal
+     * expansion, whose notation fits in maxLength characters.  Like getString(), the result
+     * uses US conventions.
+     */
+    public String getRepeatingString(long index, int maxLength) {
+        final RationalDigits digits = getRationalDigits(ensureExprIsCached(index));
+        if (digits == null || digits.getPeriod() <= 0) {
+            return null;
+        }
+        return digits.toRepeatingString(maxLength);
+    }
+
+    /**
+     * The equivalent of getString() for a provisional result.  Never pads with blanks, since
+     * the provisional result is never extended.
+     */
+    private static void getProvisionalString(ExprInfo ei, int[] precOffset, int maxPrecOffset,
+            int maxDigs, boolean[] truncated, boolean[] negative, StringBuilder result) {
+        final String s = ei.mProvisionalString;
+        final int offset = ei.mProvisionalStringOffset;
+        final boolean myNegative = s.charAt(0) == '-';
+        negative[0] = myNegative;
+        int integralDigits = s.length() - offset;  // includes 1 for dec. pt
+        if (myNegative) {
+            --integralDigits;
+        }
+        final int minPrecOffset = Math.min(MIN_DISPLAYED_DIGS - integralDigits, -1);
+        final int currentPrecOffset = Math.min(Math.max(Math.min(precOffset[0], offset),
+                minPrecOffset), maxPrecOffset);
+        precOffset[0] = currentPrecOffset;
+        final int endIndex = s.length() - (offset - currentPrecOffset);
+        if (endIndex < 1) {
+            result.append(' ');
+            return;
+        }
+        final int startIndex = Math.max(endIndex - maxDigs, 0);
+        truncated[0] = startIndex > getMsdIndexOf(s);
+        result.append(s, startIndex, endIndex);
     }
 
     /**
@@ -1119,9 +1677,12 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      */
     private void clearMainCache() {
         mMainExpr.mVal.set(null);
+        mMainExpr.mRationalDigits = null;
         mMainExpr.mResultString = null;
         mMainExpr.mResultStringOffset = mMainExpr.mResultStringOffsetReq = 0;
+        mMainExpr.mProvisionalString = null;
         mMainExpr.mMsdIndex = INVALID_MSD;
+        mMainExpr.mCacheKey = null;
     }
 
 
@@ -1139,6 +1700,11 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         setMemoryIndex(0);
         mExprDB.eraseAll();
         mExprs.clear();
+        synchronized (mExprAccessOrder) {
+            mExprAccessOrder.clear();
+        }
+        // Cached expressions may refer to indices that will be reused.
+        mCore.clear();
         setMainExpr(new ExprInfo(new CalculatorExpr(), dm));
     }
 
@@ -1151,18 +1717,35 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      */
     private void evaluateResult(long index, EvaluationListener listener, CharMetricsInfo cmi,
             boolean required) {
-        ExprInfo ei = mExprs.get(index);
+        ExprInfo ei = ensureExprIsCached(index);
         if (index == MAIN_INDEX) {
             clearMainCache();
         }  // Otherwise the expression is immutable.
+        if (index == MAIN_INDEX && required) {
+            preemptSpeculative();
+        }
+        ei.mCacheKey = new ResultCache.Key(ei.mExpr.toBytes(), ei.mDegreeMode);
         AsyncEvaluator eval =  new AsyncEvaluator(index, listener, cmi, ei.mDegreeMode, required);
         ei.mEvaluator = eval;
-        eval.execute();
+        eval.executeOnExecutor(mScheduler.getExecutor(eval.mLane));
         if (index == MAIN_INDEX) {
             mChangedValue = false;
         }
     }
 
+    /**
+     * Quietly cancel all running speculative evaluations, so that they don't compete with
+     * an evaluation the user is waiting for.  Their listeners are notified via onCancelled().
+     */
+    private void preemptSpeculative() {
+        for (ExprInfo ei : mExprs.values()) {
+            if (ei.mEvaluator instanceof AsyncEvaluator
+                    && ((AsyncEvaluator) ei.mEvaluator).mLane == EvaluationScheduler.LANE_INSTANT) {
+                cancel(ei, true);
+            }
+        }
+    }
+
     /**
      * Notify listener of a previously completed evaluation.
      */
@@ -1170,7 +1753,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             CharMetricsInfo cmi) {
         final int dotIndex = ei.mResultString.indexOf('.');
         final String truncatedWholePart = ei.mResultString.substring(0, dotIndex);
-        final int leastDigOffset = getLsdOffset(ei.mVal.get(), ei.mResultString, dotIndex);
+        final int leastDigOffset = getLsdOffset(ei, dotIndex);
         final int msdIndex = getMsdIndex(index);
         final int preferredPrecOffset = getPreferredPrec(ei.mResultString, msdIndex,
                 leastDigOffset, cmi);
@@ -1193,7 +1776,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         if (ei.mResultString != null && ei.mResultString != ERRONEOUS_RESULT
                 && !(index == MAIN_INDEX && mChangedValue)) {
             // Already done. Just notify.
-            notifyImmediately(MAIN_INDEX, mMainExpr, listener, cmi);
+            notifyImmediately(index, ei, listener, cmi);
             return;
         } else if (ei.mEvaluator != null) {
             // We only allow a single listener per expression, so this request must be redundant.
@@ -1263,14 +1846,18 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
                 ((AsyncEvaluator)(expr.mEvaluator)).suppressCancelMessage();
             }
             // Reevaluation in progress.
-            if (expr.mVal.get() != null) {
+            if (expr.mVal.get() != null || expr.mEvaluator instanceof AsyncReevaluator) {
                 expr.mEvaluator.cancel(true);
+                mMetrics.increment(expr.mEvaluator instanceof AsyncReevaluator
+                        ? EvaluatorMetrics.REEVAL_CANCELLATIONS : EvaluatorMetrics.CANCELLATIONS);
                 expr.mResultStringOffsetReq = expr.mResultStringOffset;
                 // Backgound computation touches only constructive reals.
                 // OK not to wait.
                 expr.mEvaluator = null;
             } else {
                 expr.mEvaluator.cancel(true);
+                mMetrics.increment(EvaluatorMetrics.CANCELLATIONS);
+                expr.mProvisionalString = null;
                 if (expr == mMainExpr) {
                     // The expression is modifiable, and the AsyncTask is reading it.
                     // There seems to be no good way to wait for cancellation.
@@ -1339,6 +1926,51 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         }
     }
 
+    // Number of most expensive expressions listed in the metrics report.
+    private static final int REPORTED_EXPENSIVE_EXPRS = 5;
+
+    /**
+     * Return a plain text report of evaluation latencies and counters, together with the
+     * current state of caches, evaluation lanes and database writes.
+     */
+    public String getMetricsReport() {
+        final StringBuilder sb = new StringBuilder();
+        mMetrics.appendReport(sb);
+        sb.append("cached expressions: ").append(mExprs.size()).append('\n');
+        sb.append("result cache: ").append(mResultCache.getStats()).append('\n');
+        sb.append("powers of ten: ").append(PowersOfTen.getStats()).append('\n');
+        sb.append("database writes: ").append(mExprDB.getWriteStats()).append('\n');
+        for (int lane = 0; lane < EvaluationScheduler.NUM_LANES; ++lane) {
+            sb.append("lane ").append(EvaluationScheduler.getLaneName(lane))
+                    .append(": active=").append(mScheduler.getActiveCount(lane))
+                    .append(" queued=").append(mScheduler.getQueuedCount(lane)).append('\n');
+        }
+        // Simple selection of the most expensive expressions; mExprs is usually small.
+        final ArrayList<Map.Entry<Long, ExprInfo>> expensive =
+                new ArrayList<Map.Entry<Long, ExprInfo>>();
+        for (Map.Entry<Long, ExprInfo> e : mExprs.entrySet()) {
+            if (e.getValue().mCostNanos == 0) {
+                continue;
+            }
+            int i = expensive.size();
+            while (i > 0 && expensive.get(i - 1).getValue().mCostNanos
+                    < e.getValue().mCostNanos) {
+                --i;
+            }
+            if (i < REPORTED_EXPENSIVE_EXPRS) {
+                expensive.add(i, e);
+                if (expensive.size() > REPORTED_EXPENSIVE_EXPRS) {
+                    expensive.remove(REPORTED_EXPENSIVE_EXPRS);
+                }
+            }
+        }
+        for (Map.Entry<Long, ExprInfo> e : expensive) {
+            sb.append("expression ").append(e.getKey()).append(": costUs=")
+                    .append(e.getValue().mCostNanos / 1000).append('\n');
+        }
+        return sb.toString();
+    }
+
     /**
      * Save the evaluator state, including the expression and any saved value.
      */
@@ -1395,9 +2027,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         mChangedValue = true;
         mMainExpr.mDegreeMode = degreeMode;
 
-        mSharedPrefs.edit()
-                .putBoolean(KEY_PREF_DEGREE_MODE, degreeMode)
-                .apply();
+        mCore.setDefaultDegreeMode(degreeMode);
     }
 
     /**
@@ -1406,7 +2036,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * mTimeStamp is not copied.
      */
     private ExprInfo copy(long index, boolean copyValue) {
-        ExprInfo fromEi = mExprs.get(index);
+        ExprInfo fromEi = ensureExprIsCached(index);
         ExprInfo ei = new ExprInfo((CalculatorExpr)fromEi.mExpr.clone(), fromEi.mDegreeMode);
         while (ei.mExpr.hasTrailingBinary()) {
             ei.mExpr.delete();
@@ -1416,6 +2046,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             ei.mResultString = fromEi.mResultString;
             ei.mResultStringOffset = ei.mResultStringOffsetReq = fromEi.mResultStringOffset;
             ei.mMsdIndex = fromEi.mMsdIndex;
+            ei.mLsdOffset = fromEi.mLsdOffset;
         }
         ei.mLongTimeout = fromEi.mLongTimeout;
         return ei;
@@ -1455,8 +2086,8 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         result.add(op);
         result.append(collapsed2);
         ExprInfo resultEi = new ExprInfo(result, false /* dont care about degrees/radians */);
-        resultEi.mLongTimeout = mExprs.get(index1).mLongTimeout
-                || mExprs.get(index2).mLongTimeout;
+        resultEi.mLongTimeout = ensureExprIsCached(index1).mLongTimeout
+                || ensureExprIsCached(index2).mLongTimeout;
         return resultEi;
     }
 
@@ -1468,18 +2099,40 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      */
     private long addToDB(boolean in_history, ExprInfo ei) {
         byte[] serializedExpr = ei.mExpr.toBytes();
-        ExpressionDB.RowData rd = new ExpressionDB.RowData(serializedExpr, ei.mDegreeMode,
-                ei.mLongTimeout, 0);
-        long resultIndex = mExprDB.addRow(!in_history, rd);
+        final long timeStamp = mCore.getClock().currentTimeMillis();
+        EvaluatorCore.StoredExpr stored;
+        final UnifiedReal val = ei.mVal.get();
+        final DigitBuffer rs = ei.mResultString;
+        final int msdIndex = rs != null && rs != ERRONEOUS_RESULT ? getMsdIndexOf(rs) : INVALID_MSD;
+        if (val != null && rs != null && rs != ERRONEOUS_RESULT
+                && (msdIndex != INVALID_MSD || val.definitelyZero())) {
+            // Save a prefix of the result, so history can be displayed without reevaluation.
+            // It must include the most significant digit; otherwise a tiny result would be
+            // redisplayed as zero.  If we don't know where that is yet, we save nothing.
+            final int dotIndex = rs.indexOf('.');
+            final int msdOffset = msdIndex == INVALID_MSD ? 0 : Math.max(0, msdIndex - dotIndex);
+            final int offset = Math.min(ei.mResultStringOffset,
+                    msdOffset + MAX_SAVED_PREC_OFFSET);
+            final String savedResult = rs.substring(0, dotIndex + 1 + offset);
+            stored = new EvaluatorCore.StoredExpr(serializedExpr, ei.mDegreeMode,
+                    ei.mLongTimeout, timeStamp, savedResult, offset, getMsdIndexOf(savedResult),
+                    getLsdOffset(val, rs, dotIndex));
+        } else {
+            stored = new EvaluatorCore.StoredExpr(serializedExpr, ei.mDegreeMode,
+                    ei.mLongTimeout, timeStamp);
+        }
+        long resultIndex = mCore.getStore().add(!in_history, stored);
         if (mExprs.get(resultIndex) != null) {
             throw new AssertionError("result slot already occupied! + Slot = " + resultIndex);
         }
         // Add newly assigned date to the cache.
-        ei.mTimeStamp = rd.mTimeStamp;
+        ei.mTimeStamp = timeStamp;
         if (resultIndex == MAIN_INDEX) {
             throw new AssertionError("Should not store main expression");
         }
         mExprs.put(resultIndex, ei);
+        noteExprAccess(resultIndex);
+        scheduleTrim();
         return resultIndex;
     }
 
@@ -1531,8 +2184,8 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      */
     private CalculatorExpr getCollapsedExpr(long index) {
         long real_index = isMutableIndex(index) ? preserve(index, false) : index;
-        final ExprInfo ei = mExprs.get(real_index);
-        final String rs = ei.mResultString;
+        final ExprInfo ei = ensureExprIsCached(real_index);
+        final DigitBuffer rs = ei.mResultString;
         // An error can occur here only under extremely unlikely conditions.
         // Check anyway, and just refuse.
         // rs *should* never be null, but it happens. Check as a workaround to protect against
@@ -1541,7 +2194,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             return null;
         }
         final int dotIndex = rs.indexOf('.');
-        final int leastDigOffset = getLsdOffset(ei.mVal.get(), rs, dotIndex);
+        final int leastDigOffset = getLsdOffset(ei, dotIndex);
         return ei.mExpr.abbreviate(real_index,
                 getShortString(rs, getMsdIndexOf(rs), leastDigOffset));
     }
@@ -1555,7 +2208,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * diverge, though it may generate errors of various kinds.  E.g.  sqrt(-10^-1000) .
      */
     public void collapse(long index) {
-        final boolean longTimeout = mExprs.get(index).mLongTimeout;
+        final boolean longTimeout = ensureExprIsCached(index).mLongTimeout;
         final CalculatorExpr abbrvExpr = getCollapsedExpr(index);
         clearMain();
         mMainExpr.mExpr.append(abbrvExpr);
@@ -1627,9 +2280,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      */
     private void setMemoryIndex(long index) {
         mMemoryIndex = index;
-        mSharedPrefs.edit()
-                .putLong(KEY_PREF_MEMORY_INDEX, index)
-                .apply();
+        mPrefs.putLong(KEY_PREF_MEMORY_INDEX, index);
 
         if (mCallback != null) {
             mCallback.onMemoryStateChanged();
@@ -1641,9 +2292,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      */
     private void setSavedIndex(long index) {
         mSavedIndex = index;
-        mSharedPrefs.edit()
-                .putLong(KEY_PREF_SAVED_INDEX, index)
-                .apply();
+        mPrefs.putLong(KEY_PREF_SAVED_INDEX, index);
     }
 
     /**
@@ -1667,8 +2316,8 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * mExpr is left alone.  Return false if result is unavailable.
      */
     private boolean copyToSaved(long index) {
-        if (mExprs.get(index).mResultString == null
-                || mExprs.get(index).mResultString == ERRONEOUS_RESULT) {
+        if (ensureExprIsCached(index).mResultString == null
+                || ensureExprIsCached(index).mResultString == ERRONEOUS_RESULT) {
             return false;
         }
         setSavedIndex(isMutableIndex(index) ? preserve(index, false) : index);
@@ -1743,9 +2392,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         final String isoDate = df.format(new Date());
         mSavedName = "calculator2.android.com," + isoDate + ":"
                 + (new Random().nextInt() & 0x3fffffff);
-        mSharedPrefs.edit()
-                .putString(KEY_PREF_SAVED_NAME, mSavedName)
-                .apply();
+        mPrefs.putString(KEY_PREF_SAVED_NAME, mSavedName);
         return uriForSaved();
     }
 
@@ -1753,11 +2400,19 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         return mSavedIndex != 0 && uri.equals(uriForSaved());
     }
 
+    /**
+     * Return the executor on which to copy long results in the background.  Copies share the
+     * history lane, so that they do not delay evaluations the user is waiting for.
+     */
+    public Executor getCopyExecutor() {
+        return mScheduler.getExecutor(EvaluationScheduler.LANE_HISTORY);
+    }
+
     /**
      * Append the expression at index as a pre-evaluated expression to the main expression.
      */
     public void appendExpr(long index) {
-        ExprInfo ei = mExprs.get(index);
+        ExprInfo ei = ensureExprIsCached(index);
         mChangedValue = true;
         mMainExpr.mLongTimeout |= ei.mLongTimeout;
         CalculatorExpr collapsed = getCollapsedExpr(index);
@@ -1788,22 +2443,34 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
     private ExprInfo ensureExprIsCached(long index) {
         ExprInfo ei = mExprs.get(index);
         if (ei != null) {
+            noteExprAccess(index);
             return ei;
         }
         if (index == MAIN_INDEX) {
             throw new AssertionError("Main expression should be cached");
         }
-        ExpressionDB.RowData row = mExprDB.getRow(index);
+        final long readStart = mMetrics.now();
+        final EvaluatorCore.StoredExpr stored = mCore.getStore().read(index);
+        mMetrics.recordSince(EvaluatorMetrics.DB_READ, readStart);
         DataInputStream serializedExpr =
-                new DataInputStream(new ByteArrayInputStream(row.mExpression));
+                new DataInputStream(new ByteArrayInputStream(stored.expr));
         try {
-            ei = new ExprInfo(new CalculatorExpr(serializedExpr), row.degreeMode());
-            ei.mTimeStamp = row.mTimeStamp;
-            ei.mLongTimeout = row.longTimeout();
+            ei = new ExprInfo(new CalculatorExpr(serializedExpr), stored.degreeMode);
+            ei.mTimeStamp = stored.timeStamp;
+            ei.mLongTimeout = stored.longTimeout;
+            if (stored.hasResult()) {
+                // Display the saved result. We only evaluate if more digits are needed.
+                ei.mResultString = DigitBuffer.valueOf(stored.resultString);
+                ei.mResultStringOffset = ei.mResultStringOffsetReq = stored.resultStringOffset;
+                ei.mMsdIndex = stored.msdIndex;
+                ei.mLsdOffset = stored.lsdOffset;
+            }
         } catch(IOException e) {
             throw new AssertionError("IO Exception without real IO:" + e);
         }
         ExprInfo newEi = mExprs.putIfAbsent(index, ei);
+        noteExprAccess(index);
+        scheduleTrim();
         return newEi == null ? ei : newEi;
     }
 
@@ -1832,7 +2499,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
 
     @Override
     public UnifiedReal putResultIfAbsent(long index, UnifiedReal result) {
-        ExprInfo ei = mExprs.get(index);
+        ExprInfo ei = ensureExprIsCached(index);
         if (ei.mVal.compareAndSet(null, result)) {
             return result;
         } else {
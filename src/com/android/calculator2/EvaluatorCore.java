@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+/**
+ * State and policy shared by all evaluations: the result cache, the metrics, the default degree
+ * mode, and the policy for computing initial decimal approximations of a value.  The platform
+ * services this needs are reached only through the Clock, ExprStore and Preferences interfaces
+ * below, which the Evaluator implements with SystemClock, ExpressionDB and SharedPreferences.
+ *
+ * This does not evaluate expressions.  Evaluator parses and evaluates them, with AsyncTasks,
+ * and resolves references to stored expressions through its own expression cache.  That is
+ * intertwined with timeouts, UI thread callbacks and the display dependent choice of precision,
+ * and CalculatorExpr itself still depends on Android resources for its tokens.
+ * All methods may be called from any thread.
+ */
+class EvaluatorCore {
+    /**
+     * Source of time.
+     */
+    public interface Clock {
+        /**
+         * Return a monotonic time in nanoseconds, for measuring durations.
+         */
+        long nanoTime();
+        /**
+         * Return the wall clock time in milliseconds since the epoch, for time stamps.
+         */
+        long currentTimeMillis();
+    }
+
+    /**
+     * Persistent storage for expressions, indexed as described in Evaluator.
+     */
+    public interface ExprStore {
+        /**
+         * Return the expression with the given index, which must have been stored.
+         * May block.
+         */
+        StoredExpr read(long index);
+        /**
+         * Store an expression at a fresh index.  The index is negative if negativeIndex is set,
+         * positive otherwise.  The write may complete asynchronously.
+         * @return the new index
+         */
+        long add(boolean negativeIndex, StoredExpr expr);
+    }
+
+    /**
+     * Persistent key/value settings.  Updates may be written asynchronously.
+     */
+    public interface Preferences {
+        boolean getBoolean(String key, boolean defValue);
+        long getLong(String key, long defValue);
+        String getString(String key, String defValue);
+        void putBoolean(String key, boolean value);
+        void putLong(String key, long value);
+        void putString(String key, String value);
+    }
+
+    /**
+     * An expression as kept by an ExprStore.  Corresponds to ExpressionDB.RowData.
+     */
+    public static final class StoredExpr {
+        public final byte[] expr;  // As produced by CalculatorExpr.toBytes().
+        public final boolean degreeMode;
+        public final boolean longTimeout;
+        public final long timeStamp;  // Milliseconds since the epoch.
+        // Saved prefix of the result.  resultString is null if there is none, in which case the
+        // remaining fields are meaningless.
+        public final String resultString;
+        public final int resultStringOffset;
+        public final int msdIndex;
+        public final int lsdOffset;
+
+        StoredExpr(byte[] e, boolean dm, boolean lt, long ts, String rs, int offset,
+                int msd, int lsd) {
+            expr = e;
+            degreeMode = dm;
+            longTimeout = lt;
+            timeStamp = ts;
+            resultString = rs;
+            resultStringOffset = offset;
+            msdIndex = msd;
+            lsdOffset = lsd;
+        }
+
+        StoredExpr(byte[] e, boolean dm, boolean lt, long ts) {
+            this(e, dm, lt, ts, null, 0, 0, 0);
+        }
+
+        public boolean hasResult() {
+            return resultString != null;
+        }
+    }
+
+    /**
+     * A value together with a decimal approximation.
+     */
+    public static final class Result {
+        public final UnifiedReal val;
+        // Approximation truncated to exactly resultStringOffset digits to the right of the
+        // decimal point.  The error is strictly less than one in the last digit.
+        public final DigitBuffer resultString;
+        public final int resultStringOffset;
+        public final int msdIndex;  // Index in resultString, or INVALID_MSD.
+        public final int lsdOffset;  // As computed by getLsdOffset().
+
+        Result(UnifiedReal v, DigitBuffer s, int offset, int msd, int lsd) {
+            val = v;
+            resultString = s;
+            resultStringOffset = offset;
+            msdIndex = msd;
+            lsdOffset = lsd;
+        }
+    }
+
+    public static final int INVALID_MSD = Integer.MAX_VALUE;
+
+    // Initial evaluation precision.  Enough to guarantee that we can compute the short
+    // representation, and that we rarely have to evaluate nonzero results to MAX_MSD_PREC_OFFSET.
+    // It also helps if this is at least EXTRA_DIGITS + display width, so that we don't
+    // immediately need a second evaluation.
+    static final int INIT_PREC = 50;
+
+    // The largest number of digits to the right of the decimal point to which we will evaluate to
+    // compute proper scientific notation for values close to zero.  Chosen to ensure that we
+    // always to better than IEEE double precision at identifying nonzeros. And then some.
+    // This is used only when we cannot a priori determine the most significant digit position, as
+    // we always can if we have a rational representation.
+    static final int MAX_MSD_PREC_OFFSET = 1100;
+
+    /**
+     * Maximum result bit length for unrequested, speculative evaluations.
+     * Also used to bound evaluation precision for small non-zero fractions.
+     */
+    static final int QUICK_MAX_RESULT_BITS = 150000;
+
+    private static final String KEY_PREF_DEGREE_MODE = "degree_mode";
+
+    private final Clock mClock;
+    private final ExprStore mStore;
+    private final Preferences mPrefs;
+    private final ResultCache mResultCache;
+    private final EvaluatorMetrics mMetrics;
+
+    /**
+     * @param resultCacheBytes approximate memory bound for the result cache
+     */
+    EvaluatorCore(Clock clock, ExprStore store, Preferences prefs, long resultCacheBytes) {
+        mClock = clock;
+        mStore = store;
+        mPrefs = prefs;
+        mResultCache = new ResultCache(resultCacheBytes);
+        mMetrics = new EvaluatorMetrics(clock);
+    }
+
+    public Clock getClock() {
+        return mClock;
+    }
+
+    public ExprStore getStore() {
+        return mStore;
+    }
+
+    public Preferences getPreferences() {
+        return mPrefs;
+    }
+
+    public ResultCache getResultCache() {
+        return mResultCache;
+    }
+
+    public EvaluatorMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Return the persistent default degree mode for new expressions.
+     */
+    public boolean getDefaultDegreeMode() {
+        return mPrefs.getBoolean(KEY_PREF_DEGREE_MODE, false);
+    }
+
+    public void setDefaultDegreeMode(boolean degreeMode) {
+        mPrefs.putBoolean(KEY_PREF_DEGREE_MODE, degreeMode);
+    }
+
+    /**
+     * Forget everything derived from stored expressions.  Must be called when the store is
+     * erased, since indices may then be reused.
+     */
+    public void clear() {
+        mResultCache.clear();
+    }
+
+    /**
+     * Compute an initial decimal approximation of val, to at least INIT_PREC digits, and far
+     * enough to locate the most significant digit unless the value is very close to zero.
+     * Time is not recorded in the metrics; the caller knows what the conversion is part of.
+     */
+    public Result approximate(UnifiedReal val) {
+        int precOffset = INIT_PREC;
+        String s = val.toStringTruncated(precOffset);
+        int msd = getMsdIndexOf(s);
+        if (msd == INVALID_MSD) {
+            int leadingZeroBits = val.leadingBinaryZeroes();
+            if (leadingZeroBits < QUICK_MAX_RESULT_BITS) {
+                // Enough initial nonzero digits for most displays.
+                precOffset = 30 +
+                        (int)Math.ceil(Math.log(2.0d) / Math.log(10.0d) * leadingZeroBits);
+                s = val.toStringTruncated(precOffset);
+                msd = getMsdIndexOf(s);
+                if (msd == INVALID_MSD) {
+                    throw new AssertionError("Impossible zero result");
+                }
+            } else {
+                // Just try once more at higher fixed precision.
+                precOffset = MAX_MSD_PREC_OFFSET;
+                s = val.toStringTruncated(precOffset);
+                msd = getMsdIndexOf(s);
+            }
+        }
+        return new Result(val, DigitBuffer.valueOf(s), precOffset, msd,
+                getLsdOffset(val, s, s.indexOf('.')));
+    }
+
+    /**
+     * Return the most significant digit index in the given numeric string.
+     * Return INVALID_MSD if there are not enough digits to prove the numeric value is
+     * different from zero.  As usual, we assume an error of strictly less than 1 ulp.
+     */
+    public static int getMsdIndexOf(CharSequence s) {
+        final int len = s.length();
+        int nonzeroIndex = -1;
+        for (int i = 0; i < len; ++i) {
+            char c = s.charAt(i);
+            if (c != '-' && c != '.' && c != '0') {
+                nonzeroIndex = i;
+                break;
+            }
+        }
+        if (nonzeroIndex >= 0 && (nonzeroIndex < len - 1 || s.charAt(nonzeroIndex) != '1')) {
+            return nonzeroIndex;
+        } else {
+            return INVALID_MSD;
+        }
+    }
+
+    /**
+     * Return the rightmost nonzero digit position, if any.
+     * @param val UnifiedReal value of result.
+     * @param cache Current cached decimal string representation of result.
+     * @param decIndex Index of decimal point in cache.
+     * @result Position of rightmost nonzero digit relative to decimal point.
+     *         Integer.MIN_VALUE if we cannot determine.  Integer.MAX_VALUE if there is no lsd,
+     *         or we cannot determine it.
+     */
+    public static int getLsdOffset(UnifiedReal val, CharSequence cache, int decIndex) {
+        if (val.definitelyZero()) return Integer.MIN_VALUE;
+        int result = val.digitsRequired();
+        if (result == 0) {
+            int i;
+            for (i = -1; decIndex + i > 0 && cache.charAt(decIndex + i) == '0'; --i) { }
+            result = i;
+        }
+        return result;
+    }
+
+    /**
+     * Check whether a new higher precision result flips previously computed trailing 9s
+     * to zeroes.  If so, flip them back.  Return the adjusted result.
+     * Assumes newPrecOffset >= oldPrecOffset > 0.
+     * Since our results are accurate to < 1 ulp, this can only happen if the true result
+     * is less than the new result with trailing zeroes, and thus appending 9s to the
+     * old result must also be correct.  Such flips are impossible if the newly computed
+     * digits consist of anything other than zeroes.
+     * It is unclear that there are real cases in which this is necessary,
+     * but we have failed to prove there aren't such cases.
+     */
+    public static DigitBuffer unflipZeroes(DigitBuffer oldDigs, int oldPrecOffset,
+            DigitBuffer newDigs, int newPrecOffset) {
+        final int oldLen = oldDigs.length();
+        if (oldDigs.charAt(oldLen - 1) != '9') {
+            return newDigs;
+        }
+        final int newLen = newDigs.length();
+        final int precDiff = newPrecOffset - oldPrecOffset;
+        final int oldLastInNew = newLen - 1 - precDiff;
+        if (newDigs.charAt(oldLastInNew) != '0') {
+            return newDigs;
+        }
+        // Earlier digits could not have changed without a 0 to 9 or 9 to 0 flip at end.
+        // The former is OK.
+        for (int i = newLen - precDiff; i < newLen; ++i) {
+            if (newDigs.charAt(i) != '0') {
+                throw new AssertionError("New approximation invalidates old one!");
+            }
+        }
+        return oldDigs.append(StringUtils.repeat('9', precDiff));
+    }
+}
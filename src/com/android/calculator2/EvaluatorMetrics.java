@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and event counters for the Evaluator.
+ * Recording is lock-free and cheap enough to leave enabled.  The report is plain text, and this
+ * class has no Android dependencies, so it can be used from a JVM test as well as dumped from the
+ * device.
+ */
+class EvaluatorMetrics {
+    // Histograms.
+    /**
+     * CalculatorExpr.eval() of an expression, including referenced expressions.
+     */
+    public static final int EVAL = 0;
+    /**
+     * Decimal conversion performed as part of initial evaluation.
+     */
+    public static final int INITIAL_CONVERSION = 1;
+    /**
+     * A single reevaluation step to higher precision.
+     */
+    public static final int REEVALUATION = 2;
+    /**
+     * Database read of an expression that was not cached.
+     */
+    public static final int DB_READ = 3;
+    private static final int NUM_HISTOGRAMS = 4;
+    private static final String[] HISTOGRAM_NAMES =
+            { "eval", "initial conversion", "reevaluation", "db read" };
+
+    // Counters.
+    /**
+     * Evaluations cancelled by handleTimeout().
+     */
+    public static final int TIMEOUTS = 0;
+    /**
+     * Initial evaluations cancelled for any other reason.
+     */
+    public static final int CANCELLATIONS = 1;
+    /**
+     * Reevaluations cancelled before completion.
+     */
+    public static final int REEVAL_CANCELLATIONS = 2;
+    /**
+     * Results rejected by isTooBig().
+     */
+    public static final int TOO_BIG = 3;
+    /**
+     * Reevaluations in which unflipZeroes() had to correct trailing zeroes back to nines.
+     */
+    public static final int UNFLIP_CORRECTIONS = 4;
+    /**
+     * Provisional instant results computed with interval arithmetic and displayed.
+     */
+    public static final int PROVISIONAL_RESULTS = 5;
+    private static final int NUM_COUNTERS = 6;
+    private static final String[] COUNTER_NAMES =
+            { "timeouts", "cancellations", "reeval cancellations", "too big", "unflip corrections",
+              "provisional results" };
+
+    /**
+     * A histogram of durations with power-of-two microsecond buckets.
+     * Bucket i holds durations d with 2^(i-1) <= d/usec < 2^i; bucket 0 holds those < 1 usec.
+     */
+    static class Histogram {
+        private static final int NUM_BUCKETS = 40;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalNanos = new AtomicLong();
+        private final AtomicLong mMaxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            final long micros = Math.max(nanos, 0) / 1000;
+            final int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), NUM_BUCKETS - 1);
+            mBuckets.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(nanos);
+            long max;
+            do {
+                max = mMaxNanos.get();
+            } while (nanos > max && !mMaxNanos.compareAndSet(max, nanos));
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        /**
+         * Return an upper bound on the given percentile, in microseconds, or 0 if empty.
+         */
+        long getPercentileMicros(int percent) {
+            final long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            final long threshold = (count * percent + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; ++i) {
+                seen += mBuckets.get(i);
+                if (seen >= threshold) {
+                    return 1L << i;
+                }
+            }
+            return mMaxNanos.get() / 1000;
+        }
+
+        void appendTo(StringBuilder sb) {
+            final long count = mCount.get();
+            sb.append("count=").append(count);
+            if (count != 0) {
+                sb.append(" avgUs=").append(mTotalNanos.get() / count / 1000)
+                        .append(" p50Us<=").append(getPercentileMicros(50))
+                        .append(" p90Us<=").append(getPercentileMicros(90))
+                        .append(" p99Us<=").append(getPercentileMicros(99))
+                        .append(" maxUs=").append(mMaxNanos.get() / 1000);
+            }
+        }
+    }
+
+    private final Histogram[] mHistograms = new Histogram[NUM_HISTOGRAMS];
+    private final AtomicLongArray mCounters = new AtomicLongArray(NUM_COUNTERS);
+    private final EvaluatorCore.Clock mClock;
+
+    EvaluatorMetrics(EvaluatorCore.Clock clock) {
+        mClock = clock;
+        for (int i = 0; i < NUM_HISTOGRAMS; ++i) {
+            mHistograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Return the current time in nanoseconds, for use as a start time with recordSince().
+     */
+    public long now() {
+        return mClock.nanoTime();
+    }
+
+    /**
+     * Record the duration of an operation that started at startNanos, as returned by now().
+     * Return the duration.
+     */
+    public long recordSince(int histogram, long startNanos) {
+        final long nanos = mClock.nanoTime() - startNanos;
+        mHistograms[histogram].record(nanos);
+        return nanos;
+    }
+
+    public void increment(int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+    public long getCount(int counter) {
+        return mCounters.get(counter);
+    }
+
+    public Histogram getHistogram(int histogram) {
+        return mHistograms[histogram];
+    }
+
+    /**
+     * Append a multi-line report of all histograms and counters.
+     */
+    public void appendReport(StringBuilder sb) {
+        for (int i = 0; i < NUM_HISTOGRAMS; ++i) {
+            sb.append(HISTOGRAM_NAMES[i]).append(": ");
+            mHistograms[i].appendTo(sb);
+            sb.append('\n');
+        }
+        for (int i = 0; i < NUM_COUNTERS; ++i) {
+            sb.append(COUNTER_NAMES[i]).append(": ").append(mCounters.get(i)).append('\n');
+        }
+    }
+}
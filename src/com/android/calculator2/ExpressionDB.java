@@ -48,10 +48,18 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.os.AsyncTask;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.util.Log;
 import android.view.View;
 
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 public class ExpressionDB {
     private final boolean CONTINUE_WITH_BAD_DB = false;
 
@@ -62,6 +70,13 @@ public class ExpressionDB {
         public static final String COLUMN_NAME_FLAGS = "flags";
         // Time stamp as returned by currentTimeMillis().
         public static final String COLUMN_NAME_TIMESTAMP = "timeStamp";
+        // Optional previously computed result prefix, in Evaluator's mResultString format,
+        // together with its precision offset, most significant digit index, and least
+        // significant digit offset. All null if no result was saved.
+        public static final String COLUMN_NAME_RESULT = "result";
+        public static final String COLUMN_NAME_RESULT_OFFSET = "resultOffset";
+        public static final String COLUMN_NAME_MSD_INDEX = "msdIndex";
+        public static final String COLUMN_NAME_LSD_OFFSET = "lsdOffset";
     }
 
     /* Data to be written to or read from a row in the table */
@@ -71,6 +86,12 @@ public class ExpressionDB {
         public final byte[] mExpression;
         public final int mFlags;
         public long mTimeStamp;  // 0 ==> this and next field to be filled in when written.
+        // Saved result; see ExpressionEntry.  mResultString is null if there is none, in which
+        // case the other fields are meaningless.
+        public final String mResultString;
+        public final int mResultStringOffset;
+        public final int mMsdIndex;
+        public final int mLsdOffset;
         private static int flagsFromDegreeAndTimeout(Boolean DegreeMode, Boolean LongTimeout) {
             return (DegreeMode ? DEGREE_MODE : 0) | (LongTimeout ? LONG_TIMEOUT : 0);
         }
@@ -81,10 +102,15 @@ public class ExpressionDB {
             return (flags & LONG_TIMEOUT) != 0;
         }
         private static final int MILLIS_IN_15_MINS = 15 * 60 * 1000;
-        private RowData(byte[] expr, int flags, long timeStamp) {
+        private RowData(byte[] expr, int flags, long timeStamp, String resultString,
+                int resultStringOffset, int msdIndex, int lsdOffset) {
             mExpression = expr;
             mFlags = flags;
             mTimeStamp = timeStamp;
+            mResultString = resultString;
+            mResultStringOffset = resultStringOffset;
+            mMsdIndex = msdIndex;
+            mLsdOffset = lsdOffset;
         }
         /**
          * More client-friendly constructor that hides implementation ugliness.
@@ -92,7 +118,25 @@ public class ExpressionDB {
          * A zero timestamp will cause it to be automatically filled in.
          */
         public RowData(byte[] expr, boolean degreeMode, boolean longTimeout, long timeStamp) {
-            this(expr, flagsFromDegreeAndTimeout(degreeMode, longTimeout), timeStamp);
+            this(expr, flagsFromDegreeAndTimeout(degreeMode, longTimeout), timeStamp, null, 0, 0,
+                    0);
+        }
+        /**
+         * As above, but also save a previously computed result, so that it can be displayed
+         * without reevaluation.
+         */
+        public RowData(byte[] expr, boolean degreeMode, boolean longTimeout, long timeStamp,
+                String resultString, int resultStringOffset, int msdIndex, int lsdOffset) {
+            this(expr, flagsFromDegreeAndTimeout(degreeMode, longTimeout), timeStamp,
+                    resultString, resultStringOffset, msdIndex, lsdOffset);
+        }
+        /**
+         * Construct from the current row of a cursor over the entire table.
+         */
+        private RowData(Cursor c) {
+            this(c.getBlob(1), c.getInt(2) /* flags */, c.getLong(3) /* timestamp */,
+                    c.isNull(4) ? null : c.getString(4) /* result */, c.getInt(5) /* offset */,
+                    c.getInt(6) /* msd index */, c.getInt(7) /* lsd offset */);
         }
         public boolean degreeMode() {
             return degreeModeFromFlags(mFlags);
@@ -100,6 +144,9 @@ public class ExpressionDB {
         public boolean longTimeout() {
             return longTimeoutFromFlags(mFlags);
         }
+        public boolean hasResult() {
+            return mResultString != null;
+        }
         /**
          * Return a ContentValues object representing the current data.
          */
@@ -111,6 +158,12 @@ public class ExpressionDB {
                 mTimeStamp = System.currentTimeMillis();
             }
             cvs.put(ExpressionEntry.COLUMN_NAME_TIMESTAMP, mTimeStamp);
+            if (mResultString != null) {
+                cvs.put(ExpressionEntry.COLUMN_NAME_RESULT, mResultString);
+                cvs.put(ExpressionEntry.COLUMN_NAME_RESULT_OFFSET, mResultStringOffset);
+                cvs.put(ExpressionEntry.COLUMN_NAME_MSD_INDEX, mMsdIndex);
+                cvs.put(ExpressionEntry.COLUMN_NAME_LSD_OFFSET, mLsdOffset);
+            }
             return cvs;
         }
     }
@@ -120,7 +173,22 @@ public class ExpressionDB {
             + ExpressionEntry._ID + " INTEGER PRIMARY KEY,"
             + ExpressionEntry.COLUMN_NAME_EXPRESSION + " BLOB,"
             + ExpressionEntry.COLUMN_NAME_FLAGS + " INTEGER,"
-            + ExpressionEntry.COLUMN_NAME_TIMESTAMP + " INTEGER)";
+            + ExpressionEntry.COLUMN_NAME_TIMESTAMP + " INTEGER,"
+            + ExpressionEntry.COLUMN_NAME_RESULT + " TEXT,"
+            + ExpressionEntry.COLUMN_NAME_RESULT_OFFSET + " INTEGER,"
+            + ExpressionEntry.COLUMN_NAME_MSD_INDEX + " INTEGER,"
+            + ExpressionEntry.COLUMN_NAME_LSD_OFFSET + " INTEGER)";
+    // Upgrade from version 1, which had no saved results.  The new columns must be in the
+    // same order as in SQL_CREATE_ENTRIES, since we access columns by position.
+    private static final String[] SQL_ADD_RESULT_COLUMNS = {
+            "ALTER TABLE " + ExpressionEntry.TABLE_NAME + " ADD COLUMN "
+                    + ExpressionEntry.COLUMN_NAME_RESULT + " TEXT",
+            "ALTER TABLE " + ExpressionEntry.TABLE_NAME + " ADD COLUMN "
+                    + ExpressionEntry.COLUMN_NAME_RESULT_OFFSET + " INTEGER",
+            "ALTER TABLE " + ExpressionEntry.TABLE_NAME + " ADD COLUMN "
+                    + ExpressionEntry.COLUMN_NAME_MSD_INDEX + " INTEGER",
+            "ALTER TABLE " + ExpressionEntry.TABLE_NAME + " ADD COLUMN "
+                    + ExpressionEntry.COLUMN_NAME_LSD_OFFSET + " INTEGER" };
     private static final String SQL_DROP_TABLE =
             "DROP TABLE IF EXISTS " + ExpressionEntry.TABLE_NAME;
     private static final String SQL_GET_MIN = "SELECT MIN(" + ExpressionEntry._ID
@@ -140,7 +208,7 @@ public class ExpressionDB {
 
     private class ExpressionDBHelper extends SQLiteOpenHelper {
         // If you change the database schema, you must increment the database version.
-        public static final int DATABASE_VERSION = 1;
+        public static final int DATABASE_VERSION = 2;
         public static final String DATABASE_NAME = "Expressions.db";
 
         public ExpressionDBHelper(Context context) {
@@ -151,7 +219,14 @@ public class ExpressionDB {
             db.execSQL(SQL_CREATE_TIMESTAMP_INDEX);
         }
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            // For now just throw away history on database version upgrade/downgrade.
+            if (oldVersion == 1 && newVersion == 2) {
+                // Preserve history; old rows just have no saved result.
+                for (String sql : SQL_ADD_RESULT_COLUMNS) {
+                    db.execSQL(sql);
+                }
+                return;
+            }
+            // Otherwise just throw away history on database version upgrade/downgrade.
             db.execSQL(SQL_DROP_TIMESTAMP_INDEX);
             db.execSQL(SQL_DROP_TABLE);
             onCreate(db);
@@ -205,12 +280,34 @@ public class ExpressionDB {
     // initialization.
     private Object mLock = new Object();
 
+    // Idle time after which the database thread exits.
+    private static final long DB_THREAD_KEEP_ALIVE_SECONDS = 10;
+
+    // Single thread on which all background database initialization, erasure and writes are
+    // performed.  We deliberately do not share AsyncTask.SERIAL_EXECUTOR, since writes could
+    // then wait for unrelated long-running tasks.
+    private final ThreadPoolExecutor mDBExecutor;
+
     public ExpressionDB(Context context) {
         mExpressionDBHelper = new ExpressionDBHelper(context);
+        mDBExecutor = new ThreadPoolExecutor(1, 1, DB_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "ExpressionDB-writer");
+                    }
+                });
+        mDBExecutor.allowCoreThreadTimeOut(true);
         AsyncInitializer initializer = new AsyncInitializer();
         // All calls that create background database accesses are made from the UI thread, and
-        // use a SERIAL_EXECUTOR. Thus they execute in order.
-        initializer.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, mExpressionDBHelper);
+        // use the single-threaded mDBExecutor. Thus they execute in order.
+        initializer.executeOnExecutor(mDBExecutor, mExpressionDBHelper);
     }
 
     // Is database completely unusable?
@@ -347,7 +444,7 @@ public class ExpressionDB {
     /**
      * Erase the entire database. Assumes no other accesses to the database are
      * currently in progress
-     * These tasks must be executed on a serial executor to avoid reordering writes.
+     * These tasks must be executed on mDBExecutor to avoid reordering writes.
      */
     private class AsyncEraser extends AsyncTask<Void, Void, Void> {
         @Override
@@ -390,27 +487,90 @@ public class ExpressionDB {
         synchronized(mLock) {
             mDBInitialized = false;
         }
+        synchronized(mWriteCountsLock) {
+            // Rows added from now on must not be written by an AsyncWriter scheduled before
+            // the eraser.
+            mPendingBatch = null;
+        }
         AsyncEraser eraser = new AsyncEraser();
-        eraser.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+        eraser.executeOnExecutor(mDBExecutor);
     }
 
     // We track the number of outstanding writes to prevent onSaveInstanceState from
     // completing with in-flight database writes.
 
     private int mIncompleteWrites = 0;
-    private Object mWriteCountsLock = new Object();  // Protects the preceding field.
 
-    private void writeCompleted() {
+    // Rows queued for insertion, but not yet picked up by an AsyncWriter.  Null if there
+    // are none, and hence no AsyncWriter scheduled to pick them up.  Rows that accumulate while
+    // a previous batch is being written are committed together in a single transaction.
+    private ArrayList<ContentValues> mPendingBatch = null;
+
+    // Write statistics.
+    private int mMaxIncompleteWrites = 0;
+    private long mCommitCount = 0;
+    private long mCommittedRows = 0;
+    private long mTotalCommitNanos = 0;
+    private long mMaxCommitNanos = 0;
+
+    // Protects the preceding fields.
+    private Object mWriteCountsLock = new Object();
+
+    // Commits slower than this are logged.
+    private static final long SLOW_COMMIT_NANOS = 200L * 1000 * 1000;
+
+    private void writesCompleted(int n, long commitNanos) {
         synchronized(mWriteCountsLock) {
-            if (--mIncompleteWrites == 0) {
+            ++mCommitCount;
+            mCommittedRows += n;
+            mTotalCommitNanos += commitNanos;
+            mMaxCommitNanos = Math.max(mMaxCommitNanos, commitNanos);
+            mIncompleteWrites -= n;
+            if (mIncompleteWrites == 0) {
                 mWriteCountsLock.notifyAll();
             }
         }
+        if (commitNanos > SLOW_COMMIT_NANOS) {
+            Log.v("Calculator", "Slow database commit of " + n + " rows: "
+                    + commitNanos / 1000000 + " msecs");
+        }
     }
 
-    private void writeStarted() {
+    /**
+     * Queue the given row for insertion, scheduling an AsyncWriter if necessary.
+     */
+    private void enqueueWrite(ContentValues cvs) {
         synchronized(mWriteCountsLock) {
             ++mIncompleteWrites;
+            mMaxIncompleteWrites = Math.max(mMaxIncompleteWrites, mIncompleteWrites);
+            if (mPendingBatch == null) {
+                mPendingBatch = new ArrayList<ContentValues>();
+                AsyncWriter awriter = new AsyncWriter(mPendingBatch);
+                // Ensure that writes are executed in order.
+                awriter.executeOnExecutor(mDBExecutor);
+            }
+            mPendingBatch.add(cvs);
+        }
+    }
+
+    /**
+     * Return the number of rows that have been added but not yet committed to the database.
+     */
+    public int getWriteQueueDepth() {
+        synchronized(mWriteCountsLock) {
+            return mIncompleteWrites;
+        }
+    }
+
+    /**
+     * Return a one line summary of write queue depth and commit latency.
+     */
+    public String getWriteStats() {
+        synchronized(mWriteCountsLock) {
+            final long avgMicros = mCommitCount == 0 ? 0 : mTotalCommitNanos / mCommitCount / 1000;
+            return "queued=" + mIncompleteWrites + " maxQueued=" + mMaxIncompleteWrites
+                    + " commits=" + mCommitCount + " rows=" + mCommittedRows
+                    + " avgCommitUs=" + avgMicros + " maxCommitUs=" + mMaxCommitNanos / 1000;
         }
     }
 
@@ -437,32 +597,57 @@ public class ExpressionDB {
     }
 
     /**
-     * Insert the given row in the database without blocking the UI thread.
-     * These tasks must be executed on a serial executor to avoid reordering writes.
+     * Insert a batch of rows in the database, in order, without blocking the UI thread.
+     * The batch may continue to grow until we start running.  All rows are inserted in a
+     * single transaction.
+     * These tasks must be executed on mDBExecutor to avoid reordering writes.
      */
-    private class AsyncWriter extends AsyncTask<ContentValues, Void, Long> {
+    private class AsyncWriter extends AsyncTask<Void, Void, ArrayList<Long>> {
+        private final ArrayList<ContentValues> mBatch;
+
+        AsyncWriter(ArrayList<ContentValues> batch) {
+            mBatch = batch;
+        }
+
         @Override
-        protected Long doInBackground(ContentValues... cvs) {
-            long index = cvs[0].getAsLong(ExpressionEntry._ID);
-            long result = mExpressionDB.insert(ExpressionEntry.TABLE_NAME, null, cvs[0]);
-            writeCompleted();
-            // Return 0 on success, row id on failure.
-            if (result == -1) {
-                return index;
-            } else if (result != index) {
-                throw new AssertionError("Expected row id " + index + ", got " + result);
-            } else {
-                return 0L;
+        protected ArrayList<Long> doInBackground(Void... nothings) {
+            synchronized(mWriteCountsLock) {
+                // Stop accepting new rows into mBatch; they will go into a new batch.
+                if (mPendingBatch == mBatch) {
+                    mPendingBatch = null;
+                }
             }
+            // Row ids of failed insertions.
+            ArrayList<Long> failures = new ArrayList<Long>();
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
+            mExpressionDB.beginTransaction();
+            try {
+                for (ContentValues cvs : mBatch) {
+                    long index = cvs.getAsLong(ExpressionEntry._ID);
+                    long result = mExpressionDB.insert(ExpressionEntry.TABLE_NAME, null, cvs);
+                    if (result == -1) {
+                        failures.add(index);
+                    } else if (result != index) {
+                        throw new AssertionError("Expected row id " + index + ", got " + result);
+                    }
+                }
+                mExpressionDB.setTransactionSuccessful();
+            } finally {
+                mExpressionDB.endTransaction();
+                writesCompleted(mBatch.size(), SystemClock.elapsedRealtimeNanos() - startNanos);
+            }
+            return failures;
         }
         @Override
-        protected void onPostExecute(Long result) {
-            if (result != 0) {
+        protected void onPostExecute(ArrayList<Long> failures) {
+            if (!failures.isEmpty()) {
                 synchronized(mLock) {
-                    if (result > 0) {
-                        mMaxAccessible = result - 1;
-                    } else {
-                        mMinAccessible = result + 1;
+                    for (long result : failures) {
+                        if (result > 0) {
+                            mMaxAccessible = Math.min(mMaxAccessible, result - 1);
+                        } else {
+                            mMinAccessible = Math.max(mMinAccessible, result + 1);
+                        }
                     }
                 }
                 displayDatabaseWarning();
@@ -497,12 +682,9 @@ public class ExpressionDB {
                 // to just include values between mMinAccessible and mMaxAccessible.
                 return newIndex;
             }
-            writeStarted();
             ContentValues cvs = data.toContentValues();
             cvs.put(ExpressionEntry._ID, newIndex);
-            AsyncWriter awriter = new AsyncWriter();
-            // Ensure that writes are executed in order.
-            awriter.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, cvs);
+            enqueueWrite(cvs);
         }
         return newIndex;
     }
@@ -532,8 +714,7 @@ public class ExpressionDB {
                 setBadDB();
                 return makeBadRow();
             } else {
-                result = new RowData(resultC.getBlob(1), resultC.getInt(2) /* flags */,
-                        resultC.getLong(3) /* timestamp */);
+                result = new RowData(resultC);
             }
         }
         return result;
@@ -552,8 +733,7 @@ public class ExpressionDB {
                 setBadDB();
                 return makeBadRow();
             }
-            return new RowData(mAllCursor.getBlob(1), mAllCursor.getInt(2) /* flags */,
-                        mAllCursor.getLong(3) /* timestamp */);
+            return new RowData(mAllCursor);
         }
     }
 
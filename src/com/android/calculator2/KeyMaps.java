@@ -26,6 +26,7 @@ import android.widget.Button;
 import java.text.DecimalFormatSymbols;
 import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Collection of mapping functions between key ids, characters, internationalized
@@ -479,6 +480,15 @@ public class KeyMaps {
      */
     private static HashMap<Character, String> sOutputForResultChar;
 
+    /**
+     * Translator for the single character translations from sOutputForResultChar.  Replaced,
+     * together with the map, when the locale changes.
+     */
+    private static ResultTranslator sResultTranslator;
+
+    // Characters outside the ResultTranslator table that may legitimately appear in results.
+    private static final String NON_ASCII_RESULT_CHARS = ELLIPSIS + "\u221A\u03C0";
+
     /**
      * Locale corresponding to preceding map and character constants.
      * We recompute the map if this is not the current locale.
@@ -630,6 +640,14 @@ public class KeyMaps {
             for (int i = 0; i <= 9; ++i) {
                 addButtonToOutputMap((char)('0' + i), keyForDigVal(i));
             }
+            final char[] resultCharTable = new char[128];
+            for (Map.Entry<Character, String> entry : sOutputForResultChar.entrySet()) {
+                final char c = entry.getKey();
+                if (c < resultCharTable.length && entry.getValue().length() == 1) {
+                    resultCharTable[c] = entry.getValue().charAt(0);
+                }
+            }
+            sResultTranslator = new ResultTranslator(resultCharTable, sOutputForResultChar);
 
             sLocaleForMaps = locale;
 
@@ -661,23 +679,107 @@ public class KeyMaps {
      * A trailing e is treated as the mathematical constant, not an exponent.
      */
     public static String translateResult(String s) {
-        StringBuilder result = new StringBuilder();
+        final StringBuilder result = new StringBuilder(s);
+        translateResult(result);
+        return result.toString();
+    }
+
+    /**
+     * Localize the numeric answer in s in place, as for translateResult(String).
+     * Allocates only if a character lacks a single character translation, which should not
+     * happen for the characters we generate.
+     * Callable only from UI thread.
+     */
+    public static void translateResult(StringBuilder s) {
+        validateMaps();
         int len = s.length();
+        if (len > 0 && s.charAt(len - 1) == 'e') {
+            s.setLength(--len);
+        }
+        sResultTranslator.translate(s);
+    }
+
+    /**
+     * Return an object that localizes numeric answers for the current locale, as
+     * translateResult(StringBuilder) does, except that a trailing e is not treated specially.
+     * Callable only from UI thread, but the returned object may be used from any thread.
+     */
+    public static ResultTranslator getResultTranslator() {
         validateMaps();
-        for (int i = 0; i < len; ++i) {
-            char c = s.charAt(i);
-            if (i < len - 1 || c != 'e') {
-                String translation = sOutputForResultChar.get(c);
+        return sResultTranslator;
+    }
+
+    /**
+     * An immutable snapshot of the result character translation for one locale.
+     */
+    public static class ResultTranslator {
+        // The single character translations from the map for ASCII characters, indexed by
+        // character, so that results can be translated in place without lookups or
+        // allocation.  Zero for characters without a single character translation.  Characters
+        // outside the table translate to themselves.
+        private final char[] mCharTable;
+        private final HashMap<Character, String> mOutputForChar;  // Never modified.
+
+        private ResultTranslator(char[] charTable, HashMap<Character, String> outputForChar) {
+            mCharTable = charTable;
+            mOutputForChar = outputForChar;
+        }
+
+        /**
+         * Localize s in place.
+         */
+        public void translate(StringBuilder s) {
+            int len = s.length();
+            for (int i = 0; i < len; ++i) {
+                final char c = s.charAt(i);
+                if (c < mCharTable.length) {
+                    final char translation = mCharTable[c];
+                    if (translation != 0) {
+                        s.setCharAt(i, translation);
+                        continue;
+                    }
+                } else if (NON_ASCII_RESULT_CHARS.indexOf(c) != -1) {
+                    continue;
+                }
+                final String translation = mOutputForChar.get(c);
                 if (translation == null) {
                     // Should not get here.  Report if we do.
                     Log.v("Calculator", "Bad character:" + c);
-                    result.append(String.valueOf(c));
                 } else {
-                    result.append(translation);
+                    s.replace(i, i + 1, translation);
+                    i += translation.length() - 1;
+                    len += translation.length() - 1;
+                }
+            }
+        }
+
+        /**
+         * Append the localization of s[start, end) to dest.
+         */
+        public void translate(CharSequence s, int start, int end, StringBuilder dest) {
+            dest.ensureCapacity(dest.length() + end - start);
+            for (int i = start; i < end; ++i) {
+                final char c = s.charAt(i);
+                if (c < mCharTable.length) {
+                    final char translation = mCharTable[c];
+                    if (translation != 0) {
+                        dest.append(translation);
+                        continue;
+                    }
+                } else if (NON_ASCII_RESULT_CHARS.indexOf(c) != -1) {
+                    dest.append(c);
+                    continue;
+                }
+                final String translation = mOutputForChar.get(c);
+                if (translation == null) {
+                    // Should not get here.  Report if we do.
+                    Log.v("Calculator", "Bad character:" + c);
+                    dest.append(c);
+                } else {
+                    dest.append(translation);
                 }
             }
         }
-        return result.toString();
     }
 
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A shared cache of powers of ten, for decimal conversion and parsing.
+ * Decimal conversions at a given precision n need 10^n, and reevaluation, scrolling and
+ * conversion of successive pieces of a result keep asking for the same or similar powers.
+ * Small powers are kept in a fixed table.  Larger ones are computed as products of the
+ * "ladder" powers 10^(2^k), which are themselves computed by repeated squaring, and kept in a
+ * least recently used cache bounded by MAX_BYTES.  Powers too large to fit comfortably are
+ * computed but not cached.
+ * All methods are thread-safe.  We never hold the lock while multiplying, so concurrent
+ * callers may occasionally compute the same power twice.
+ */
+class PowersOfTen {
+    // sSmall[n] == 10^n for n < sSmall.length, a power of two.
+    private static final BigInteger[] sSmall = new BigInteger[64];
+    static {
+        sSmall[0] = BigInteger.ONE;
+        for (int i = 1; i < sSmall.length; ++i) {
+            sSmall[i] = sSmall[i - 1].multiply(BigInteger.TEN);
+        }
+    }
+
+    // Approximate bound on the memory used by cached powers, in bytes.
+    private static final long MAX_BYTES = 4_000_000;
+    // Rough per-entry overhead, in bytes.
+    private static final int ENTRY_OVERHEAD = 64;
+
+    // Cached powers, keyed by exponent, in access order.  Protected by class lock.
+    private static final LinkedHashMap<Integer, BigInteger> sCache =
+            new LinkedHashMap<Integer, BigInteger>(16, 0.75f, true /* access order */);
+    private static long sBytes = 0;  // Estimated memory use of sCache entries.
+    private static long sHits = 0;
+    private static long sMisses = 0;
+
+    private static long sizeOf(BigInteger p) {
+        return ENTRY_OVERHEAD + p.bitLength() / 8;
+    }
+
+    private static synchronized BigInteger get(int n) {
+        final BigInteger result = sCache.get(n);
+        if (result == null) {
+            ++sMisses;
+        } else {
+            ++sHits;
+        }
+        return result;
+    }
+
+    private static synchronized void put(int n, BigInteger p) {
+        final long size = sizeOf(p);
+        if (size > MAX_BYTES / 2 || sCache.containsKey(n)) {
+            return;
+        }
+        sCache.put(n, p);
+        sBytes += size;
+        // Evict least recently used entries until we are within the bound.
+        final Iterator<Map.Entry<Integer, BigInteger>> it = sCache.entrySet().iterator();
+        while (sBytes > MAX_BYTES && it.hasNext()) {
+            sBytes -= sizeOf(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    /**
+     * Return 10^(2^k).
+     */
+    public static BigInteger ladder(int k) {
+        if (k >= 31) {
+            throw new ArithmeticException("Power of ten too large");
+        }
+        return pow(1 << k);
+    }
+
+    /**
+     * Return 10^n.
+     * @param n exponent, >= 0
+     */
+    public static BigInteger pow(int n) {
+        if (n < 0) {
+            throw new ArithmeticException("Negative exponent");
+        }
+        if (n < sSmall.length) {
+            return sSmall[n];
+        }
+        BigInteger result = get(n);
+        if (result != null) {
+            return result;
+        }
+        final int highBit = Integer.highestOneBit(n);
+        if (n == highBit) {
+            // 10^(2^k) is the square of the preceding ladder entry.
+            final BigInteger half = pow(n >>> 1);
+            result = half.multiply(half);
+        } else {
+            // Product of the ladder entries corresponding to the high bits of n, and a small
+            // power for the low bits.  Only the final product is cached.
+            result = sSmall[n & (sSmall.length - 1)];
+            for (int rest = n & -sSmall.length; rest != 0; rest &= rest - 1) {
+                result = result.multiply(pow(Integer.lowestOneBit(rest)));
+            }
+        }
+        put(n, result);
+        return result;
+    }
+
+    /**
+     * Return a one line summary of cache statistics.
+     */
+    public static synchronized String getStats() {
+        return "entries=" + sCache.size() + " bytes=" + sBytes + " hits=" + sHits
+                + " misses=" + sMisses;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import java.math.BigInteger;
+
+/**
+ * The decimal digits of a rational number, with efficient access to digits far to the right of
+ * the decimal point.
+ * BoundedRational.toStringTruncated(n) divides num * 10^n by den, so computing the digits near
+ * offset n from scratch takes time superlinear in n.  Instead we remember where the last
+ * request ended, together with the corresponding remainder, and continue the long division from
+ * there if the next request starts at the same offset.  Any other request jumps directly to its
+ * starting offset a, by computing the remainder num * 10^a mod den with modular exponentiation,
+ * without generating the digits in between.  Thus the cost of a request is roughly proportional
+ * to the number of digits requested, plus a logarithmic term for jumps.
+ * If the expansion is known to become periodic after a short prefix, we compute the prefix and
+ * one period once, and then produce all digits by copying, without further BigInteger arithmetic.
+ * The number may carry a decimal scale, as BoundedRationals do.  We never expand the power of
+ * ten, except for the whole number part, and only if that is requested.  A negative scale -k
+ * instead shifts the digits of num/den k places to the right: the fraction starts with a block
+ * of k digits, the low order digits of the integer part of num/den, followed by the digits of
+ * its fractional part.
+ * Digits are those of the absolute value, truncated towards zero, as for toStringTruncated().
+ * Thread-safe.
+ */
+class RationalDigits {
+    private final boolean mNegative;
+    private final BigInteger mNum;  // Absolute value of the numerator.
+    private final BigInteger mDen;  // Positive.
+    private final int mScale;  // The value is mNum/mDen * 10^mScale.
+    private BigInteger mWhole;  // Integer part, or null if not yet computed.
+    // The first mShift digits to the right of the decimal point are those of mLead, padded with
+    // leading zeroes.  Digits at later offsets i are those of mFraction / mDen at offset
+    // i - mShift.  mShift is 0 unless the scale is negative.
+    private final int mShift;
+    private final BigInteger mLead;  // 0 <= mLead < 10^mShift.
+    private String mLeadDigits;  // mLead as a string, without padding, or null.
+    private final BigInteger mFraction;  // 0 <= mFraction < mDen.
+
+    // We store the digits of the preperiod and one period if there are at most this many.
+    private static final int MAX_TABLE_DIGITS = 20000;
+
+    // Preperiod and period lengths; period is 0 for terminating expansions.  -1 if unknown.
+    private final int mPreperiod;
+    private final int mPeriod;
+    // The first mPreperiod - mShift + mPeriod digits of mFraction / mDen, or null.
+    private final String mTable;
+
+    // Offset in mFraction / mDen at which the previous request ended, and
+    // mFraction * 10^mOffset mod mDen.
+    private int mOffset = 0;
+    private BigInteger mRemainder;
+
+    /**
+     * Equivalent to RationalDigits(num, den, 0, period).
+     */
+    RationalDigits(BigInteger num, BigInteger den, BoundedRational.DecimalPeriod period) {
+        this(num, den, 0, period);
+    }
+
+    /**
+     * Produce the digits of num/den * 10^scale.
+     * @param num Numerator
+     * @param den Denominator; must be positive
+     * @param scale Decimal scale.  If it is negative, num should not be divisible by 10, so
+     *        that the preperiod we compute is the shortest one.
+     * @param period Shape of the decimal expansion of num/den, without the scale, or null if
+     *        unknown
+     */
+    RationalDigits(BigInteger num, BigInteger den, int scale,
+            BoundedRational.DecimalPeriod period) {
+        if (den.signum() <= 0) {
+            throw new AssertionError("Non-positive denominator");
+        }
+        mNegative = num.signum() < 0;
+        mNum = num.abs();
+        mDen = den;
+        mScale = scale;
+        final BigInteger[] qr = mNum.divideAndRemainder(den);
+        if (scale >= 0) {
+            // The fraction is that of num * 10^scale / den.
+            mShift = 0;
+            mLead = BigInteger.ZERO;
+            mFraction = scale == 0 ? qr[1]
+                    : qr[1].multiply(BigInteger.TEN.modPow(BigInteger.valueOf(scale), den))
+                            .mod(den);
+            if (scale == 0) {
+                mWhole = qr[0];
+            }
+        } else {
+            mShift = -scale;
+            mFraction = qr[1];
+            // The integer part of num/den, split at the decimal point.  We need 10^mShift only
+            // if it is smaller than that integer part, since 10^mShift > 2^(3 * mShift).
+            if (qr[0].bitLength() <= 3L * mShift) {
+                mLead = qr[0];
+                mWhole = BigInteger.ZERO;
+            } else {
+                final BigInteger[] split = qr[0].divideAndRemainder(PowersOfTen.pow(mShift));
+                mLead = split[1];
+                mWhole = split[0];
+            }
+        }
+        mRemainder = mFraction;
+        if (period != null) {
+            // As in BoundedRational.decimalPeriod().
+            mPreperiod = Math.max(0, period.preperiod - scale);
+            mPeriod = period.period;
+        } else {
+            mPreperiod = mPeriod = -1;
+        }
+        if (period != null && (long) mPreperiod - mShift + mPeriod <= MAX_TABLE_DIGITS) {
+            mTable = getFractionDigits(0, mPreperiod - mShift + mPeriod);
+        } else {
+            mTable = null;
+        }
+    }
+
+    /**
+     * Return the number of digits preceding the repeating block, or -1 if unknown.
+     */
+    public int getPreperiod() {
+        return mPreperiod;
+    }
+
+    /**
+     * Return the length of the repeating block, 0 if the expansion terminates, or -1 if unknown.
+     */
+    public int getPeriod() {
+        return mPeriod;
+    }
+
+    public boolean isNegative() {
+        return mNegative;
+    }
+
+    /**
+     * Return the digits at offsets a+1 through b, i.e. b - a digits starting with the one
+     * a + 1 positions to the right of the decimal point.
+     * @param a Offset of last digit preceding the result; a >= 0
+     * @param b Offset of last digit in the result; b >= a
+     */
+    public String getDigits(int a, int b) {
+        if (a < 0 || b < a) {
+            throw new AssertionError("Bad digit range");
+        }
+        if (a >= mShift) {
+            return getFractionDigits(a - mShift, b - mShift);
+        }
+        final StringBuilder result = new StringBuilder(b - a);
+        appendDigits(a, b, result);
+        return result.toString();
+    }
+
+    /**
+     * Return the digits of mFraction / mDen at offsets a+1 through b.
+     */
+    private synchronized String getFractionDigits(int a, int b) {
+        if (a == b) {
+            return "";
+        }
+        if (mTable != null) {
+            return copyDigits(a, b);
+        }
+        BigInteger remainder;
+        if (a == mOffset) {
+            // Continue the long division.
+            remainder = mRemainder;
+        } else if (mFraction.signum() == 0) {
+            remainder = BigInteger.ZERO;
+        } else {
+            remainder = mFraction.multiply(BigInteger.TEN.modPow(BigInteger.valueOf(a), mDen))
+                    .mod(mDen);
+        }
+        final BigInteger[] qr = remainder.multiply(PowersOfTen.pow(b - a))
+                .divideAndRemainder(mDen);
+        mOffset = b;
+        mRemainder = qr[1];
+        final String digits = DecimalConversion.toString(qr[0]);
+        final int len = digits.length();
+        if (len < b - a) {
+            return StringUtils.repeat('0', b - a - len) + digits;
+        }
+        return digits;
+    }
+
+    /**
+     * Append the digits of the leading block at offsets a+1 through b <= mShift to dest.
+     */
+    private void appendLeadDigits(int a, int b, StringBuilder dest) {
+        String lead;
+        synchronized (this) {
+            lead = mLeadDigits;
+            if (lead == null) {
+                lead = mLeadDigits = mLead.signum() == 0 ? "" : DecimalConversion.toString(mLead);
+            }
+        }
+        // Number of padding zeroes.
+        final int zeroes = mShift - lead.length();
+        for (int i = a; i < Math.min(b, zeroes); ++i) {
+            dest.append('0');
+        }
+        if (b > zeroes) {
+            dest.append(lead, Math.max(a, zeroes) - zeroes, b - zeroes);
+        }
+    }
+
+    /**
+     * Append the digits at offsets a+1 through b to dest, as for getDigits(a, b).  Does not
+     * allocate if the digits come from the table, and dest has sufficient capacity.
+     */
+    public void appendDigits(int a, int b, StringBuilder dest) {
+        if (a < 0 || b < a) {
+            throw new AssertionError("Bad digit range");
+        }
+        if (a < mShift) {
+            appendLeadDigits(a, Math.min(b, mShift), dest);
+            a = mShift;
+        }
+        if (b <= a) {
+            return;
+        }
+        if (mTable != null) {
+            copyDigits(a - mShift, b - mShift, dest);
+        } else {
+            dest.append(getFractionDigits(a - mShift, b - mShift));
+        }
+    }
+
+    /**
+     * Produce the digits of mFraction / mDen at offsets a+1 through b from mTable.
+     */
+    private String copyDigits(int a, int b) {
+        return copyDigits(a, b, new StringBuilder(b - a)).toString();
+    }
+
+    /**
+     * Append the digits of mFraction / mDen at offsets a+1 through b from mTable to result, and
+     * return result.
+     */
+    private StringBuilder copyDigits(int a, int b, StringBuilder result) {
+        final int preperiod = mPreperiod - mShift;
+        final int tableLen = mTable.length();
+        int i = a;  // Offset of last digit produced.
+        if (i < tableLen) {
+            final int end = Math.min(b, tableLen);
+            result.append(mTable, i, end);
+            i = end;
+        }
+        if (i < b && mPeriod == 0) {
+            // Trailing zeroes of a terminating expansion.
+            for (; i < b; ++i) {
+                result.append('0');
+            }
+            return result;
+        }
+        while (i < b) {
+            // Digit at offset i + 1 is the same as that at a corresponding offset in the first
+            // period.
+            final int start = preperiod + (i - preperiod) % mPeriod;
+            final int end = Math.min(tableLen, start + (b - i));
+            result.append(mTable, start, end);
+            i += end - start;
+        }
+        return result;
+    }
+
+    /**
+     * Return the repeating decimal notation for the number, with the repeating block, if any,
+     * enclosed in parentheses, e.g. "-0.1(6)".  Return null if the period is unknown, or the
+     * result would be longer than maxLength.
+     */
+    public String toRepeatingString(int maxLength) {
+        if (mPeriod < 0) {
+            return null;
+        }
+        final String prefix = (mNegative ? "-" : "") + getWhole();
+        final int length = prefix.length() + 1 + mPreperiod + (mPeriod == 0 ? 0 : mPeriod + 2);
+        if (length > maxLength) {
+            return null;
+        }
+        final String digits = getDigits(0, mPreperiod + mPeriod);
+        if (mPeriod == 0) {
+            return mPreperiod == 0 ? prefix : prefix + "." + digits;
+        }
+        return prefix + "." + digits.substring(0, mPreperiod) + "("
+                + digits.substring(mPreperiod) + ")";
+    }
+
+    /**
+     * Return the same result as BoundedRational.toStringTruncated(n).
+     * @param n result precision, >= 0
+     */
+    public String toStringTruncated(int n) {
+        return (mNegative ? "-" : "") + getWhole() + "." + getDigits(0, n);
+    }
+
+    /**
+     * Return the absolute value of the integer part.  Expands the power of ten for a positive
+     * scale, so that the integer part may be huge.
+     */
+    private synchronized BigInteger getWhole() {
+        if (mWhole == null) {
+            mWhole = mNum.multiply(PowersOfTen.pow(mScale)).divide(mDen);
+        }
+        return mWhole;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of evaluation results, keyed by the serialized form of the expression and
+ * the degree mode.  Identical expressions at different indices, e.g. because the user entered
+ * the same expression again, share both the UnifiedReal value and the best decimal string
+ * computed so far.
+ * Expressions containing PreEval tokens are keyed by the referenced indices, so the cache must
+ * be cleared whenever indices may be reused, i.e. when the database is erased.
+ * All methods are thread-safe.
+ */
+class ResultCache {
+    /**
+     * Key identifying an expression independent of its index.
+     */
+    public static final class Key {
+        private final byte[] mExpr;
+        private final boolean mDegreeMode;
+        private final int mHash;
+
+        public Key(byte[] expr, boolean degreeMode) {
+            mExpr = expr;
+            mDegreeMode = degreeMode;
+            mHash = Arrays.hashCode(expr) * 2 + (degreeMode ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key k = (Key) other;
+            return mHash == k.mHash && mDegreeMode == k.mDegreeMode
+                    && Arrays.equals(mExpr, k.mExpr);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+
+    /**
+     * A cached result.  The string and offset have the same meaning as ExprInfo.mResultString
+     * and ExprInfo.mResultStringOffset.  resultString may be null if only the value is known.
+     */
+    public static final class Entry {
+        public final UnifiedReal val;
+        public final DigitBuffer resultString;
+        public final int resultStringOffset;
+
+        Entry(UnifiedReal v, DigitBuffer s, int offset) {
+            val = v;
+            resultString = s;
+            resultStringOffset = offset;
+        }
+    }
+
+    // Rough per-entry overhead, in bytes, in addition to the key and result string.
+    private static final int ENTRY_OVERHEAD = 200;
+
+    // Result strings longer than this fraction of the memory cap are not cached; we keep just
+    // the value.
+    private static final int MAX_STRING_FRACTION = 4;
+
+    private final long mMaxBytes;
+    private long mBytes = 0;  // Estimated memory use of current entries.
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    // In access order, so that the eldest entry is the least recently used one.
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>(16, 0.75f,
+            true /* access order */);
+
+    /**
+     * @param maxBytes approximate bound on the memory used by cached entries
+     */
+    ResultCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    private static long sizeOf(Key k, Entry e) {
+        return ENTRY_OVERHEAD + k.mExpr.length
+                + (e.resultString == null ? 0 : e.resultString.memorySize());
+    }
+
+    /**
+     * Return the cached entry for the given key, or null.
+     */
+    public synchronized Entry get(Key k) {
+        final Entry result = mEntries.get(k);
+        if (result == null) {
+            ++mMisses;
+        } else {
+            ++mHits;
+        }
+        return result;
+    }
+
+    /**
+     * Record a result for the given key.  An existing entry with a longer result string is
+     * retained, but its value is kept in either case, since the values are equivalent.
+     * Return the entry now associated with the key, which may have a longer result string
+     * than the one supplied.
+     */
+    public synchronized Entry put(Key k, UnifiedReal val, DigitBuffer resultString,
+            int offset) {
+        if (resultString != null
+                && resultString.memorySize() > mMaxBytes / MAX_STRING_FRACTION) {
+            resultString = null;
+            offset = 0;
+        }
+        final Entry old = mEntries.get(k);
+        if (old != null) {
+            if (old.resultString != null && (resultString == null
+                    || old.resultStringOffset >= offset)) {
+                return old;
+            }
+            mBytes -= sizeOf(k, old);
+            val = old.val;  // Keep the instance whose approximations are cached.
+        }
+        final Entry e = new Entry(val, resultString, offset);
+        mEntries.put(k, e);
+        mBytes += sizeOf(k, e);
+        trim();
+        return e;
+    }
+
+    /**
+     * Evict least recently used entries until we are within the memory cap.
+     */
+    private void trim() {
+        final Iterator<Map.Entry<Key, Entry>> it = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            final Map.Entry<Key, Entry> eldest = it.next();
+            mBytes -= sizeOf(eldest.getKey(), eldest.getValue());
+            it.remove();
+            ++mEvictions;
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Return a one line summary of cache statistics.
+     */
+    public synchronized String getStats() {
+        return "entries=" + mEntries.size() + " bytes=" + mBytes + " hits=" + mHits
+                + " misses=" + mMisses + " evictions=" + mEvictions;
+    }
+}
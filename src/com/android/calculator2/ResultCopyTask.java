@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.hp.creals.CR;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Copies a long result in the background.
+ * The unlocalized text is produced by a Source, which must not touch UI state.  We then
+ * translate it and write it to a ResultProvider file in CHUNK_CHARS pieces, checking for
+ * cancellation and reporting progress after each piece.  The listener receives the content
+ * Uri for the file, which can be placed on the clipboard in place of the text itself.
+ * A cancelled task deletes its file and reports nothing.
+ */
+class ResultCopyTask extends AsyncTask<Void, Integer, Uri> {
+    // Number of characters translated and written at a time.
+    private static final int CHUNK_CHARS = 1 << 16;
+
+    /**
+     * Produces the unlocalized result text.  Runs in the background.
+     */
+    public interface Source {
+        /**
+         * Append the text to result.  May throw CR.AbortedException if interrupted.
+         */
+        void getText(StringBuilder result);
+    }
+
+    /**
+     * Callbacks, all on the UI thread.
+     */
+    public interface Listener {
+        /**
+         * @param percent Percentage of the text written so far.
+         */
+        void onCopyProgress(int percent);
+
+        /**
+         * @param uri Content Uri for the copied text.
+         */
+        void onCopied(Uri uri);
+
+        void onCopyFailed();
+    }
+
+    private final Context mContext;  // Application context.
+    private final Source mSource;
+    private final KeyMaps.ResultTranslator mTranslator;
+    private final Uri mTag;  // Tag Uri from Evaluator.capture(), or null.
+    private final Listener mListener;
+    private File mFile;  // Written only by background thread.
+    private int mLastPercent = -1;  // Background thread only.
+
+    /**
+     * Constructed on the UI thread.
+     */
+    ResultCopyTask(Context context, Source source, Uri tag, Listener listener) {
+        mContext = context.getApplicationContext();
+        mSource = source;
+        mTranslator = KeyMaps.getResultTranslator();
+        mTag = tag;
+        mListener = listener;
+    }
+
+    @Override
+    protected Uri doInBackground(Void... nothing) {
+        final StringBuilder text = new StringBuilder();
+        try {
+            mSource.getText(text);
+        } catch (CR.AbortedException e) {
+            return null;
+        }
+        if (isCancelled()) {
+            return null;
+        }
+        final int len = text.length();
+        final StringBuilder chunk = new StringBuilder(CHUNK_CHARS);
+        try {
+            mFile = ResultProvider.newResultFile(mContext);
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(mFile),
+                    StandardCharsets.UTF_8)) {
+                for (int start = 0; start < len; start += CHUNK_CHARS) {
+                    if (isCancelled()) {
+                        break;
+                    }
+                    final int end = Math.min(len, start + CHUNK_CHARS);
+                    chunk.setLength(0);
+                    mTranslator.translate(text, start, end, chunk);
+                    out.append(chunk);
+                    final int percent = (int) (100L * end / len);
+                    if (percent != mLastPercent) {
+                        mLastPercent = percent;
+                        publishProgress(percent);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e("Calculator", "Copying result failed", e);
+            deleteFile();
+            return null;
+        }
+        if (isCancelled()) {
+            deleteFile();
+            return null;
+        }
+        return ResultProvider.uriFor(mFile, mTag);
+    }
+
+    private void deleteFile() {
+        if (mFile != null) {
+            mFile.delete();
+            mFile = null;
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... percent) {
+        if (!isCancelled()) {
+            mListener.onCopyProgress(percent[0]);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(Uri uri) {
+        if (uri == null) {
+            mListener.onCopyFailed();
+        } else {
+            mListener.onCopied(uri);
+        }
+    }
+}
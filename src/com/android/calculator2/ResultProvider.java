@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Serves the text of long copied results, so that the clipboard holds a content Uri rather
+ * than a string with up to a million characters.  Results are written by ResultCopyTask to
+ * files in a private cache directory.  Once a new result has been placed on the clipboard, the
+ * files for earlier results are deleted.
+ * The provider is not exported; the clipboard grants read access to apps that paste.
+ * Each Uri also carries the tag Uri returned by Evaluator.capture(), so that we can recognize
+ * our own results when they are pasted back into the calculator.
+ */
+public class ResultProvider extends ContentProvider {
+    public static final String AUTHORITY = "com.android.calculator2.results";
+    private static final String DIR_NAME = "results";
+    private static final String TAG_PARAMETER = "tag";
+    private static final String MIME_TYPE = "text/plain";
+    private static final String[] DEFAULT_PROJECTION =
+            new String[] { OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE };
+
+    private static File getDir(Context context) {
+        return new File(context.getCacheDir(), DIR_NAME);
+    }
+
+    /**
+     * Return a new, empty file for a copied result.
+     * Files for earlier results are left alone, since the clipboard may still refer to one of
+     * them until the new result is published.
+     * Callable from any thread.
+     */
+    static File newResultFile(Context context) throws IOException {
+        final File dir = getDir(context);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return File.createTempFile("result", ".txt", dir);
+    }
+
+    /**
+     * Delete the files for all copied results other than the one with content Uri uri.
+     * Called after uri has been placed on the clipboard.  Must not be called while another
+     * copy is in progress, since that would delete the file being written.
+     */
+    static void deleteOtherResultFiles(Context context, Uri uri) {
+        final File[] files = getDir(context).listFiles();
+        if (files == null) {
+            return;
+        }
+        final String keep = uri.getLastPathSegment();
+        for (File f : files) {
+            if (!f.getName().equals(keep)) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Return the content Uri for a file returned by newResultFile().
+     * @param tag Tag Uri identifying the result, or null.
+     */
+    static Uri uriFor(File file, Uri tag) {
+        final Uri.Builder builder = new Uri.Builder().scheme("content").authority(AUTHORITY)
+                .appendPath(file.getName());
+        if (tag != null) {
+            builder.appendQueryParameter(TAG_PARAMETER, tag.toString());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Return the tag Uri carried by one of our content Uris, or null if uri is not ours.
+     */
+    public static Uri getTag(Uri uri) {
+        if (!"content".equals(uri.getScheme()) || !AUTHORITY.equals(uri.getAuthority())) {
+            return null;
+        }
+        final String tag = uri.getQueryParameter(TAG_PARAMETER);
+        return tag == null ? null : Uri.parse(tag);
+    }
+
+    private File getFile(Uri uri) throws FileNotFoundException {
+        final List<String> segments = uri.getPathSegments();
+        if (segments.size() != 1) {
+            throw new FileNotFoundException("Bad result uri: " + uri);
+        }
+        final File file = new File(getDir(getContext()), segments.get(0));
+        if (!file.isFile()) {
+            throw new FileNotFoundException("No result: " + uri);
+        }
+        return file;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new SecurityException("Results are read-only");
+        }
+        return ParcelFileDescriptor.open(getFile(uri), ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        final File file;
+        try {
+            file = getFile(uri);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        if (projection == null) {
+            projection = DEFAULT_PROJECTION;
+        }
+        final MatrixCursor cursor = new MatrixCursor(projection, 1);
+        final MatrixCursor.RowBuilder row = cursor.newRow();
+        for (String column : projection) {
+            if (OpenableColumns.DISPLAY_NAME.equals(column)) {
+                row.add(file.getName());
+            } else if (OpenableColumns.SIZE.equals(column)) {
+                row.add(file.length());
+            } else {
+                row.add(null);
+            }
+        }
+        return cursor;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Results are read-only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Results are read-only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Results are read-only");
+    }
+}
@@ -41,7 +41,7 @@ public class StringUtils {
      * at least somewhat acceptable, though not necessarily preferred, everywhere.
      * The grouping separator in the result is NOT localized.
      */
-    public static String addCommas(String s, int begin, int end) {
+    public static String addCommas(CharSequence s, int begin, int end) {
         // Resist the temptation to use Java's NumberFormat, which converts to long or double
         // and hence doesn't handle very large numbers.
         StringBuilder result = new StringBuilder();
@@ -60,6 +60,21 @@ public class StringUtils {
         return result.toString();
     }
 
+    /**
+     * Insert commas into the whole number in s between begin and end, in place, as addCommas()
+     * would.  Unlike addCommas(), characters outside that range are preserved.
+     */
+    public static void insertCommas(StringBuilder s, int begin, int end) {
+        int current = begin;
+        while (current < end && (s.charAt(current) == '-' || s.charAt(current) == ' ')) {
+            ++current;
+        }
+        // Work from the right, so that insertions don't move the remaining positions.
+        for (int pos = end - 3; pos > current; pos -= 3) {
+            s.insert(pos, ',');
+        }
+    }
+
     /**
      * Ignoring all occurrences of c in both strings, check whether old is a prefix of new.
      * If so, return the remaining subsequence of whole. If not, return null.
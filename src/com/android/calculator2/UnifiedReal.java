@@ -43,6 +43,11 @@ public class UnifiedReal {
 
     private final BoundedRational mRatFactor;
     private final CR mCrFactor;
+    // Memoized crValue(), or null.  A CR caches its most precise approximation so far, and
+    // derives less precise ones from it, so keeping a single CR lets successive decimal
+    // conversions and comparisons reuse each other's work.  Races are benign, since all
+    // values computed for a given UnifiedReal are equivalent.
+    private volatile CR mCrValue;
     // TODO: It would be helpful to add flags to indicate whether the result is known
     // irrational, etc.  This sometimes happens even if mCrFactor is not one of the known ones.
     // And exact comparisons between rationals and known irrationals are decidable.
@@ -81,7 +86,7 @@ public class UnifiedReal {
     }
 
     public UnifiedReal(long n) {
-        this(new BoundedRational(n));
+        this(BoundedRational.valueOf(n));
     }
 
     public static UnifiedReal valueOf(double x) {
@@ -183,7 +188,7 @@ public class UnifiedReal {
     private static BoundedRational getSquare(CR cr) {
         for (int i = 0; i < sSqrts.length; ++i) {
              if (sSqrts[i] == cr) {
-                return new BoundedRational(i);
+                return BoundedRational.valueOf(i);
              }
         }
         return null;
@@ -198,7 +203,7 @@ public class UnifiedReal {
     private BoundedRational getExp(CR cr) {
         for (int i = 0; i < sLogs.length; ++i) {
              if (sLogs[i] == cr) {
-                return new BoundedRational(i);
+                return BoundedRational.valueOf(i);
              }
         }
         return null;
@@ -391,36 +396,45 @@ public class UnifiedReal {
         if (mCrFactor == CR_ONE || mRatFactor == BoundedRational.ZERO) {
             return mRatFactor.toStringTruncated(n);
         }
-        final CR scaled = CR.valueOf(BigInteger.TEN.pow(n)).multiply(crValue());
+        // Rather than approximating a new CR for crValue() * 10^n, approximate crValue() itself
+        // to the corresponding binary precision, so that its cached approximation is reused
+        // by later calls.
+        final BigInteger tenPow = PowersOfTen.pow(n);
+        final int shift = tenPow.bitLength() + EXTRA_PREC;  // 2^shift > 10^n * 2^EXTRA_PREC
+        BigInteger appr = crValue().get_appr(-shift);
         boolean negative = false;
-        BigInteger intScaled;
-        if (exactlyTruncatable()) {
-            intScaled = scaled.get_appr(0);
-            if (intScaled.signum() < 0) {
-                negative = true;
-                intScaled = intScaled.negate();
-            }
-            if (CR.valueOf(intScaled).compareTo(scaled.abs()) > 0) {
-                intScaled = intScaled.subtract(BigInteger.ONE);
-            }
-            check(CR.valueOf(intScaled).compareTo(scaled.abs()) < 0);
-        } else {
+        if (appr.signum() < 0) {
+            negative = true;
+            appr = appr.negate();
+        }
+        // |appr - |crValue()| * 2^shift| < 1, so the exact scaled value is within 10^n of
+        // scaledAppr, in units of 2^-shift.
+        final BigInteger scaledAppr = appr.multiply(tenPow);
+        BigInteger intScaled = scaledAppr.shiftRight(shift);
+        if (!exactlyTruncatable()) {
             // Approximate case.  Exact comparisons are impossible.
-            intScaled = scaled.get_appr(-EXTRA_PREC);
-            if (intScaled.signum() < 0) {
-                negative = true;
-                intScaled = intScaled.negate();
-            }
-            intScaled = intScaled.shiftRight(EXTRA_PREC);
+            return DecimalConversion.toStringTruncated(intScaled, negative, n);
         }
-        String digits = intScaled.toString();
-        int len = digits.length();
-        if (len < n + 1) {
-            digits = StringUtils.repeat('0', n + 1 - len) + digits;
-            len = n + 1;
+        final BigInteger low = scaledAppr.subtract(intScaled.shiftLeft(shift));
+        if (appr.signum() != 0 && low.compareTo(tenPow) >= 0
+                && low.add(tenPow).bitLength() <= shift) {
+            // The sign is known, and the exact value is not within the error bound of an
+            // integer, so truncation yields the same result.
+            return DecimalConversion.toStringTruncated(intScaled, negative, n);
         }
-        return (negative ? "-" : "") + digits.substring(0, len - n) + "."
-                + digits.substring(len - n);
+        // Rarely needed exact comparison.
+        final CR scaled = CR.valueOf(tenPow).multiply(crValue());
+        intScaled = scaled.get_appr(0);
+        negative = false;
+        if (intScaled.signum() < 0) {
+            negative = true;
+            intScaled = intScaled.negate();
+        }
+        if (CR.valueOf(intScaled).compareTo(scaled.abs()) > 0) {
+            intScaled = intScaled.subtract(BigInteger.ONE);
+        }
+        check(CR.valueOf(intScaled).compareTo(scaled.abs()) < 0);
+        return DecimalConversion.toStringTruncated(intScaled, negative, n);
     }
 
     /*
@@ -448,7 +462,12 @@ public class UnifiedReal {
     }
 
     public CR crValue() {
-        return mRatFactor.crValue().multiply(mCrFactor);
+        CR result = mCrValue;
+        if (result == null) {
+            result = mRatFactor.crValue().multiply(mCrFactor);
+            mCrValue = result;
+        }
+        return result;
     }
 
     /**
@@ -718,7 +737,7 @@ public class UnifiedReal {
             for (int divisor = 1; divisor < sSqrts.length; ++divisor) {
                 if (sSqrts[divisor] != null) {
                     ratSqrt = BoundedRational.sqrt(
-                            BoundedRational.divide(mRatFactor, new BoundedRational(divisor)));
+                            BoundedRational.divide(mRatFactor, BoundedRational.valueOf(divisor)));
                     if (ratSqrt != null) {
                         return new UnifiedReal(ratSqrt, sSqrts[divisor]);
                     }
@@ -1084,7 +1103,7 @@ public class UnifiedReal {
             ++result;
             // And try a slightly faster computation for large n:
             if (base16th == null) {
-                base16th = BigInteger.valueOf(pow16(base));
+                base16th = base == 10 ? PowersOfTen.pow(16) : BigInteger.valueOf(pow16(base));
             }
             while (n.mod(base16th).signum() == 0) {
                 n = n.divide(base16th);
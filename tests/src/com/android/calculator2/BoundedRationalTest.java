@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Decimal expansions of BoundedRationals.
+ */
+public class BoundedRationalTest extends TestCase {
+    /**
+     * Return {preperiod, period} for num/den, 0 <= num, 0 < den, by long division.
+     */
+    private static int[] periodByLongDivision(long num, long den) {
+        final HashMap<Long, Integer> seen = new HashMap<Long, Integer>();
+        long remainder = num % den;
+        for (int i = 0; ; ++i) {
+            if (remainder == 0) {
+                return new int[] { i, 0 };
+            }
+            final Integer previous = seen.put(remainder, i);
+            if (previous != null) {
+                return new int[] { previous, i - previous };
+            }
+            remainder = remainder * 10 % den;
+        }
+    }
+
+    public void testRandomPeriods() {
+        final Random rnd = new Random(3);
+        for (int i = 0; i < 3000; ++i) {
+            final long num = rnd.nextInt(200000) - 100000;
+            final long den = rnd.nextInt(5000) + 1;
+            final BoundedRational.DecimalPeriod p =
+                    BoundedRational.decimalPeriod(new BoundedRational(num, den));
+            final int[] expected = periodByLongDivision(Math.abs(num), den);
+            assertEquals(num + "/" + den, expected[0], p.preperiod);
+            assertEquals(num + "/" + den, expected[1], p.period);
+            assertEquals(p.period == 0 ? p.preperiod : Integer.MAX_VALUE,
+                    BoundedRational.digitsRequired(new BoundedRational(num, den)));
+        }
+    }
+
+    public void testLargePowersOfFive() {
+        final BigInteger fives = BigInteger.valueOf(5).pow(30000);
+        final BoundedRational r = new BoundedRational(BigInteger.valueOf(3),
+                fives.shiftLeft(17).multiply(BigInteger.valueOf(7)));
+        final BoundedRational.DecimalPeriod p = BoundedRational.decimalPeriod(r);
+        assertEquals(30000, p.preperiod);
+        assertEquals(6, p.period);
+        // digitsRequired() gives up on denominators longer than 10000 bits.
+        assertEquals(4000, BoundedRational.digitsRequired(new BoundedRational(BigInteger.ONE,
+                BigInteger.valueOf(5).pow(4000).shiftLeft(17))));
+        assertEquals(17, BoundedRational.digitsRequired(
+                new BoundedRational(BigInteger.ONE, BigInteger.ONE.shiftLeft(17))));
+    }
+
+    public void testUnknownPeriod() {
+        // 2147483659 is prime, and too large for us to compute the period.
+        assertNull(BoundedRational.decimalPeriod(new BoundedRational(1, 2147483659L)));
+    }
+
+    public void testRepeatingString() {
+        assertEquals("0.(142857)", new BoundedRational(1, 7).digits().toRepeatingString(100));
+        assertEquals("-0.41(6)", new BoundedRational(-5, 12).digits().toRepeatingString(100));
+        assertEquals("3.(142857)", new BoundedRational(22, 7).digits().toRepeatingString(100));
+        assertEquals("0.875", new BoundedRational(7, 8).digits().toRepeatingString(100));
+        assertEquals("3", new BoundedRational(3).digits().toRepeatingString(100));
+        assertNull(new BoundedRational(1, 7).digits().toRepeatingString(9));
+        final String s = new BoundedRational(1, 9801).digits().toRepeatingString(1000);
+        assertTrue(s, s.startsWith("0.(00010203"));
+        assertEquals(198 + 4, s.length());
+    }
+
+    /**
+     * Return n/d * 10^scale, with the power of ten multiplied out.
+     */
+    private static BoundedRational expanded(BigInteger n, BigInteger d, int scale) {
+        final BigInteger power = BigInteger.TEN.pow(Math.abs(scale));
+        return scale >= 0 ? new BoundedRational(n.multiply(power), d)
+                : new BoundedRational(n, d.multiply(power));
+    }
+
+    public void testScaledDigits() {
+        final Random rnd = new Random(25);
+        for (int i = 0; i < 2000; ++i) {
+            BigInteger n = BigInteger.valueOf(rnd.nextInt(200000) - 100000);
+            if (rnd.nextInt(4) == 0) {
+                // Trailing zeroes that can be moved into the scale.
+                n = n.multiply(BigInteger.TEN.pow(rnd.nextInt(5)));
+            }
+            final BigInteger d = BigInteger.valueOf(rnd.nextInt(2000) + 1);
+            final int scale = rnd.nextInt(121) - 60;
+            final BoundedRational r = new BoundedRational(n, d, scale);
+            final BoundedRational e = expanded(n, d, scale);
+            final String what = n + "/" + d + "E" + scale;
+            final int m = rnd.nextInt(200);
+            final String truncated = e.toStringTruncated(m);
+            assertEquals(what, truncated, r.toStringTruncated(m));
+            final RationalDigits digits = r.digits();
+            assertEquals(what, truncated, digits.toStringTruncated(m));
+            final String frac = truncated.substring(truncated.indexOf('.') + 1);
+            for (int j = 0; j < 5; ++j) {
+                final int a = rnd.nextInt(m + 1);
+                final int b = a + rnd.nextInt(m - a + 1);
+                assertEquals(what, frac.substring(a, b), digits.getDigits(a, b));
+            }
+            final BoundedRational.DecimalPeriod p = BoundedRational.decimalPeriod(r);
+            final BoundedRational.DecimalPeriod q = BoundedRational.decimalPeriod(e);
+            assertEquals(what, q.preperiod, p.preperiod);
+            assertEquals(what, q.period, p.period);
+            assertEquals(what, BoundedRational.digitsRequired(e),
+                    BoundedRational.digitsRequired(r));
+            assertEquals(what, e.digits().toRepeatingString(300),
+                    digits.toRepeatingString(300));
+        }
+    }
+
+    public void testPowSizeGuard() {
+        // 1.0000001^1000000 has a 7000000 digit denominator.
+        final BoundedRational base =
+                new BoundedRational(BigInteger.valueOf(10000001), BigInteger.ONE, -7);
+        final long start = System.nanoTime();
+        assertNull(base.pow(BigInteger.valueOf(1000000)));
+        // The guard should stop squaring once the result exceeds 10000 bits, long before
+        // the computation gets expensive.
+        assertTrue((System.nanoTime() - start) / 1000000 < 1000);
+        // Small powers are still computed exactly.
+        assertEquals("1.00000070000021000003", base.pow(BigInteger.valueOf(7))
+                .toStringTruncated(20));
+    }
+
+    public void testTinyScaledDigits() {
+        // 7E-99999, as entered.  10^99999 should never be expanded.
+        final BoundedRational r = new BoundedRational(BigInteger.valueOf(7), BigInteger.ONE,
+                -99999);
+        final long start = System.nanoTime();
+        final RationalDigits digits = r.digits();
+        assertEquals("00000000700000000000", digits.getDigits(99990, 100010));
+        assertEquals("0.0000", digits.toStringTruncated(4));
+        final BoundedRational.DecimalPeriod p = BoundedRational.decimalPeriod(r);
+        assertEquals(99999, p.preperiod);
+        assertEquals(0, p.period);
+        assertTrue((System.nanoTime() - start) / 1000000 < 1000);
+        // And a repeating one: 7E-99999 / 3.
+        final RationalDigits thirds = BoundedRational.divide(r, new BoundedRational(3)).digits();
+        assertEquals("00000000233333333333", thirds.getDigits(99990, 100010));
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Evaluation of expressions nested far too deeply for a recursive evaluator.
+ * We evaluate on a thread with a deliberately small stack, so that any remaining recursion
+ * proportional to the nesting depth shows up as a StackOverflowError.
+ */
+public class CalculatorExprTest extends TestCase {
+    private static final long SMALL_STACK = 256 * 1024;
+    private static final int DEPTH = 20000;
+
+    /**
+     * ExprResolver over a map, as Evaluator would provide for history entries.
+     */
+    private static class MapResolver implements CalculatorExpr.ExprResolver {
+        private final HashMap<Long, CalculatorExpr> mExprs = new HashMap<Long, CalculatorExpr>();
+        private final HashMap<Long, UnifiedReal> mResults = new HashMap<Long, UnifiedReal>();
+
+        void put(long index, CalculatorExpr expr) {
+            mExprs.put(index, expr);
+        }
+
+        @Override
+        public synchronized CalculatorExpr getExpr(long index) {
+            return mExprs.get(index);
+        }
+
+        @Override
+        public boolean getDegreeMode(long index) {
+            return false;
+        }
+
+        @Override
+        public synchronized UnifiedReal getResult(long index) {
+            return mResults.get(index);
+        }
+
+        @Override
+        public synchronized UnifiedReal putResultIfAbsent(long index, UnifiedReal result) {
+            final UnifiedReal old = mResults.get(index);
+            if (old != null) {
+                return old;
+            }
+            mResults.put(index, result);
+            return result;
+        }
+    }
+
+    /**
+     * Add the given keys to the end of expr.
+     */
+    private static void add(CalculatorExpr expr, int... ids) {
+        for (int id : ids) {
+            expr.add(id);
+        }
+    }
+
+    private static void repeat(CalculatorExpr expr, int id, int count) {
+        for (int i = 0; i < count; ++i) {
+            expr.add(id);
+        }
+    }
+
+    /**
+     * Evaluate expr on a thread with a small stack, and return the result truncated to
+     * n digits.
+     */
+    private static String evalOnSmallStack(final CalculatorExpr expr,
+            final CalculatorExpr.ExprResolver er, final int n) throws Throwable {
+        final String[] result = new String[1];
+        final Throwable[] failure = new Throwable[1];
+        final Thread t = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = expr.eval(false, er).toStringTruncated(n);
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }
+        }, "eval", SMALL_STACK);
+        t.start();
+        t.join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return result[0];
+    }
+
+    public void testDeepParentheses() throws Throwable {
+        // ((((...(2+3)...)))) x 4
+        final CalculatorExpr e = new CalculatorExpr();
+        repeat(e, R.id.lparen, DEPTH);
+        add(e, R.id.digit_2, R.id.op_add, R.id.digit_3);
+        repeat(e, R.id.rparen, DEPTH);
+        add(e, R.id.op_mul, R.id.digit_4);
+        assertEquals("20.00", evalOnSmallStack(e, new MapResolver(), 2));
+    }
+
+    public void testUnbalancedParentheses() throws Throwable {
+        // Missing right parentheses are implicitly added at the end.
+        final CalculatorExpr e = new CalculatorExpr();
+        repeat(e, R.id.lparen, DEPTH);
+        add(e, R.id.digit_2, R.id.op_add, R.id.digit_3);
+        repeat(e, R.id.rparen, DEPTH / 2);
+        add(e, R.id.op_mul, R.id.digit_4);
+        assertEquals("20.00", evalOnSmallStack(e, new MapResolver(), 2));
+    }
+
+    public void testDeepRightNesting() throws Throwable {
+        // 1+(1+(1+(...(1)...))) has the value DEPTH + 1.
+        final CalculatorExpr e = new CalculatorExpr();
+        for (int i = 0; i < DEPTH; ++i) {
+            add(e, R.id.digit_1, R.id.op_add, R.id.lparen);
+        }
+        e.add(R.id.digit_1);
+        repeat(e, R.id.rparen, DEPTH);
+        assertEquals((DEPTH + 1) + ".0", evalOnSmallStack(e, new MapResolver(), 1));
+    }
+
+    public void testDeepPrefixOperators() throws Throwable {
+        // sqrt(sqrt(...sqrt(1)...))
+        final CalculatorExpr e = new CalculatorExpr();
+        repeat(e, R.id.op_sqrt, DEPTH / 4);
+        e.add(R.id.digit_1);
+        assertEquals("1.00000", evalOnSmallStack(e, new MapResolver(), 5));
+    }
+
+    public void testDeepExponentiation() throws Throwable {
+        // 1^1^...^1^2, which is right associative.
+        final CalculatorExpr e = new CalculatorExpr();
+        for (int i = 0; i < DEPTH / 4; ++i) {
+            add(e, R.id.digit_1, R.id.op_pow);
+        }
+        e.add(R.id.digit_2);
+        assertEquals("1.000", evalOnSmallStack(e, new MapResolver(), 3));
+    }
+
+    public void testDeepReferencedExpression() throws Throwable {
+        // A deeply nested history entry, referenced from the current expression.
+        final MapResolver er = new MapResolver();
+        final CalculatorExpr deep = new CalculatorExpr();
+        repeat(deep, R.id.lparen, DEPTH);
+        add(deep, R.id.digit_2, R.id.op_add, R.id.digit_3);
+        repeat(deep, R.id.rparen, DEPTH);
+        er.put(1, deep);
+        final CalculatorExpr e = deep.abbreviate(1, "5");
+        add(e, R.id.op_add, R.id.digit_1);
+        assertEquals("6.00", evalOnSmallStack(e, er, 2));
+    }
+
+    public void testDeepSyntaxError() throws Throwable {
+        // Too many right parentheses.
+        final CalculatorExpr e = new CalculatorExpr();
+        repeat(e, R.id.lparen, DEPTH);
+        e.add(R.id.digit_2);
+        repeat(e, R.id.rparen, DEPTH + 1);
+        e.add(R.id.digit_2);
+        try {
+            evalOnSmallStack(e, new MapResolver(), 2);
+            fail("Expected SyntaxException");
+        } catch (CalculatorExpr.SyntaxException expected) {
+        }
+    }
+
+    public void testFlatExpressionInterval() {
+        // sin(1)+sin(1)+...+sin(1) contains many functions, but isn't deeply nested.
+        final CalculatorExpr e = new CalculatorExpr();
+        for (int i = 0; i < 101; ++i) {
+            if (i != 0) {
+                e.add(R.id.op_add);
+            }
+            add(e, R.id.fun_sin, R.id.digit_1, R.id.rparen);
+        }
+        final DoubleInterval result = e.evalInterval(false, new MapResolver());
+        assertNotNull(result);
+        final double expected = 101 * Math.sin(1);
+        assertTrue(result.mLo <= expected && expected <= result.mHi);
+    }
+
+    public void testDeepInterval() throws Throwable {
+        final CalculatorExpr e = new CalculatorExpr();
+        repeat(e, R.id.lparen, DEPTH);
+        add(e, R.id.digit_2, R.id.op_add, R.id.digit_3);
+        repeat(e, R.id.rparen, DEPTH);
+        evalOnSmallStack(e, new MapResolver(), 2);
+        final DoubleInterval result = e.evalInterval(false, new MapResolver());
+        assertNotNull(result);
+        assertTrue(result.mLo <= 5.0 && 5.0 <= result.mHi);
+    }
+
+    public void testErrorOrder() throws Throwable {
+        // The division by zero precedes the syntax error, and is reported instead.
+        final CalculatorExpr e = new CalculatorExpr();
+        add(e, R.id.digit_1, R.id.op_div, R.id.digit_0, R.id.rparen);
+        try {
+            evalOnSmallStack(e, new MapResolver(), 2);
+            fail("Expected ArithmeticException");
+        } catch (ArithmeticException expected) {
+        }
+        // But a syntax error preceding it is: A decimal point without digits.
+        final CalculatorExpr e2 = new CalculatorExpr();
+        add(e2, R.id.dec_point, R.id.op_div, R.id.digit_0);
+        try {
+            evalOnSmallStack(e2, new MapResolver(), 2);
+            fail("Expected SyntaxException");
+        } catch (CalculatorExpr.SyntaxException expected) {
+        }
+    }
+}
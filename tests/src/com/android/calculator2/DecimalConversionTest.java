@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import com.hp.creals.CR;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Decimal conversion of large BigIntegers, checked against BigInteger.toString().
+ */
+public class DecimalConversionTest extends TestCase {
+    /**
+     * The expected result of DecimalConversion.toStringTruncated().
+     */
+    private static String truncatedReference(BigInteger scaled, boolean negative, int n) {
+        String digits = scaled.toString();
+        if (digits.length() < n + 1) {
+            digits = StringUtils.repeat('0', n + 1 - digits.length()) + digits;
+        }
+        final int wholeDigits = digits.length() - n;
+        return (negative ? "-" : "") + digits.substring(0, wholeDigits) + "."
+                + digits.substring(wholeDigits);
+    }
+
+    /**
+     * Return a random non-negative number with up to maxBits bits, favoring boundary cases.
+     */
+    private static BigInteger randomValue(Random rnd, int maxBits) {
+        switch (rnd.nextInt(7)) {
+            case 0:
+                return BigInteger.TEN.pow(rnd.nextInt((int) (maxBits * 0.3)));
+            case 1:
+                return BigInteger.TEN.pow(rnd.nextInt((int) (maxBits * 0.3)))
+                        .subtract(BigInteger.ONE);
+            default:
+                return new BigInteger(rnd.nextInt(maxBits), rnd);
+        }
+    }
+
+    public void testToString() {
+        final Random rnd = new Random(5);
+        for (int i = 0; i < 200; ++i) {
+            final BigInteger x = randomValue(rnd, i < 195 ? 40000 : 300000);
+            assertEquals(x.toString(), DecimalConversion.toString(x));
+            assertEquals(x.negate().toString(), DecimalConversion.toString(x.negate()));
+        }
+        assertEquals("0", DecimalConversion.toString(BigInteger.ZERO));
+    }
+
+    public void testToStringTruncated() {
+        final Random rnd = new Random(6);
+        for (int i = 0; i < 200; ++i) {
+            final BigInteger x = randomValue(rnd, 40000);
+            // Sometimes more fraction digits than x has digits, sometimes none.
+            final int n = rnd.nextInt(3) == 0 ? rnd.nextInt(3) : rnd.nextInt(x.bitLength() + 5);
+            final boolean negative = rnd.nextBoolean();
+            assertEquals(truncatedReference(x, negative, n),
+                    DecimalConversion.toStringTruncated(x, negative, n));
+        }
+        assertEquals("0.", DecimalConversion.toStringTruncated(BigInteger.ZERO, false, 0));
+        assertEquals("-0.00", DecimalConversion.toStringTruncated(BigInteger.ZERO, true, 2));
+        assertEquals("12.345", DecimalConversion.toStringTruncated(
+                BigInteger.valueOf(12345), false, 3));
+    }
+
+    public void testInterrupt() {
+        final BigInteger huge = new BigInteger(1000000, new Random(7));
+        Thread.currentThread().interrupt();
+        try {
+            DecimalConversion.toString(huge);
+            fail("Expected AbortedException");
+        } catch (CR.AbortedException expected) {
+        }
+        // The interrupt was consumed.
+        assertFalse(Thread.interrupted());
+    }
+}
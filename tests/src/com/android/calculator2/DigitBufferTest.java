@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * DigitBuffer, checked against the equivalent String operations.
+ */
+public class DigitBufferTest extends TestCase {
+    private static String randomDigits(Random rnd, int n) {
+        final StringBuilder sb = new StringBuilder(n);
+        for (int i = 0; i < n; ++i) {
+            sb.append((char) ('0' + rnd.nextInt(10)));
+        }
+        return sb.toString();
+    }
+
+    private static void checkContents(String expected, DigitBuffer b, Random rnd) {
+        final int len = expected.length();
+        assertEquals(expected, b.toString());
+        assertEquals(len, b.length());
+        assertEquals(expected.indexOf('.'), b.indexOf('.'));
+        assertEquals(expected.indexOf('-'), b.indexOf('-'));
+        for (int k = 0; k < 10; ++k) {
+            final int start = rnd.nextInt(len + 1);
+            final int end = start + rnd.nextInt(len - start + 1);
+            assertEquals(expected.substring(start, end), b.substring(start, end));
+            assertEquals(expected.substring(start, end), b.subSequence(start, end).toString());
+            final StringBuilder sb = new StringBuilder("x");
+            b.appendTo(sb, start, end);
+            assertEquals("x" + expected.substring(start, end), sb.toString());
+            final char[] chars = new char[end - start + 2];
+            b.getChars(start, end, chars, 1);
+            assertEquals(expected.substring(start, end), new String(chars, 1, end - start));
+            if (start < len) {
+                assertEquals(expected.charAt(start), b.charAt(start));
+            }
+        }
+        assertEquals(EvaluatorCore.getMsdIndexOf(expected), EvaluatorCore.getMsdIndexOf(b));
+    }
+
+    public void testAppendAndExtend() {
+        final Random rnd = new Random(1);
+        for (int t = 0; t < 200; ++t) {
+            String expected = (rnd.nextBoolean() ? "-" : "") + rnd.nextInt(1000) + ".";
+            DigitBuffer b = DigitBuffer.valueOf(expected);
+            for (int k = 0; k < 8; ++k) {
+                // Occasionally cross several chunk boundaries at once.
+                final String digits = randomDigits(rnd, rnd.nextInt(k % 3 == 0 ? 9000 : 50));
+                final String previous = expected;
+                final DigitBuffer previousBuffer = b;
+                expected += digits;
+                b = rnd.nextBoolean() ? b.append(digits) : b.extendTo(expected);
+                checkContents(expected, b, rnd);
+                // The original is unchanged, even though it shares chunks.
+                assertEquals(previous, previousBuffer.toString());
+                assertTrue(previousBuffer.isPrefixOf(expected));
+            }
+            // A different string with the same length.
+            final String other = "7" + expected.substring(1);
+            assertEquals(expected.startsWith("7"), b.isPrefixOf(other));
+            checkContents(other, b.extendTo(other), rnd);
+            checkContents(expected, b, rnd);
+        }
+    }
+
+    public void testEmpty() {
+        assertEquals(0, DigitBuffer.EMPTY.length());
+        assertEquals(-1, DigitBuffer.EMPTY.indexOf('.'));
+        assertSame(DigitBuffer.EMPTY, DigitBuffer.EMPTY.append(""));
+        assertTrue(DigitBuffer.EMPTY.isPrefixOf("1.5"));
+    }
+
+    public void testUnflipZeroes() {
+        final DigitBuffer flipped = DigitBuffer.valueOf("0.2000");
+        assertEquals("0.1999",
+                EvaluatorCore.unflipZeroes(DigitBuffer.valueOf("0.19"), 2, flipped, 4).toString());
+        assertSame(flipped,
+                EvaluatorCore.unflipZeroes(DigitBuffer.valueOf("0.18"), 2, flipped, 4));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Interval arithmetic used for provisional results.  Intervals must contain the exact result,
+ * and certified strings must agree with the truncated exact result.
+ */
+public class DoubleIntervalTest extends TestCase {
+    private static final int MIN_SIGNIFICANT = 10;
+
+    private static final CalculatorExpr.ExprResolver NO_REFERENCES =
+            new CalculatorExpr.ExprResolver() {
+        @Override
+        public CalculatorExpr getExpr(long index) {
+            return null;
+        }
+
+        @Override
+        public boolean getDegreeMode(long index) {
+            return false;
+        }
+
+        @Override
+        public UnifiedReal getResult(long index) {
+            return null;
+        }
+
+        @Override
+        public UnifiedReal putResultIfAbsent(long index, UnifiedReal result) {
+            return result;
+        }
+    };
+
+    private static final int[] KEYS = {
+        R.id.digit_1, R.id.digit_2, R.id.digit_0, R.id.digit_5, R.id.digit_7, R.id.dec_point,
+        R.id.op_add, R.id.op_sub, R.id.op_mul, R.id.op_div, R.id.op_pow, R.id.op_fact,
+        R.id.op_sqr, R.id.op_pct, R.id.op_sqrt, R.id.lparen, R.id.rparen, R.id.fun_sin,
+        R.id.fun_cos, R.id.fun_tan, R.id.fun_ln, R.id.fun_log, R.id.fun_exp, R.id.fun_arcsin,
+        R.id.fun_arccos, R.id.fun_arctan, R.id.const_pi, R.id.const_e
+    };
+
+    /**
+     * Check that interval contains the value of expr, and that its certified string, if any,
+     * agrees with the truncated exact value.  Return false if expr could not be evaluated.
+     */
+    private static boolean checkInterval(CalculatorExpr expr, boolean degreeMode,
+            DoubleInterval interval) {
+        final UnifiedReal val;
+        final String exact;
+        try {
+            val = expr.eval(degreeMode, NO_REFERENCES);
+            exact = val.toStringTruncated(40);
+        } catch (CalculatorExpr.SyntaxException | ArithmeticException e) {
+            return false;
+        }
+        final BigDecimal x = new BigDecimal(exact);
+        final BigDecimal slop = BigDecimal.ONE.scaleByPowerOfTen(-39);
+        assertTrue(x + " < " + interval.mLo,
+                x.compareTo(new BigDecimal(interval.mLo).subtract(slop)) >= 0);
+        assertTrue(x + " > " + interval.mHi,
+                x.compareTo(new BigDecimal(interval.mHi).add(slop)) <= 0);
+        final String s = interval.toCertifiedString(MIN_SIGNIFICANT);
+        if (s != null) {
+            assertEquals(exact.substring(0, s.length()), s);
+        }
+        return true;
+    }
+
+    public void testRandomExpressions() {
+        final Random rnd = new Random(7);
+        int checked = 0;
+        for (int i = 0; i < 5000; ++i) {
+            final boolean degreeMode = rnd.nextBoolean();
+            final CalculatorExpr e = new CalculatorExpr();
+            final int len = 1 + rnd.nextInt(10);
+            for (int j = 0; j < len; ++j) {
+                e.add(KEYS[rnd.nextInt(KEYS.length)]);
+            }
+            final DoubleInterval interval = e.evalInterval(degreeMode, NO_REFERENCES);
+            if (interval != null && checkInterval(e, degreeMode, interval)) {
+                ++checked;
+            }
+        }
+        assertTrue(checked > 500);
+    }
+
+    public void testResumesFromCheckpoint() {
+        // Instant evaluation evaluates after every keystroke, so intervals are computed from
+        // the checkpoints left by the previous evaluation.
+        final CalculatorExpr e = new CalculatorExpr();
+        final int[] keys = {
+            R.id.digit_1, R.id.dec_point, R.id.digit_5, R.id.op_add, R.id.digit_2, R.id.op_div,
+            R.id.digit_7, R.id.op_sub, R.id.op_sqrt, R.id.digit_2, R.id.op_add, R.id.const_pi,
+            R.id.op_mul, R.id.digit_3, R.id.op_sub, R.id.fun_ln, R.id.digit_5, R.id.rparen,
+            R.id.op_add, R.id.digit_1, R.id.digit_2, R.id.op_pct, R.id.op_sub, R.id.const_e,
+            R.id.op_pow, R.id.digit_2
+        };
+        for (int i = 0; i < keys.length; ++i) {
+            e.add(keys[i]);
+            final DoubleInterval interval = e.evalInterval(false, NO_REFERENCES);
+            if (keys[i] == R.id.op_sqrt || keys[i] == R.id.fun_ln) {
+                // Incomplete.
+                assertNull(interval);
+            } else {
+                assertNotNull("key " + i, interval);
+                assertTrue("key " + i, checkInterval(e, false, interval));
+            }
+        }
+    }
+
+    public void testTruncatesTowardZero() {
+        assertEquals("2.999999999999",
+                DoubleInterval.of(2.9999999999996, 2.9999999999997).toCertifiedString(10));
+        assertEquals("-2.999999999999",
+                DoubleInterval.of(-2.9999999999997, -2.9999999999996).toCertifiedString(10));
+        assertEquals("0.1234567890",
+                DoubleInterval.of(0.12345678901, 0.12345678902).toCertifiedString(10));
+    }
+
+    public void testUncertified() {
+        // Too wide.
+        assertNull(DoubleInterval.of(1.0, 1.001).toCertifiedString(10));
+        // Either sign.
+        assertNull(DoubleInterval.of(-1.0e-20, 1.0e-20).toCertifiedString(1));
+    }
+
+    public void testPoint() {
+        final String s = DoubleInterval.of(0.5, 0.5).toCertifiedString(10);
+        assertTrue(s, s.startsWith("0.5000000000"));
+        assertEquals("-12.5", DoubleInterval.of(-12.5, -12.5).toCertifiedString(1).substring(0, 5));
+    }
+}
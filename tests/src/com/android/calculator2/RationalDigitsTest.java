@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Digit windows of rational numbers, checked against BoundedRational.toStringTruncated().
+ */
+public class RationalDigitsTest extends TestCase {
+    private static BoundedRational randomRational(Random rnd) {
+        final long num = rnd.nextInt(200000) - 100000;
+        final long den = (rnd.nextInt(2000) + 1) * (rnd.nextBoolean() ? 1 : -1);
+        return new BoundedRational(BigInteger.valueOf(num), BigInteger.valueOf(den));
+    }
+
+    private static String fraction(String truncated) {
+        return truncated.substring(truncated.indexOf('.') + 1);
+    }
+
+    public void testToStringTruncated() {
+        final Random rnd = new Random(1);
+        for (int i = 0; i < 2000; ++i) {
+            final BoundedRational r = randomRational(rnd);
+            final int n = rnd.nextInt(300);
+            assertEquals(r.toStringTruncated(n), r.digits().toStringTruncated(n));
+        }
+    }
+
+    public void testWindows() {
+        final Random rnd = new Random(2);
+        for (int i = 0; i < 1000; ++i) {
+            final BoundedRational r = randomRational(rnd);
+            final RationalDigits digits = r.digits();
+            final int n = 1 + rnd.nextInt(300);
+            final String frac = fraction(r.toStringTruncated(n));
+            for (int j = 0; j < 5; ++j) {
+                final int a = rnd.nextInt(n + 1);
+                final int b = a + rnd.nextInt(n - a + 1);
+                assertEquals(frac.substring(a, b), digits.getDigits(a, b));
+                final StringBuilder sb = new StringBuilder("x");
+                digits.appendDigits(a, b, sb);
+                assertEquals("x" + frac.substring(a, b), sb.toString());
+            }
+        }
+    }
+
+    public void testSequentialReads() {
+        final Random rnd = new Random(3);
+        for (int i = 0; i < 1000; ++i) {
+            final long num = rnd.nextInt(200000) - 100000;
+            final long den = rnd.nextInt(2000) + 1;
+            final BoundedRational r = new BoundedRational(num, den);
+            final int n = rnd.nextInt(300);
+            // Without a known period, sequential reads continue the long division.
+            final RationalDigits digits =
+                    new RationalDigits(BigInteger.valueOf(num), BigInteger.valueOf(den), null);
+            final StringBuilder sb = new StringBuilder();
+            for (int a = 0; a < n; ) {
+                final int b = Math.min(n, a + 1 + rnd.nextInt(20));
+                sb.append(digits.getDigits(a, b));
+                a = b;
+            }
+            assertEquals(fraction(r.toStringTruncated(n)), sb.toString());
+        }
+    }
+
+    public void testFarWindow() {
+        // The period of 1/9999991 is too long to tabulate.
+        final BigInteger den = BigInteger.valueOf(9999991);
+        final RationalDigits digits = BoundedRational.inverse(new BoundedRational(den)).digits();
+        final int a = 10000000;
+        final BigInteger remainder = BigInteger.TEN.modPow(BigInteger.valueOf(a), den);
+        final String expected = remainder.multiply(BigInteger.TEN.pow(50)).divide(den).toString();
+        final String padded = StringUtils.repeat('0', 50 - expected.length()) + expected;
+        assertEquals(padded, digits.getDigits(a, a + 50));
+        assertEquals("0000001000000900000", digits.getDigits(0, 19));
+    }
+
+    public void testTerminating() {
+        final RationalDigits digits = new BoundedRational(-1, 8).digits();
+        assertTrue(digits.isNegative());
+        assertEquals("-0.12500", digits.toStringTruncated(5));
+        assertEquals("0000000000", digits.getDigits(1000, 1010));
+    }
+}